@@ -0,0 +1,174 @@
+package com.mapbox.mapboxsdk.offline;
+
+import android.test.InstrumentationTestCase;
+
+import com.cocoahero.android.geojson.MultiPolygon;
+import com.cocoahero.android.geojson.Polygon;
+import com.cocoahero.android.geojson.Position;
+import com.cocoahero.android.geojson.Ring;
+
+import java.util.HashSet;
+
+/**
+ * Checks the tiles {@link OfflineMapURLGenerator} picks against a plain enumeration: every tile
+ * of the lat/lon rectangle for rectangles, and the tiles whose center is inside or on the polygon
+ * for polygons drawn through tile centers, where that is the same as intersecting it.
+ */
+public class OfflineMapURLGeneratorTest extends InstrumentationTestCase {
+
+    private static final int ZOOM = 10;
+
+    // Around San Francisco, away from tile boundaries
+    private static final double MIN_LAT = 37.7049;
+    private static final double MAX_LAT = 37.8123;
+    private static final double MIN_LON = -122.5247;
+    private static final double MAX_LON = -122.3531;
+
+    public void testRectangleMatchesTileEnumeration() {
+        OfflineMapURLGenerator generator = new OfflineMapURLGenerator(MIN_LAT, MAX_LAT, MIN_LON, MAX_LON, 0, 16);
+        HashSet<Long> expected = new HashSet<Long>();
+        for (int z = 0; z <= 16; z++) {
+            for (int x = lonToTileX(MIN_LON, z); x <= lonToTileX(MAX_LON, z); x++) {
+                for (int y = latToTileY(MAX_LAT, z); y <= latToTileY(MIN_LAT, z); y++) {
+                    expected.add(OfflineDatabaseHandler.tileId(z, x, y));
+                }
+            }
+        }
+        assertEquals(expected.size(), generator.getURLCount());
+        assertEquals(expected, tileIds(generator));
+    }
+
+    public void testRectangularPolygonMatchesRectangle() {
+        Polygon polygon = polygon(new double[][] {
+                { MIN_LAT, MIN_LON }, { MIN_LAT, MAX_LON }, { MAX_LAT, MAX_LON }, { MAX_LAT, MIN_LON }
+        });
+        OfflineMapURLGenerator rectangle = new OfflineMapURLGenerator(MIN_LAT, MAX_LAT, MIN_LON, MAX_LON, 0, 16);
+        OfflineMapURLGenerator generator = new OfflineMapURLGenerator(polygon, 0, 16);
+        assertEquals(rectangle.getURLCount(), generator.getURLCount());
+        assertEquals(tileIds(rectangle), tileIds(generator));
+    }
+
+    public void testConcavePolygon() {
+        // An L: columns 100-110 on rows 200-203, and columns 100-103 down to row 215
+        Polygon polygon = polygon(tileCenters(new double[][] {
+                { 100, 200 }, { 110, 200 }, { 110, 203 }, { 103, 203 }, { 103, 215 }, { 100, 215 }
+        }));
+        HashSet<Long> expected = new HashSet<Long>();
+        addTiles(expected, 100, 110, 200, 203);
+        addTiles(expected, 100, 103, 200, 215);
+
+        OfflineMapURLGenerator generator = new OfflineMapURLGenerator(polygon, ZOOM, ZOOM);
+        assertEquals(92, expected.size());
+        assertEquals(expected.size(), generator.getURLCount());
+        assertEquals(expected, tileIds(generator));
+        // The notch of the L is left out
+        assertFalse(tileIds(generator).contains(OfflineDatabaseHandler.tileId(ZOOM, 108, 210)));
+    }
+
+    public void testPolygonWithHole() {
+        Polygon polygon = polygon(tileCenters(new double[][] {
+                { 100, 200 }, { 110, 200 }, { 110, 210 }, { 100, 210 }
+        }));
+        polygon.addRing(ring(tileCenters(new double[][] {
+                { 103, 203 }, { 107, 203 }, { 107, 207 }, { 103, 207 }
+        })));
+        // The tiles crossed by the edges of the hole are kept, the ones strictly inside aren't
+        HashSet<Long> expected = new HashSet<Long>();
+        addTiles(expected, 100, 110, 200, 210);
+        for (int x = 104; x <= 106; x++) {
+            for (int y = 204; y <= 206; y++) {
+                expected.remove(OfflineDatabaseHandler.tileId(ZOOM, x, y));
+            }
+        }
+
+        OfflineMapURLGenerator generator = new OfflineMapURLGenerator(polygon, ZOOM, ZOOM);
+        assertEquals(121 - 9, generator.getURLCount());
+        assertEquals(expected, tileIds(generator));
+    }
+
+    public void testOverlappingPolygonsAreMerged() {
+        // The two arms of the L as separate polygons, overlapping on columns 100-103, rows 200-203
+        MultiPolygon multiPolygon = new MultiPolygon();
+        multiPolygon.addPolygon(polygon(tileCenters(new double[][] {
+                { 100, 200 }, { 110, 200 }, { 110, 203 }, { 100, 203 }
+        })));
+        multiPolygon.addPolygon(polygon(tileCenters(new double[][] {
+                { 100, 200 }, { 103, 200 }, { 103, 215 }, { 100, 215 }
+        })));
+        HashSet<Long> expected = new HashSet<Long>();
+        addTiles(expected, 100, 110, 200, 203);
+        addTiles(expected, 100, 103, 200, 215);
+
+        OfflineMapURLGenerator generator = new OfflineMapURLGenerator(multiPolygon, ZOOM, ZOOM);
+        assertEquals(expected.size(), generator.getURLCount());
+        assertEquals(expected, tileIds(generator));
+    }
+
+    public void testIndexMatchesIterator() {
+        Polygon polygon = polygon(tileCenters(new double[][] {
+                { 100, 200 }, { 110, 200 }, { 110, 203 }, { 103, 203 }, { 103, 215 }, { 100, 215 }
+        }));
+        OfflineMapURLGenerator generator = new OfflineMapURLGenerator(polygon, ZOOM - 2, ZOOM);
+        OfflineMapURLGenerator.TileIterator iterator = generator.tileIterator();
+        for (int i = 0; i < generator.getURLCount(); i++) {
+            assertTrue(iterator.hasNext());
+            assertEquals(iterator.nextTileId(), generator.getTileIdForIndex(i));
+        }
+        assertFalse(iterator.hasNext());
+        assertEquals(-1, generator.getTileIdForIndex(generator.getURLCount()));
+    }
+
+    private static HashSet<Long> tileIds(OfflineMapURLGenerator generator) {
+        HashSet<Long> ids = new HashSet<Long>();
+        OfflineMapURLGenerator.TileIterator iterator = generator.tileIterator();
+        while (iterator.hasNext()) {
+            assertTrue("duplicate tile", ids.add(iterator.nextTileId()));
+        }
+        return ids;
+    }
+
+    private static void addTiles(HashSet<Long> tiles, int minX, int maxX, int minY, int maxY) {
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                tiles.add(OfflineDatabaseHandler.tileId(ZOOM, x, y));
+            }
+        }
+    }
+
+    /**
+     * @param tiles x, y of tiles at {@link #ZOOM}
+     * @return the latitude and longitude of their centers
+     */
+    private static double[][] tileCenters(double[][] tiles) {
+        double[][] positions = new double[tiles.length][];
+        int tilesPerSide = 1 << ZOOM;
+        for (int i = 0; i < tiles.length; i++) {
+            double x = (tiles[i][0] + 0.5) / tilesPerSide;
+            double y = (tiles[i][1] + 0.5) / tilesPerSide;
+            double lat = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+            positions[i] = new double[] { lat, x * 360.0 - 180.0 };
+        }
+        return positions;
+    }
+
+    private static Polygon polygon(double[][] latLons) {
+        return new Polygon(ring(latLons));
+    }
+
+    private static Ring ring(double[][] latLons) {
+        Ring ring = new Ring();
+        for (double[] latLon : latLons) {
+            ring.addPosition(new Position(latLon[0], latLon[1]));
+        }
+        return ring;
+    }
+
+    private static int lonToTileX(double lon, int z) {
+        return (int) Math.floor((lon + 180.0) / 360.0 * (1 << z));
+    }
+
+    private static int latToTileY(double lat, int z) {
+        double rad = Math.toRadians(lat);
+        return (int) Math.floor((1.0 - Math.log(Math.tan(rad) + 1.0 / Math.cos(rad)) / Math.PI) / 2.0 * (1 << z));
+    }
+}
@@ -0,0 +1,165 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.test.InstrumentationTestCase;
+
+import java.util.List;
+
+/**
+ * Checks how {@link MapTileRequestTable} coalesces the requests of several providers for a tile,
+ * and that a request only ends through the state that started it.
+ */
+public class MapTileRequestTableTest extends InstrumentationTestCase {
+
+    private static final String LAYER = "request-table-test";
+
+    private MapTileRequestTable table;
+    private TestProvider owner;
+    private TestProvider other;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        table = MapTileRequestTable.getInstance();
+        owner = new TestProvider();
+        other = new TestProvider();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        table.remove(owner);
+        table.remove(other);
+        super.tearDown();
+    }
+
+    public void testBeginCoalescesSameTile() {
+        MapTileRequestState first = state(tile(1, 1), owner);
+        MapTileRequestState second = state(tile(1, 1), other);
+        long coalesced = table.getCoalescedCount();
+
+        assertTrue(table.begin(first));
+        assertFalse(table.begin(second));
+        assertTrue(table.isInFlight(tile(1, 1)));
+        assertEquals(coalesced + 1, table.getCoalescedCount());
+
+        List<MapTileLayerBase> listeners = table.end(first);
+        assertEquals(1, listeners.size());
+        assertSame(other, listeners.get(0));
+        assertFalse(table.isInFlight(tile(1, 1)));
+    }
+
+    public void testOtherTilesDontCoalesce() {
+        assertTrue(table.begin(state(tile(2, 1), owner)));
+        assertTrue(table.begin(state(tile(1, 2), other)));
+        assertTrue(table.begin(state(new MapTile(LAYER + "-other", 10, 2, 1), other)));
+    }
+
+    public void testEndOnlyThroughOwningState() {
+        MapTileRequestState first = state(tile(3, 3), owner);
+        MapTileRequestState stale = state(tile(3, 3), owner);
+        assertTrue(table.begin(first));
+        assertTrue(table.join(tile(3, 3), other, false));
+
+        // Same tile, same provider, but not the request in flight
+        assertTrue(table.end(stale).isEmpty());
+        assertTrue(table.getListeners(stale).isEmpty());
+        assertTrue(table.isInFlight(tile(3, 3)));
+
+        assertEquals(1, table.end(first).size());
+        assertFalse(table.isInFlight(tile(3, 3)));
+        // Ending twice is harmless
+        assertTrue(table.end(first).isEmpty());
+    }
+
+    public void testJoin() {
+        assertFalse(table.join(tile(4, 4), other, false));
+
+        MapTileRequestState first = state(tile(4, 4), owner);
+        assertTrue(table.begin(first));
+        long coalesced = table.getCoalescedCount();
+        // The owner joining its own request isn't a listener
+        assertTrue(table.join(tile(4, 4), owner, false));
+        assertTrue(table.getListeners(first).isEmpty());
+        // A provider is only told once
+        assertTrue(table.join(tile(4, 4), other, false));
+        assertTrue(table.join(tile(4, 4), other, false));
+        assertEquals(1, table.getListeners(first).size());
+        assertEquals(coalesced + 1, table.getCoalescedCount());
+    }
+
+    public void testPrefetchBecomesDisplayed() {
+        MapTileRequestState prefetch = state(tile(5, 5), owner);
+        prefetch.setPrefetch(true);
+        assertTrue(table.begin(prefetch));
+
+        // Another prefetch isn't told, and doesn't change the request
+        assertTrue(table.join(tile(5, 5), other, true));
+        MapTileRequestState otherPrefetch = state(tile(5, 5), other);
+        otherPrefetch.setPrefetch(true);
+        assertFalse(table.begin(otherPrefetch));
+        assertTrue(table.getListeners(prefetch).isEmpty());
+        assertTrue(prefetch.isPrefetch());
+
+        // A displayed request joining makes its completion redraw the map
+        assertTrue(table.join(tile(5, 5), other, false));
+        assertFalse(prefetch.isPrefetch());
+        assertEquals(1, table.getListeners(prefetch).size());
+    }
+
+    public void testGetListenersIsACopy() {
+        MapTileRequestState first = state(tile(6, 6), owner);
+        assertTrue(table.begin(first));
+        assertTrue(table.join(tile(6, 6), other, false));
+        table.getListeners(first).clear();
+        assertEquals(1, table.getListeners(first).size());
+    }
+
+    public void testRemoveProvider() {
+        MapTileRequestState owned = state(tile(7, 7), owner);
+        MapTileRequestState joined = state(tile(8, 8), other);
+        assertTrue(table.begin(owned));
+        assertTrue(table.begin(joined));
+        assertTrue(table.join(tile(7, 7), other, false));
+        assertTrue(table.join(tile(8, 8), owner, false));
+
+        List<MapTileLayerBase> abandoned = table.remove(owner);
+        assertEquals(1, abandoned.size());
+        assertSame(other, abandoned.get(0));
+        assertFalse(table.isInFlight(tile(7, 7)));
+        // The owner no longer listens to the request of the other provider
+        assertTrue(table.isInFlight(tile(8, 8)));
+        assertTrue(table.getListeners(joined).isEmpty());
+    }
+
+    private static MapTile tile(int x, int y) {
+        return new MapTile(LAYER, 10, x, y);
+    }
+
+    private static MapTileRequestState state(MapTile tile, TestProvider provider) {
+        return new MapTileRequestState(tile, null, provider);
+    }
+
+    /**
+     * A provider that only stands for itself in the table.
+     */
+    private static final class TestProvider extends MapTileLayerBase {
+        TestProvider() {
+            super(null, null);
+        }
+
+        @Override
+        public MapTileCache createTileCache(Context aContext) {
+            return null;
+        }
+
+        @Override
+        public Drawable getMapTile(MapTile pTile, boolean allowRemote) {
+            return null;
+        }
+
+        @Override
+        public void detach() {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.test.InstrumentationTestCase;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+/**
+ * Checks the packing of tile ids at the limits of each field, and that layer ids run out cleanly.
+ */
+public class MapTileTest extends InstrumentationTestCase {
+
+    private static final int MAX_LAYER_ID = (1 << 15) - 1;
+    private static final int MAX_ZOOM = 22;
+    private static final int MAX_INDEX = (1 << MAX_ZOOM) - 1;
+
+    public void testPacksLargestValues() {
+        MapTile tile = new MapTile("layer", MAX_LAYER_ID, MAX_ZOOM, MAX_INDEX, MAX_INDEX);
+        long id = tile.getId();
+        assertEquals(MAX_LAYER_ID, MapTile.getLayerId(id));
+        assertEquals(MAX_ZOOM, MapTile.getZ(id));
+        assertEquals(MAX_INDEX, MapTile.getX(id));
+        assertEquals(MAX_INDEX, MapTile.getY(id));
+    }
+
+    public void testFieldsDontOverlap() {
+        long x = MapTile.toId(0, 0, MAX_INDEX, 0);
+        long y = MapTile.toId(0, 0, 0, MAX_INDEX);
+        long z = MapTile.toId(0, 31, 0, 0);
+        long layer = MapTile.toId(MAX_LAYER_ID, 0, 0, 0);
+        assertEquals(0, x & y);
+        assertEquals(0, (x | y) & z);
+        assertEquals(0, (x | y | z) & layer);
+        // 15 + 5 + 22 + 22 bits, the whole long
+        assertEquals(-1L, x | y | z | layer);
+        assertEquals(0, new MapTile(0, 0, 0).getId());
+    }
+
+    public void testNeighboursHaveDistinctIds() {
+        int layerId = MapTile.getLayerId("neighbours");
+        long id = new MapTile("neighbours", layerId, MAX_ZOOM, MAX_INDEX, MAX_INDEX - 1).getId();
+        assertFalse(id == new MapTile("neighbours", layerId, MAX_ZOOM, MAX_INDEX - 1, MAX_INDEX).getId());
+        assertFalse(id == new MapTile("neighbours", layerId, MAX_ZOOM - 1, MAX_INDEX, MAX_INDEX - 1).getId());
+        assertFalse(id == new MapTile("other", MAX_ZOOM, MAX_INDEX, MAX_INDEX - 1).getId());
+    }
+
+    public void testSameKeySameId() {
+        MapTile a = new MapTile("same", 12, 654, 1583);
+        MapTile b = new MapTile("same", 12, 654, 1583);
+        assertEquals(a.getId(), b.getId());
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(MapTile.getLayerId("same"), MapTile.getLayerId(a.getId()));
+        assertEquals(0, MapTile.getLayerId((String) null));
+        assertEquals(0, MapTile.getLayerId(""));
+    }
+
+    public void testInvalidLayerId() {
+        try {
+            new MapTile("layer", -1, 0, 0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new MapTile("layer", MAX_LAYER_ID + 1, 0, 0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testLayerIdExhaustion() throws Exception {
+        // Skip ahead to the last id rather than registering 32767 keys, and put everything back
+        // afterwards, the ids are global to the process
+        Field nextField = MapTile.class.getDeclaredField("sNextLayerId");
+        nextField.setAccessible(true);
+        Field idsField = MapTile.class.getDeclaredField("sLayerIds");
+        idsField.setAccessible(true);
+        Map<String, Integer> ids = (Map<String, Integer>) idsField.get(null);
+
+        synchronized (ids) {
+            int next = nextField.getInt(null);
+            try {
+                nextField.setInt(null, MAX_LAYER_ID);
+                assertEquals(MAX_LAYER_ID, MapTile.getLayerId("exhaustion-last"));
+                // Known keys still resolve
+                assertEquals(MAX_LAYER_ID, MapTile.getLayerId("exhaustion-last"));
+                try {
+                    MapTile.getLayerId("exhaustion-overflow");
+                    fail();
+                } catch (IllegalStateException e) {
+                    // Expected
+                }
+                assertFalse(ids.containsKey("exhaustion-overflow"));
+            } finally {
+                ids.remove("exhaustion-last");
+                nextField.setInt(null, next);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks the additive increase and multiplicative decrease of {@link DownloadConcurrencyController},
+ * and how the lowest latency it compares against decays with time.
+ */
+public class DownloadConcurrencyControllerTest extends InstrumentationTestCase {
+
+    private static final long LATENCY_MS = 100;
+
+    // Far enough from 0 that the first decrease isn't held back
+    private static final long START_MS = 1000000;
+
+    public void testBounds() {
+        assertEquals(16, new DownloadConcurrencyController(2, 16, 32).getLimit());
+        assertEquals(2, new DownloadConcurrencyController(2, 16, 1).getLimit());
+        try {
+            new DownloadConcurrencyController(0, 16, 4);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new DownloadConcurrencyController(8, 4, 4);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        DownloadConcurrencyController controller = new DownloadConcurrencyController(2, 16, 12);
+        controller.setBounds(1, 8);
+        assertEquals(8, controller.getLimit());
+    }
+
+    public void testAdditiveIncrease() {
+        DownloadConcurrencyController controller = new DownloadConcurrencyController(1, 16, 4);
+        long now = START_MS;
+        // About one more download per round of downloads: 4 -> 5 takes 5 successes
+        int successes = 0;
+        while (controller.getLimit() == 4) {
+            controller.onSuccess(LATENCY_MS, now += 10);
+            successes++;
+        }
+        assertEquals(5, controller.getLimit());
+        assertEquals(5, successes);
+
+        for (int i = 0; i < 1000; i++) {
+            controller.onSuccess(LATENCY_MS, now += 10);
+        }
+        assertEquals(16, controller.getLimit());
+        assertEquals(1005, controller.getSuccessCount());
+    }
+
+    public void testErrorHalvesOncePerLatency() {
+        DownloadConcurrencyController controller = new DownloadConcurrencyController(1, 16, 8);
+        long now = START_MS;
+        controller.onSuccess(LATENCY_MS, now);
+        final int limit = controller.getLimit();
+
+        assertTrue(controller.onError(now += 1));
+        assertEquals(limit / 2, controller.getLimit());
+        // The downloads that started before the cut fail too, they don't count again
+        assertFalse(controller.onError(now += LATENCY_MS / 2));
+        assertEquals(limit / 2, controller.getLimit());
+
+        assertTrue(controller.onError(now += LATENCY_MS));
+        assertEquals(limit / 4, controller.getLimit());
+        assertEquals(3, controller.getErrorCount());
+        assertTrue(controller.getErrorRate() > 0);
+
+        // Never under the floor
+        for (int i = 0; i < 10; i++) {
+            controller.onError(now += 2 * LATENCY_MS);
+        }
+        assertEquals(1, controller.getLimit());
+    }
+
+    public void testQueuingLatencyDecreases() {
+        DownloadConcurrencyController controller = new DownloadConcurrencyController(1, 16, 8);
+        long now = START_MS;
+        controller.onSuccess(LATENCY_MS, now);
+        final int limit = controller.getLimit();
+
+        // Within the tolerance, still increasing
+        assertFalse(controller.onSuccess((long) (LATENCY_MS * DownloadConcurrencyController.LATENCY_TOLERANCE), now += 1));
+        final int before = controller.getLimit();
+        assertTrue(before >= limit);
+
+        // Beyond it, requests are queuing somewhere: cut by a quarter, gentler than an error
+        assertTrue(controller.onSuccess(LATENCY_MS * 4, now += LATENCY_MS * 2));
+        assertTrue(controller.getLimit() < before);
+        assertTrue(controller.getLimit() >= (int) (before * 0.75f));
+    }
+
+    public void testMinLatencyDecaysWithTime() {
+        DownloadConcurrencyController controller = new DownloadConcurrencyController(1, 16, 8);
+        long now = START_MS;
+        controller.onSuccess(LATENCY_MS, now);
+        assertEquals((float) LATENCY_MS, controller.getMinLatency());
+
+        // Samples in quick succession don't decay it, whatever their number
+        for (int i = 0; i < 100; i++) {
+            controller.onSuccess(LATENCY_MS * 2, now += 1);
+        }
+        assertEquals(LATENCY_MS, controller.getMinLatency(), 1f);
+
+        // 1.1 per 10 seconds
+        controller.onSuccess(LATENCY_MS * 2, now += 10000);
+        assertEquals(LATENCY_MS * 1.1f, controller.getMinLatency(), 1f);
+
+        // Never above the sample, after a long pause
+        controller.onSuccess(LATENCY_MS * 2, now += 1000000);
+        assertEquals(LATENCY_MS * 2f, controller.getMinLatency(), 0.01f);
+
+        // A lower sample is taken straight away
+        controller.onSuccess(LATENCY_MS / 2, now += 1);
+        assertEquals(LATENCY_MS / 2f, controller.getMinLatency(), 0.01f);
+    }
+
+    public void testBandwidth() {
+        DownloadConcurrencyController controller = new DownloadConcurrencyController(1, 16, 8);
+        assertEquals(0f, controller.getBandwidth());
+
+        // Empty bodies and bodies read too fast to tell are left out
+        controller.onTransfer(0, 100);
+        controller.onTransfer(20000, 2);
+        assertEquals(0f, controller.getBandwidth());
+
+        controller.onTransfer(10000, 100);
+        assertEquals(100000f, controller.getBandwidth(), 1f);
+        // Moving average
+        controller.onTransfer(10000, 200);
+        assertTrue(controller.getBandwidth() < 100000f);
+        assertTrue(controller.getBandwidth() > 50000f);
+    }
+
+    public void testThroughput() {
+        DownloadConcurrencyController controller = new DownloadConcurrencyController(1, 16, 8);
+        long now = START_MS;
+        // 20 downloads a second, over a few windows
+        for (int i = 0; i <= 60; i++) {
+            controller.onSuccess(LATENCY_MS, now);
+            now += 50;
+        }
+        assertEquals(20f, controller.getThroughput(), 1f);
+    }
+}
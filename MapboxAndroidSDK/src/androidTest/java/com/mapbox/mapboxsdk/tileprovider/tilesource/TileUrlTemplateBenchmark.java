@@ -0,0 +1,89 @@
+package com.mapbox.mapboxsdk.tileprovider.tilesource;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+
+/**
+ * Checks that {@link TileUrlTemplate} renders the same urls as
+ * {@link WebSourceTileLayer#parseUrlForTile(String, MapTile, boolean)}, and compares their speed
+ * the way JMH would: warmup iterations first, then measured iterations reported in ns/op.
+ */
+public class TileUrlTemplateBenchmark extends InstrumentationTestCase {
+
+    private static final String TAG = "TileUrlTemplateBenchmark";
+
+    private static final String URL = "https://a.tiles.mapbox.com/v4/mapbox.streets/{z}/{x}/{y}{2x}.png?access_token=pk.test";
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+    private static final int OPERATIONS_PER_ITERATION = 20000;
+
+    private WebSourceTileLayer layer;
+    private TileUrlTemplate template;
+    private MapTile[] tiles;
+
+    // Keeps the results alive so the rendering can't be optimized away
+    private int sink;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        layer = new WebSourceTileLayer("benchmark", URL, true);
+        template = TileUrlTemplate.compile(URL);
+        tiles = new MapTile[256];
+        for (int i = 0; i < tiles.length; i++) {
+            int z = 10 + (i % 8);
+            tiles[i] = new MapTile(z, (i * 7919) % (1 << z), (i * 104729) % (1 << z));
+        }
+    }
+
+    public void testRendersLikeReplace() {
+        for (MapTile tile : tiles) {
+            assertEquals(layer.parseUrlForTile(URL, tile, false), template.render(tile, false));
+            assertEquals(layer.parseUrlForTile(URL, tile, true), template.render(tile, true));
+        }
+    }
+
+    public void testQuadKeyAndSubdomains() {
+        TileUrlTemplate bing = TileUrlTemplate.compile("http://ecn.{subdomain}.tiles.virtualearth.net/tiles/r{quadkey}.jpeg?g=1",
+                new String[] { "t0", "t1" });
+        assertEquals("http://ecn.t0.tiles.virtualearth.net/tiles/r213.jpeg?g=1", bing.render(3, 3, 5, false));
+        assertEquals("http://ecn.t1.tiles.virtualearth.net/tiles/r.jpeg?g=1", bing.render(0, 0, 1, false));
+        assertEquals("{s}.example.com/{unknown}/1", TileUrlTemplate.compile("{s}.example.com/{unknown}/{z}").render(1, 0, 0, false));
+    }
+
+    public void testBenchmark() {
+        double replaceNs = measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < OPERATIONS_PER_ITERATION; i++) {
+                    sink += layer.parseUrlForTile(URL, tiles[i & 255], (i & 1) == 0).length();
+                }
+            }
+        });
+        double templateNs = measure(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < OPERATIONS_PER_ITERATION; i++) {
+                    sink += template.render(tiles[i & 255], (i & 1) == 0).length();
+                }
+            }
+        });
+        Log.i(TAG, String.format("parseUrlForTile: %.1f ns/op, TileUrlTemplate: %.1f ns/op (sink %d)", replaceNs, templateNs, sink));
+    }
+
+    private static double measure(Runnable iteration) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            iteration.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / OPERATIONS_PER_ITERATION;
+    }
+}
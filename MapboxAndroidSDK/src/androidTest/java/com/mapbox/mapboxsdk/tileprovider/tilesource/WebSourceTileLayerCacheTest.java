@@ -0,0 +1,61 @@
+package com.mapbox.mapboxsdk.tileprovider.tilesource;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+
+import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
+
+/**
+ * Checks that a downloaded tile leaves a single drawable of its bitmap in the memory cache: a
+ * second one would be replaced and pooled, and its bitmap decoded over while it is displayed. And
+ * that the layers of a composite tile go back to the pool once drawn.
+ */
+public class WebSourceTileLayerCacheTest extends InstrumentationTestCase {
+
+    private static final String LAYER = "web-source-cache-test";
+    private static final int SIZE = 256;
+
+    private MapTileCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        cache = new MapTileCache(getInstrumentation().getTargetContext());
+    }
+
+    public void testDownloadCachedOnce() {
+        assertCachedOnce(new MapTile(LAYER, 10, 1, 1), false);
+    }
+
+    public void testDownloadStoredOnDiskCachedOnce() {
+        assertCachedOnce(new MapTile(LAYER, 10, 2, 1), true);
+    }
+
+    public void testReleasedLayerIsReused() {
+        Bitmap layer = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        cache.releaseBitmap(layer);
+        assertFalse(layer.isRecycled());
+        // The most recently released bitmap of its size comes out first
+        assertSame(layer, cache.getBitmapFromRemoved(SIZE, SIZE));
+    }
+
+    private void assertCachedOnce(MapTile tile, boolean storedOnDisk) {
+        Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+
+        CacheableBitmapDrawable result = WebSourceTileLayer.cacheDownloadedTile(cache, tile,
+                bitmap, false, storedOnDisk, null);
+        assertNotNull(result);
+        assertSame(bitmap, result.getBitmap());
+        assertSame(result, cache.getMapTileFromMemory(tile));
+
+        // No other drawable of the bitmap was replaced into the pool
+        Bitmap pooled;
+        while ((pooled = cache.getBitmapFromRemoved(SIZE, SIZE)) != null) {
+            assertNotSame(bitmap, pooled);
+        }
+        cache.removeTileFromMemory(tile);
+    }
+}
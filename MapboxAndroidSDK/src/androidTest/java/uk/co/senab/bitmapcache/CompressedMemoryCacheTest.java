@@ -0,0 +1,213 @@
+package uk.co.senab.bitmapcache;
+
+import android.test.InstrumentationTestCase;
+
+import java.util.Arrays;
+
+/**
+ * Checks the ring of {@link CompressedMemoryCache}: which contents are evicted as writing wraps
+ * around the buffer, and that replaced and surviving contents read back intact.
+ */
+public class CompressedMemoryCacheTest extends InstrumentationTestCase {
+
+    private static final int CAPACITY = 100;
+
+    private CompressedMemoryCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new CompressedMemoryCache(CAPACITY);
+    }
+
+    public void testPutAndGet() {
+        byte[] data = data(1, 30);
+        assertTrue(mCache.put("a", data, 20));
+        assertEquals(20, mCache.size());
+
+        byte[] read = mCache.get("a");
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 20), read));
+        // A copy, not a view of the buffer
+        read[0]++;
+        assertTrue(Arrays.equals(Arrays.copyOf(data, 20), mCache.get("a")));
+
+        assertNull(mCache.get("b"));
+        assertEquals(2, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+    }
+
+    public void testFillsWithoutEvicting() {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mCache.put(key(i), data(i, 25), 25));
+        }
+        assertEquals(CAPACITY, mCache.size());
+        assertEquals(0, mCache.evictionCount());
+        for (int i = 0; i < 4; i++) {
+            assertContents(i, 25);
+        }
+    }
+
+    public void testWrapEvictsOldest() {
+        for (int i = 0; i < 4; i++) {
+            mCache.put(key(i), data(i, 25), 25);
+        }
+        // No room left at the end: starts over at the beginning, over the oldest contents
+        assertTrue(mCache.put(key(4), data(4, 25), 25));
+        assertFalse(mCache.contains(key(0)));
+        assertEquals(1, mCache.evictionCount());
+        for (int i = 1; i <= 4; i++) {
+            assertContents(i, 25);
+        }
+        assertEquals(CAPACITY, mCache.size());
+    }
+
+    public void testWrapLeavesTailUnused() {
+        for (int i = 0; i < 3; i++) {
+            mCache.put(key(i), data(i, 30), 30);
+        }
+        // 10 bytes left at the end, too few: wraps and only evicts what it overwrites
+        assertTrue(mCache.put(key(3), data(3, 20), 20));
+        assertFalse(mCache.contains(key(0)));
+        assertContents(1, 30);
+        assertContents(2, 30);
+        assertContents(3, 20);
+        assertEquals(80, mCache.size());
+
+        // The next contents go over the second ones
+        assertTrue(mCache.put(key(4), data(4, 20), 20));
+        assertFalse(mCache.contains(key(1)));
+        assertContents(2, 30);
+        assertContents(3, 20);
+        assertContents(4, 20);
+        assertEquals(70, mCache.size());
+        assertEquals(2, mCache.evictionCount());
+    }
+
+    public void testReplace() {
+        mCache.put("a", data(1, 30), 30);
+        mCache.put("b", data(2, 30), 30);
+        assertTrue(mCache.put("a", data(3, 20), 20));
+        assertTrue(Arrays.equals(data(3, 20), mCache.get("a")));
+        assertContents("b", 2, 30);
+        assertEquals(50, mCache.size());
+        assertEquals(0, mCache.evictionCount());
+    }
+
+    public void testReplaceThenWrap() {
+        mCache.put(key(0), data(0, 30), 30);
+        mCache.put(key(1), data(1, 30), 30);
+        mCache.put(key(2), data(2, 30), 30);
+        // Replacing the middle one leaves a hole, the new copy wraps over the first
+        assertTrue(mCache.put(key(1), data(5, 30), 30));
+        assertFalse(mCache.contains(key(0)));
+        assertContents(key(1), 5, 30);
+        assertContents(2, 30);
+        assertEquals(60, mCache.size());
+
+        // The hole is reused without evicting anything
+        assertTrue(mCache.put(key(3), data(3, 30), 30));
+        assertEquals(1, mCache.evictionCount());
+        assertContents(key(1), 5, 30);
+        assertContents(2, 30);
+        assertContents(3, 30);
+
+        // Then the third one, now the oldest, goes
+        assertTrue(mCache.put(key(4), data(4, 30), 30));
+        assertFalse(mCache.contains(key(2)));
+        assertContents(key(1), 5, 30);
+        assertContents(3, 30);
+        assertContents(4, 30);
+        assertEquals(90, mCache.size());
+    }
+
+    public void testTooLarge() {
+        mCache.put("a", data(1, 10), 10);
+        assertFalse(mCache.put("b", data(2, CAPACITY + 1), CAPACITY + 1));
+        assertFalse(mCache.contains("b"));
+        assertContents("a", 1, 10);
+
+        // Exactly the capacity fits, alone
+        assertTrue(mCache.put("c", data(3, CAPACITY), CAPACITY));
+        assertFalse(mCache.contains("a"));
+        assertEquals(CAPACITY, mCache.size());
+    }
+
+    public void testSetMaxSize() {
+        mCache.put("a", data(1, 10), 10);
+        mCache.setMaxSize(CAPACITY);
+        assertTrue(mCache.contains("a"));
+
+        mCache.setMaxSize(2 * CAPACITY);
+        assertFalse(mCache.contains("a"));
+        assertEquals(0, mCache.size());
+        assertEquals(2 * CAPACITY, mCache.maxSize());
+        assertTrue(mCache.put("b", data(2, 150), 150));
+        assertContents("b", 2, 150);
+    }
+
+    public void testGetIntoScratch() {
+        mCache.put("a", data(1, 20), 20);
+        mCache.put("b", data(2, 40), 40);
+
+        CompressedMemoryCache.Scratch scratch = new CompressedMemoryCache.Scratch(30);
+        byte[] array = scratch.data;
+        assertTrue(mCache.get("a", scratch));
+        assertSame(array, scratch.data);
+        assertEquals(20, scratch.length);
+        assertTrue(Arrays.equals(data(1, 20), Arrays.copyOf(scratch.data, 20)));
+
+        // Grows for larger contents, then keeps the larger array
+        assertTrue(mCache.get("b", scratch));
+        assertEquals(40, scratch.length);
+        assertTrue(Arrays.equals(data(2, 40), scratch.data));
+        array = scratch.data;
+        assertTrue(mCache.get("a", scratch));
+        assertSame(array, scratch.data);
+        assertEquals(20, scratch.length);
+
+        assertFalse(mCache.get("c", scratch));
+        assertEquals(3, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+    }
+
+    public void testMetadata() {
+        // Not kept for contents that aren't cached
+        mCache.setMetadata("a", "m");
+        assertNull(mCache.getMetadata("a"));
+
+        mCache.put("a", data(1, 20), 20);
+        assertNull(mCache.getMetadata("a"));
+        mCache.setMetadata("a", "m");
+        assertEquals("m", mCache.getMetadata("a"));
+        mCache.setMetadata("a", null);
+        assertEquals("", mCache.getMetadata("a"));
+
+        // Replaced contents lose it
+        mCache.setMetadata("a", "m");
+        mCache.put("a", data(2, 20), 20);
+        assertNull(mCache.getMetadata("a"));
+    }
+
+    private void assertContents(int seed, int length) {
+        assertContents(key(seed), seed, length);
+    }
+
+    private void assertContents(String key, int seed, int length) {
+        assertTrue(key, Arrays.equals(data(seed, length), mCache.get(key)));
+    }
+
+    private static String key(int i) {
+        return "tile-" + i;
+    }
+
+    /**
+     * @return bytes that differ for each seed and position, so overwritten contents show
+     */
+    private static byte[] data(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+}
@@ -1,10 +1,14 @@
 package com.mapbox.mapboxsdk.offline;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class OfflineDatabaseHandler extends SQLiteOpenHelper {
     private static OfflineDatabaseHandler offlineDatabaseHandler;
@@ -13,11 +17,12 @@ public class OfflineDatabaseHandler extends SQLiteOpenHelper {
 
     // All Static variables
     // Database Version
-    public static final int DATABASE_VERSION = 2;
+    public static final int DATABASE_VERSION = 4;
 
     // Table name(s)
     public static final String TABLE_METADATA = "metadata";
     public static final String TABLE_RESOURCES = "resources";
+    public static final String TABLE_TILES = "tiles";
 
     // Table Fields
     public static final String FIELD_METADATA_NAME = "name";
@@ -26,6 +31,26 @@ public class OfflineDatabaseHandler extends SQLiteOpenHelper {
     public static final String FIELD_RESOURCES_URL = "url";
     public static final String FIELD_RESOURCES_DATA = "data";
     public static final String FIELD_RESOURCES_STATUS = "status";
+    public static final String FIELD_RESOURCES_RETRIES = "retries";
+
+    public static final String FIELD_TILES_ID = "id";
+    public static final String FIELD_TILES_DATA = "data";
+    public static final String FIELD_TILES_STATUS = "status";
+    public static final String FIELD_TILES_RETRIES = "retries";
+
+    // Download status of resources and tiles. A NULL status means the file is queued.
+    public static final String STATUS_IN_FLIGHT = "in-flight";
+    public static final String STATUS_DONE = "200";
+    public static final String STATUS_FAILED = "failed";
+
+    // Tile ids pack z/x/y into a single INTEGER PRIMARY KEY (an alias of the rowid), so lookups
+    // are a single b-tree search on an integer instead of a text index match on the url.
+    // Zoom levels go up to 22, so x and y each fit in 22 bits.
+    private static final int TILE_ID_XY_BITS = 22;
+    private static final long TILE_ID_XY_MASK = (1L << TILE_ID_XY_BITS) - 1;
+
+    // Matches the z/x/y part of the tile urls that version 2 databases stored in the resources table
+    private static final Pattern TILE_URL_PATTERN = Pattern.compile("/(\\d+)/(\\d+)/(\\d+)\\.[A-Za-z0-9]+(\\?.*)?$");
 
     /**
      * Constructor
@@ -41,13 +66,14 @@ public class OfflineDatabaseHandler extends SQLiteOpenHelper {
         Log.i(TAG, "onCreate() called... Setting up application's database.");
         // Create The table(s)
         String metadata = "CREATE TABLE " + TABLE_METADATA + " (" + FIELD_METADATA_NAME + " TEXT UNIQUE, " + FIELD_METADATA_VALUE + " TEXT);";
-        String resources = "CREATE TABLE " + TABLE_RESOURCES + " (" + FIELD_RESOURCES_URL + " TEXT UNIQUE, " + FIELD_RESOURCES_DATA + " BLOB, " + FIELD_RESOURCES_STATUS + " TEXT);";
+        String resources = "CREATE TABLE " + TABLE_RESOURCES + " (" + FIELD_RESOURCES_URL + " TEXT UNIQUE, " + FIELD_RESOURCES_DATA + " BLOB, " + FIELD_RESOURCES_STATUS + " TEXT, " + FIELD_RESOURCES_RETRIES + " INTEGER NOT NULL DEFAULT 0);";
 
         db.beginTransaction();
 
         try {
             db.execSQL(metadata);
             db.execSQL(resources);
+            createTilesTable(db);
             db.setTransactionSuccessful();
         } catch (SQLException e) {
             Log.e(TAG, "Error creating database: " + e.toString());
@@ -59,9 +85,113 @@ public class OfflineDatabaseHandler extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion == 2) {
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", moving tiles to the " + TABLE_TILES + " table");
+            addRetriesColumn(db, TABLE_RESOURCES, FIELD_RESOURCES_RETRIES);
+            migrateTilesFromResources(db);
+            return;
+        }
+        if (oldVersion == 3) {
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", adding retry counts");
+            addRetriesColumn(db, TABLE_RESOURCES, FIELD_RESOURCES_RETRIES);
+            addRetriesColumn(db, TABLE_TILES, FIELD_TILES_RETRIES);
+            return;
+        }
         Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
         db.execSQL("drop table if exists " + TABLE_METADATA);
         db.execSQL("drop table if exists " + TABLE_RESOURCES);
+        db.execSQL("drop table if exists " + TABLE_TILES);
         onCreate(db);
     }
+
+    private static void createTilesTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_TILES + " (" + FIELD_TILES_ID + " INTEGER PRIMARY KEY, " + FIELD_TILES_DATA + " BLOB, " + FIELD_TILES_STATUS + " TEXT, " + FIELD_TILES_RETRIES + " INTEGER NOT NULL DEFAULT 0);");
+    }
+
+    private static void addRetriesColumn(SQLiteDatabase db, String table, String field) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + field + " INTEGER NOT NULL DEFAULT 0;");
+    }
+
+    /**
+     * Version 2 stored every tile in the resources table, keyed by its full url. Move the tile
+     * rows to the tiles table and leave the other resources (metadata, markers, icons) in place.
+     * onUpgrade already runs inside a transaction.
+     */
+    private static void migrateTilesFromResources(SQLiteDatabase db) {
+        createTilesTable(db);
+
+        final SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_TILES + " (" + FIELD_TILES_ID + ", " + FIELD_TILES_DATA + ", " + FIELD_TILES_STATUS + ") VALUES (?, ?, ?);");
+        final SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_RESOURCES + " WHERE rowid = ?;");
+        final Cursor cursor = db.rawQuery("SELECT rowid, " + FIELD_RESOURCES_URL + ", " + FIELD_RESOURCES_DATA + ", " + FIELD_RESOURCES_STATUS + " FROM " + TABLE_RESOURCES + ";", null);
+        int migrated = 0;
+        try {
+            while (cursor.moveToNext()) {
+                final String url = cursor.getString(1);
+                if (url == null) {
+                    continue;
+                }
+                final Matcher matcher = TILE_URL_PATTERN.matcher(url);
+                if (!matcher.find()) {
+                    continue;
+                }
+                final int z = Integer.parseInt(matcher.group(1));
+                final int x = Integer.parseInt(matcher.group(2));
+                final int y = Integer.parseInt(matcher.group(3));
+                if (!isValidTile(z, x, y)) {
+                    continue;
+                }
+
+                insert.clearBindings();
+                insert.bindLong(1, tileId(z, x, y));
+                if (cursor.isNull(2)) {
+                    insert.bindNull(2);
+                } else {
+                    insert.bindBlob(2, cursor.getBlob(2));
+                }
+                if (cursor.isNull(3)) {
+                    insert.bindNull(3);
+                } else {
+                    insert.bindString(3, cursor.getString(3));
+                }
+                insert.executeInsert();
+
+                delete.bindLong(1, cursor.getLong(0));
+                delete.execute();
+                migrated++;
+            }
+        } finally {
+            cursor.close();
+            insert.close();
+            delete.close();
+        }
+        Log.i(TAG, "Migrated " + migrated + " tiles to the " + TABLE_TILES + " table");
+    }
+
+    private static boolean isValidTile(int z, int x, int y) {
+        return z >= 0 && z <= TILE_ID_XY_BITS && x >= 0 && y >= 0 && x < (1 << z) && y < (1 << z);
+    }
+
+    /**
+     * Pack a tile's coordinates into the id used as primary key of the tiles table.
+     *
+     * @param z zoom level, up to 22
+     * @param x tile x
+     * @param y tile y
+     * @return the tile id
+     */
+    public static long tileId(int z, int x, int y) {
+        return ((long) z << (2 * TILE_ID_XY_BITS)) | (((long) x & TILE_ID_XY_MASK) << TILE_ID_XY_BITS) | ((long) y & TILE_ID_XY_MASK);
+    }
+
+    public static int tileIdZ(long tileId) {
+        return (int) (tileId >>> (2 * TILE_ID_XY_BITS));
+    }
+
+    public static int tileIdX(long tileId) {
+        return (int) ((tileId >>> TILE_ID_XY_BITS) & TILE_ID_XY_MASK);
+    }
+
+    public static int tileIdY(long tileId) {
+        return (int) (tileId & TILE_ID_XY_MASK);
+    }
 }
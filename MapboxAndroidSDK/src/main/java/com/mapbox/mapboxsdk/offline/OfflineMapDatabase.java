@@ -8,11 +8,14 @@ import android.util.Log;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.exceptions.OfflineDatabaseException;
 import java.util.Date;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class OfflineMapDatabase implements MapboxConstants {
 
     private static final String TAG = "OfflineMapDatabase";
 
+    private static final String TILE_DATA_QUERY = "SELECT " + OfflineDatabaseHandler.FIELD_TILES_DATA + " FROM " + OfflineDatabaseHandler.TABLE_TILES + " WHERE " + OfflineDatabaseHandler.FIELD_TILES_ID + "=?;";
+
     private Context context;
 
     private SQLiteDatabase db;
@@ -26,6 +29,9 @@ public class OfflineMapDatabase implements MapboxConstants {
     private boolean invalid;
     private boolean initializedProperly = false;
 
+    // Lookups hold the read lock, so the database isn't closed under them
+    private final ReentrantReadWriteLock lookupLock = new ReentrantReadWriteLock();
+
     /**
      * Default Constructor
      *
@@ -109,6 +115,18 @@ public class OfflineMapDatabase implements MapboxConstants {
         return data;
     }
 
+    /**
+     * Get the image data of a tile, looked up by its packed tile id rather than by url.
+     *
+     * @param z zoom level
+     * @param x tile x
+     * @param y tile y
+     * @return the tile data or null if the database doesn't have it
+     */
+    public byte[] dataForTile(int z, int x, int y) throws OfflineDatabaseException {
+        return sqliteDataForTileId(OfflineDatabaseHandler.tileId(z, x, y));
+    }
+
     public void invalidate() {
         this.invalid = false;
     }
@@ -142,27 +160,59 @@ public class OfflineMapDatabase implements MapboxConstants {
         if (mapID == null) {
             return null;
         }
-        SQLiteDatabase db = database();
-        if (db == null) {
-            return null;
+        lookupLock.readLock().lock();
+        try {
+            SQLiteDatabase db = database();
+            if (db == null) {
+                return null;
+            }
+
+            String query = "SELECT " + OfflineDatabaseHandler.FIELD_RESOURCES_DATA + " FROM " + OfflineDatabaseHandler.TABLE_RESOURCES + " WHERE " + OfflineDatabaseHandler.FIELD_RESOURCES_URL + "=?;";
+            String[] selectionArgs = new String[] { url };
+            Cursor cursor = db.rawQuery(query, selectionArgs);
+            if (cursor == null) {
+                return null;
+            }
+
+            byte[] res = null;
+            if (cursor.moveToFirst()) {
+                res = cursor.getBlob(cursor.getColumnIndex(OfflineDatabaseHandler.FIELD_RESOURCES_DATA));
+            }
+            cursor.close();
+            return res;
+        } finally {
+            lookupLock.readLock().unlock();
         }
+    }
 
-        String query = "SELECT " + OfflineDatabaseHandler.FIELD_RESOURCES_DATA + " FROM " + OfflineDatabaseHandler.TABLE_RESOURCES + " WHERE " + OfflineDatabaseHandler.FIELD_RESOURCES_URL + "=?;";
-        String[] selectionArgs = new String[] { url };
-        Cursor cursor = db.rawQuery(query, selectionArgs);
-        if (cursor == null) {
+    public byte[] sqliteDataForTileId(long tileId) {
+        if (mapID == null) {
             return null;
         }
-
-        byte[] res = null;
-        if (cursor.moveToFirst()) {
-            res = cursor.getBlob(cursor.getColumnIndex(OfflineDatabaseHandler.FIELD_RESOURCES_DATA));
+        lookupLock.readLock().lock();
+        try {
+            SQLiteDatabase db = database();
+            if (db == null) {
+                return null;
+            }
+            String[] selectionArgs = new String[] { Long.toString(tileId) };
+            Cursor cursor = db.rawQuery(TILE_DATA_QUERY, selectionArgs);
+            if (cursor == null) {
+                return null;
+            }
+
+            byte[] res = null;
+            if (cursor.moveToFirst()) {
+                res = cursor.getBlob(0);
+            }
+            cursor.close();
+            return res;
+        } finally {
+            lookupLock.readLock().unlock();
         }
-        cursor.close();
-        return res;
     }
 
-    private SQLiteDatabase database() {
+    private synchronized SQLiteDatabase database() {
         if (db == null) {
             db = OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(mapID).getReadableDatabase();
         }
@@ -172,10 +222,20 @@ public class OfflineMapDatabase implements MapboxConstants {
         return db;
     }
 
+    /**
+     * Closes the database once the lookups in progress have ended.
+     */
     public void closeDatabase() {
-        if (db != null && db.isOpen()) {
-            db.close();
+        lookupLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (db != null && db.isOpen()) {
+                    db.close();
+                }
+                db = null;
+            }
+        } finally {
+            lookupLock.writeLock().unlock();
         }
-        db = null;
     }
 }
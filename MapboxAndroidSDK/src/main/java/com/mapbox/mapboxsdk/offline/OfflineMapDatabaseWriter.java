@@ -0,0 +1,391 @@
+package com.mapbox.mapboxsdk.offline;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes downloaded offline map data from a single thread. Downloads are queued and committed in
+ * batches, one transaction per batch, either when the batch is full or when its oldest entry has
+ * waited long enough. No more than one batch of downloads is ever waiting to be committed:
+ * producers block until the pending batch is written. A crash loses at most that batch; its rows
+ * are still marked as not downloaded.
+ */
+class OfflineMapDatabaseWriter implements Runnable {
+
+    private static final String TAG = "OfflineMapDatabaseWriter";
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_BATCH_INTERVAL_MS = 1000;
+
+    /**
+     * Callbacks, all invoked on the writer thread.
+     */
+    interface Listener {
+        /**
+         * A downloaded resource or tile has been committed. Called once per entry, after the
+         * transaction of its batch. Not called for recorded failures.
+         *
+         * @param url the url of the resource, or null for a tile
+         * @param tileId the id of the tile, or -1 for a resource
+         */
+        void dataWritten(String url, long tileId);
+
+        void writeFailed(Throwable error);
+
+        /**
+         * The writer has committed its last batch and released its statements.
+         *
+         * @param writer the writer that finished
+         */
+        void writerFinished(OfflineMapDatabaseWriter writer);
+    }
+
+    private static final class PendingWrite {
+        final String url;
+        final long tileId;
+        final byte[] data;
+        final boolean failed;
+
+        PendingWrite(String url, long tileId, byte[] data, boolean failed) {
+            this.url = url;
+            this.tileId = tileId;
+            this.data = data;
+            this.failed = failed;
+        }
+    }
+
+    private static final PendingWrite STOP = new PendingWrite(null, -1, null, false);
+
+    private final SQLiteDatabase db;
+    private final Listener listener;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+    // One permit per download that may be queued or collected but not yet committed
+    private final Semaphore uncommitted;
+    private final int batchSize;
+    private final long batchIntervalMs;
+    private volatile boolean finishing = false;
+
+    private SQLiteStatement saveTileStatement;
+    private SQLiteStatement saveResourceStatement;
+    private SQLiteStatement failTileStatement;
+    private SQLiteStatement failResourceStatement;
+
+    OfflineMapDatabaseWriter(SQLiteDatabase db, Listener listener, int batchSize, long batchIntervalMs) {
+        this.db = db;
+        this.listener = listener;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchIntervalMs = Math.max(0, batchIntervalMs);
+        this.uncommitted = new Semaphore(this.batchSize);
+    }
+
+    public void start() {
+        enableWriteAheadLogging(db);
+        Thread thread = new Thread(this, TAG);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    /**
+     * Queue a downloaded tile, blocking while a full batch is waiting to be committed.
+     *
+     * @return false if the writer is finishing and the data was dropped
+     */
+    public boolean saveTile(long tileId, byte[] data) throws InterruptedException {
+        return enqueue(new PendingWrite(null, tileId, data, false));
+    }
+
+    /**
+     * Queue a downloaded resource, blocking while a full batch is waiting to be committed.
+     *
+     * @return false if the writer is finishing and the data was dropped
+     */
+    public boolean saveResource(String url, byte[] data) throws InterruptedException {
+        return enqueue(new PendingWrite(url, -1, data, false));
+    }
+
+    /**
+     * Queue a failed download: its row is marked as failed and its retry count is incremented.
+     *
+     * @param url the url of the resource, or null for a tile
+     * @param tileId the id of the tile, or -1 for a resource
+     * @return false if the writer is finishing and the failure was dropped
+     */
+    public boolean saveFailure(String url, long tileId) throws InterruptedException {
+        return enqueue(new PendingWrite(url, tileId, null, true));
+    }
+
+    /**
+     * Commit what has been queued so far and stop the writer thread.
+     */
+    public void finish() {
+        finishing = true;
+        queue.offer(STOP);
+    }
+
+    /**
+     * Drop what has been queued and stop the writer thread, the download is being canceled.
+     * {@link Listener#writerFinished(OfflineMapDatabaseWriter)} is still called once the batch
+     * being written, if any, is committed.
+     */
+    public void discard() {
+        finishing = true;
+        dropQueued();
+        queue.offer(STOP);
+    }
+
+    public boolean isFinishing() {
+        return finishing;
+    }
+
+    private boolean enqueue(PendingWrite write) throws InterruptedException {
+        if (finishing) {
+            return false;
+        }
+        uncommitted.acquire();
+        if (finishing) {
+            // Woken up by the writer letting go of its last downloads
+            uncommitted.release();
+            return false;
+        }
+        queue.put(write);
+        return true;
+    }
+
+    /**
+     * Drop the queued downloads and hand their permits back, so producers blocked on them can
+     * find out the writer is finishing.
+     */
+    private void dropQueued() {
+        final ArrayList<PendingWrite> dropped = new ArrayList<PendingWrite>();
+        queue.drainTo(dropped);
+        int count = 0;
+        for (PendingWrite write : dropped) {
+            if (write != STOP) {
+                count++;
+            }
+        }
+        uncommitted.release(count);
+    }
+
+    @Override
+    public void run() {
+        final ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>(batchSize);
+        boolean running = true;
+        try {
+            while (running) {
+                final PendingWrite first = queue.take();
+                if (first == STOP) {
+                    break;
+                }
+                batch.add(first);
+
+                final long deadline = SystemClock.uptimeMillis() + batchIntervalMs;
+                while (batch.size() < batchSize) {
+                    final long wait = deadline - SystemClock.uptimeMillis();
+                    final PendingWrite next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    if (next == STOP) {
+                        running = false;
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                writeBatch(batch);
+                uncommitted.release(batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Writer interrupted, " + batch.size() + " downloads were not saved");
+        } finally {
+            finishing = true;
+            uncommitted.release(batch.size());
+            dropQueued();
+            closeStatements();
+            listener.writerFinished(this);
+        }
+    }
+
+    private void writeBatch(ArrayList<PendingWrite> batch) {
+        boolean success = false;
+        db.beginTransaction();
+        try {
+            for (PendingWrite write : batch) {
+                if (write.failed) {
+                    final SQLiteStatement statement;
+                    if (write.url == null) {
+                        statement = getFailTileStatement();
+                        statement.bindLong(1, write.tileId);
+                    } else {
+                        statement = getFailResourceStatement();
+                        statement.bindString(1, write.url);
+                    }
+                    statement.execute();
+                } else if (write.url == null) {
+                    final SQLiteStatement statement = getSaveTileStatement();
+                    statement.bindLong(1, write.tileId);
+                    statement.bindBlob(2, write.data);
+                    statement.executeInsert();
+                } else {
+                    final SQLiteStatement statement = getSaveResourceStatement();
+                    statement.bindString(1, write.url);
+                    statement.bindBlob(2, write.data);
+                    statement.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+            success = true;
+        } catch (SQLException e) {
+            Log.e(TAG, "Error saving a batch of " + batch.size() + " downloads", e);
+            listener.writeFailed(e);
+        } finally {
+            db.endTransaction();
+        }
+
+        if (success) {
+            for (PendingWrite write : batch) {
+                if (!write.failed) {
+                    listener.dataWritten(write.url, write.tileId);
+                }
+            }
+        } else {
+            markBatchFailed(batch);
+        }
+    }
+
+    /**
+     * The transaction of a batch was rolled back, leaving its rows in flight. Mark them as failed
+     * so the download retries them before it completes, instead of on the next start.
+     */
+    private void markBatchFailed(ArrayList<PendingWrite> batch) {
+        db.beginTransaction();
+        try {
+            for (PendingWrite write : batch) {
+                final SQLiteStatement statement;
+                if (write.url == null) {
+                    statement = getFailTileStatement();
+                    statement.bindLong(1, write.tileId);
+                } else {
+                    statement = getFailResourceStatement();
+                    statement.bindString(1, write.url);
+                }
+                statement.execute();
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error marking a batch of " + batch.size() + " downloads as failed", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private SQLiteStatement getSaveTileStatement() {
+        if (saveTileStatement == null) {
+            saveTileStatement = db.compileStatement("INSERT OR REPLACE INTO " + OfflineDatabaseHandler.TABLE_TILES
+                    + " (" + OfflineDatabaseHandler.FIELD_TILES_ID + ", " + OfflineDatabaseHandler.FIELD_TILES_DATA + ", " + OfflineDatabaseHandler.FIELD_TILES_STATUS
+                    + ") VALUES (?, ?, '" + OfflineDatabaseHandler.STATUS_DONE + "');");
+        }
+        return saveTileStatement;
+    }
+
+    private SQLiteStatement getSaveResourceStatement() {
+        if (saveResourceStatement == null) {
+            saveResourceStatement = db.compileStatement("INSERT OR REPLACE INTO " + OfflineDatabaseHandler.TABLE_RESOURCES
+                    + " (" + OfflineDatabaseHandler.FIELD_RESOURCES_URL + ", " + OfflineDatabaseHandler.FIELD_RESOURCES_DATA + ", " + OfflineDatabaseHandler.FIELD_RESOURCES_STATUS
+                    + ") VALUES (?, ?, '" + OfflineDatabaseHandler.STATUS_DONE + "');");
+        }
+        return saveResourceStatement;
+    }
+
+    private SQLiteStatement getFailTileStatement() {
+        if (failTileStatement == null) {
+            failTileStatement = db.compileStatement("UPDATE " + OfflineDatabaseHandler.TABLE_TILES
+                    + " SET " + OfflineDatabaseHandler.FIELD_TILES_STATUS + " = '" + OfflineDatabaseHandler.STATUS_FAILED + "', "
+                    + OfflineDatabaseHandler.FIELD_TILES_RETRIES + " = " + OfflineDatabaseHandler.FIELD_TILES_RETRIES + " + 1"
+                    + " WHERE " + OfflineDatabaseHandler.FIELD_TILES_ID + " = ?;");
+        }
+        return failTileStatement;
+    }
+
+    private SQLiteStatement getFailResourceStatement() {
+        if (failResourceStatement == null) {
+            failResourceStatement = db.compileStatement("UPDATE " + OfflineDatabaseHandler.TABLE_RESOURCES
+                    + " SET " + OfflineDatabaseHandler.FIELD_RESOURCES_STATUS + " = '" + OfflineDatabaseHandler.STATUS_FAILED + "', "
+                    + OfflineDatabaseHandler.FIELD_RESOURCES_RETRIES + " = " + OfflineDatabaseHandler.FIELD_RESOURCES_RETRIES + " + 1"
+                    + " WHERE " + OfflineDatabaseHandler.FIELD_RESOURCES_URL + " = ?;");
+        }
+        return failResourceStatement;
+    }
+
+    private void closeStatements() {
+        if (saveTileStatement != null) {
+            saveTileStatement.close();
+            saveTileStatement = null;
+        }
+        if (saveResourceStatement != null) {
+            saveResourceStatement.close();
+            saveResourceStatement = null;
+        }
+        if (failTileStatement != null) {
+            failTileStatement.close();
+            failTileStatement = null;
+        }
+        if (failResourceStatement != null) {
+            failResourceStatement.close();
+            failResourceStatement = null;
+        }
+    }
+
+    /**
+     * WAL lets a batch commit without rewriting the rollback journal, and keeps readers from
+     * blocking the writer. Only available from Honeycomb on.
+     */
+    static void enableWriteAheadLogging(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            SQLiteDatabaseHoneycomb.enableWriteAheadLogging(db);
+        }
+    }
+
+    /**
+     * The journal mode is stored in the database file, so a completed database has to be switched
+     * back before it is renamed: its -wal file would not follow it.
+     */
+    static void disableWriteAheadLogging(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            SQLiteDatabaseJellyBean.disableWriteAheadLogging(db);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Cursor cursor = db.rawQuery("PRAGMA journal_mode=DELETE;", null);
+            cursor.moveToFirst();
+            cursor.close();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static class SQLiteDatabaseHoneycomb {
+        static void enableWriteAheadLogging(SQLiteDatabase db) {
+            if (!db.enableWriteAheadLogging()) {
+                Log.w(TAG, "Write-ahead logging couldn't be enabled for " + db.getPath());
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class SQLiteDatabaseJellyBean {
+        static void disableWriteAheadLogging(SQLiteDatabase db) {
+            db.disableWriteAheadLogging();
+        }
+    }
+}
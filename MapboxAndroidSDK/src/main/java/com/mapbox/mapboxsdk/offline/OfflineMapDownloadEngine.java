@@ -0,0 +1,279 @@
+package com.mapbox.mapboxsdk.offline;
+
+import android.os.Process;
+import android.util.Log;
+import com.mapbox.mapboxsdk.util.MapboxUtils;
+import com.mapbox.mapboxsdk.util.NetworkUtils;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the files of an offline map on a fixed number of worker threads. Each worker pulls
+ * the next file from a {@link Source} as soon as it is done with the previous one, so there is
+ * never more than one download per worker in flight and no queue of pending tasks to grow.
+ * <p/>
+ * All workers share a clone of the SDK's {@link OkHttpClient} (see
+ * {@link NetworkUtils#getHttpClient()}), so consecutive requests to the tile servers reuse the
+ * pooled connections (and their TLS sessions) of the map itself. Server errors and timeouts are
+ * retried with an exponential backoff.
+ */
+class OfflineMapDownloadEngine {
+
+    private static final String TAG = "OfflineMapDownloadEngine";
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 500;
+    public static final long MAX_BACKOFF_MS = 30000;
+
+    private static final long CONNECT_TIMEOUT_MS = 15000;
+    private static final long READ_TIMEOUT_MS = 30000;
+    private static final int READ_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * A file to download: either a resource, keyed by its url, or a tile, keyed by its id.
+     */
+    static final class Download {
+        final String url;
+        final long tileId;
+
+        Download(String url, long tileId) {
+            this.url = url;
+            this.tileId = tileId;
+        }
+
+        boolean isTile() {
+            return tileId >= 0;
+        }
+    }
+
+    /**
+     * Hands out the files to download. Called concurrently by the workers.
+     */
+    interface Source {
+        /**
+         * @return the next file to download, or null when there is nothing left
+         */
+        Download next();
+    }
+
+    /**
+     * Results of the downloads, invoked on the worker threads.
+     */
+    interface Callback {
+        void downloaded(Download download, byte[] data);
+
+        /**
+         * @param download the file that couldn't be downloaded
+         * @param statusCode the last HTTP status received, or -1 if the last attempt failed
+         * before getting a response
+         * @param error the last error, if any
+         */
+        void failed(Download download, int statusCode, Throwable error);
+
+        /**
+         * Every worker has run out of files, or the engine has been cancelled.
+         */
+        void finished();
+    }
+
+    private final OkHttpClient client;
+    private final int concurrency;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final Source source;
+    private final Callback callback;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private ExecutorService executor;
+    private volatile boolean cancelled = false;
+
+    OfflineMapDownloadEngine(Source source, Callback callback, int concurrency) {
+        this(source, callback, concurrency, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MS);
+    }
+
+    OfflineMapDownloadEngine(Source source, Callback callback, int concurrency, int maxAttempts, long initialBackoffMs) {
+        this.source = source;
+        this.callback = callback;
+        this.concurrency = Math.max(1, concurrency);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMs = initialBackoffMs;
+
+        client = NetworkUtils.getHttpClient().clone();
+        client.setConnectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        client.setReadTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        // Retries are handled here, with a backoff
+        client.setRetryOnConnectionFailure(false);
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, TAG + " #" + count.incrementAndGet());
+            }
+        });
+        activeWorkers.set(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(new Worker());
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Stop handing out files and abort the downloads in flight. Their results are dropped.
+     * <p/>
+     * Interrupting a worker doesn't unblock a socket read, so the calls of this engine are tagged
+     * and cancelled through the client, which closes their connections right away.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        client.cancel(this);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for the workers to stop after {@link #cancel()}.
+     *
+     * @param timeoutMs how long to wait at most
+     * @return true if the workers have stopped
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        final ExecutorService executor;
+        synchronized (this) {
+            executor = this.executor;
+        }
+        return executor == null || executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private class Worker implements Runnable {
+        // Reused across the downloads of this worker for bodies of unknown length
+        private byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                Download download;
+                while (!cancelled && (download = source.next()) != null) {
+                    download(download);
+                }
+            } finally {
+                if (activeWorkers.decrementAndGet() == 0) {
+                    callback.finished();
+                }
+            }
+        }
+
+        private void download(Download download) {
+            int statusCode = -1;
+            Throwable error = null;
+            for (int attempt = 0; attempt < maxAttempts && !cancelled; attempt++) {
+                if (attempt > 0 && !backoff(attempt)) {
+                    return;
+                }
+                try {
+                    final Request request = new Request.Builder()
+                            .url(download.url)
+                            .header("User-Agent", MapboxUtils.getUserAgent())
+                            .tag(OfflineMapDownloadEngine.this)
+                            .build();
+                    final Response response = client.newCall(request).execute();
+                    final ResponseBody body = response.body();
+                    try {
+                        statusCode = response.code();
+                        if (statusCode == HttpURLConnection.HTTP_OK) {
+                            final byte[] data = readBody(body);
+                            if (!cancelled) {
+                                callback.downloaded(download, data);
+                            }
+                            return;
+                        }
+                        error = null;
+                        if (!isRetryable(statusCode)) {
+                            break;
+                        }
+                        Log.w(TAG, "HTTP " + statusCode + " for " + download.url + ", attempt " + (attempt + 1) + " of " + maxAttempts);
+                    } finally {
+                        body.close();
+                    }
+                } catch (IOException e) {
+                    // Timeouts, connection resets, dns failures: all worth another try
+                    statusCode = -1;
+                    error = e;
+                    Log.w(TAG, "Failed to download " + download.url + ", attempt " + (attempt + 1) + " of " + maxAttempts + ": " + e.getMessage());
+                }
+            }
+            if (!cancelled) {
+                callback.failed(download, statusCode, error);
+            }
+        }
+
+        /**
+         * Read the whole body. When the length is known the data is read straight into its final
+         * array, otherwise it goes through the worker's read buffer and is copied once.
+         */
+        private byte[] readBody(ResponseBody body) throws IOException {
+            final long contentLength = body.contentLength();
+            final InputStream is = body.byteStream();
+            if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+                final byte[] data = new byte[(int) contentLength];
+                int offset = 0;
+                while (offset < data.length) {
+                    final int n = is.read(data, offset, data.length - offset);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of body after " + offset + " of " + contentLength + " bytes");
+                    }
+                    offset += n;
+                }
+                return data;
+            }
+
+            int length = 0;
+            int n;
+            while ((n = is.read(readBuffer, length, readBuffer.length - length)) >= 0) {
+                length += n;
+                if (length == readBuffer.length) {
+                    readBuffer = Arrays.copyOf(readBuffer, readBuffer.length * 2);
+                }
+            }
+            return Arrays.copyOf(readBuffer, length);
+        }
+
+        private boolean backoff(int attempt) {
+            final long delay = Math.min(MAX_BACKOFF_MS, initialBackoffMs << (attempt - 1));
+            try {
+                Thread.sleep(delay);
+                return true;
+            } catch (InterruptedException e) {
+                // Cancelled
+                return false;
+            }
+        }
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode >= 500 || statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || statusCode == 429;
+    }
+}
@@ -5,9 +5,12 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.AsyncTask;
 import android.text.TextUtils;
 import android.util.Log;
+import com.cocoahero.android.geojson.MultiPolygon;
+import com.cocoahero.android.geojson.Polygon;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.geometry.CoordinateRegion;
 import com.mapbox.mapboxsdk.util.AppUtils;
@@ -18,21 +21,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
 
@@ -40,6 +41,25 @@ public class OfflineMapDownloader implements MapboxConstants {
 
     private static final String TAG = "OfflineMapDownloader";
 
+    /**
+     * Number of queued files marked as in flight at once. The download workers go back to the
+     * database for more when a page runs out, so no cursor stays open during the download.
+     */
+    private static final int DOWNLOAD_PAGE_SIZE = 256;
+
+    /**
+     * How many passes a file gets before a download completes without it. Each pass already
+     * retries server errors and timeouts with a backoff.
+     */
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+
+    /**
+     * How long a cancel waits for the download workers to give up before deleting the partial
+     * database. Their calls are cancelled with the engine, so this only covers a callback that is
+     * still writing a result.
+     */
+    private static final long ENGINE_TERMINATION_TIMEOUT_MS = 5000;
+
     private static OfflineMapDownloader offlineMapDownloader;
 
     private ArrayList<OfflineMapDownloaderListener> listeners;
@@ -70,88 +90,6 @@ public class OfflineMapDownloader implements MapboxConstants {
         MBXOfflineMapDownloaderStateAvailable
     }
 
-    private class OfflineMapDownloadTaskManager {
-
-        private Iterator<String> itr;
-        private int concurrentCount;
-
-        public OfflineMapDownloadTaskManager(Iterator<String> itr, int concurrentCount) {
-            this.itr = itr;
-            this.concurrentCount = concurrentCount;
-        }
-
-        public void start() {
-            for (int i = 0; i < concurrentCount; i++) {
-                startDownloadTask();
-            }
-        }
-
-        private void startDownloadTask() {
-            if (!itr.hasNext()) {
-                return;
-            }
-/*
-            if (!NetworkUtils.isNetworkAvailable(context)) {
-                Log.w(TAG, "Network is no longer available.");
-//                    [self notifyDelegateOfNetworkConnectivityError:error];
-            }
-*/
-            AsyncTask<String, Void, Void> task = new AsyncTask<String, Void, Void>() {
-                @Override
-                protected Void doInBackground(String... params) {
-                    HttpURLConnection conn = null;
-                    String url = params[0];
-                    try {
-                        conn = NetworkUtils.getHttpURLConnection(new URL(url));
-                        Log.d(TAG, "URL to download = " + conn.getURL().toString());
-                        conn.setConnectTimeout(60000);
-                        conn.connect();
-                        int rc = conn.getResponseCode();
-                        if (rc != HttpURLConnection.HTTP_OK) {
-                            String msg = String.format(MAPBOX_LOCALE, "HTTP Error connection.  Response Code = %d for url = %s", rc, conn.getURL().toString());
-                            Log.w(TAG, msg);
-                            notifyDelegateOfHTTPStatusError(rc, params[0]);
-                            throw new IOException(msg);
-                        }
-
-                        ByteArrayOutputStream bais = new ByteArrayOutputStream();
-                        InputStream is = null;
-                        try {
-                            is = conn.getInputStream();
-                            // Read 4K at a time
-                            byte[] byteChunk = new byte[4096];
-                            int n;
-
-                            while ((n = is.read(byteChunk)) > 0) {
-                                bais.write(byteChunk, 0, n);
-                            }
-                        } catch (IOException e) {
-                            Log.e(TAG, String.format(MAPBOX_LOCALE, "Failed while reading bytes from %s: %s", conn.getURL().toString(), e.getMessage()));
-                            e.printStackTrace();
-                        } finally {
-                            if (is != null) {
-                                is.close();
-                            }
-                            conn.disconnect();
-                        }
-                        sqliteSaveDownloadedData(bais.toByteArray(), url);
-                    } catch (IOException e) {
-                        Log.e(TAG, e.getMessage());
-                        e.printStackTrace();
-                    } finally {
-                        if (conn != null) {
-                            conn.disconnect();
-                        }
-                    }
-
-                    startDownloadTask();
-                    return null;
-                }
-            };
-            task.execute(itr.next());
-        }
-    }
-
     private String uniqueID;
     private String mapID;
     private boolean includesMetadata;
@@ -160,10 +98,17 @@ public class OfflineMapDownloader implements MapboxConstants {
     private CoordinateRegion mapRegion;
     private int minimumZ;
     private int maximumZ;
-    private MBXOfflineMapDownloaderState state;
+    private volatile MBXOfflineMapDownloaderState state;
     private int totalFilesWritten;
     private int totalFilesExpectedToWrite;
 
+    private OfflineMapDownloadEngine downloadEngine;
+    private int downloadConcurrency = OfflineMapDownloadEngine.DEFAULT_CONCURRENCY;
+
+    private OfflineMapDatabaseWriter databaseWriter;
+    private int writeBatchSize = OfflineMapDatabaseWriter.DEFAULT_BATCH_SIZE;
+    private long writeBatchIntervalMs = OfflineMapDatabaseWriter.DEFAULT_BATCH_INTERVAL_MS;
+
 
     private ArrayList<OfflineMapDatabase> mutableOfflineMapDatabases;
 
@@ -189,8 +134,12 @@ public class OfflineMapDownloader implements MapboxConstants {
         mutableOfflineMapDatabases = new ArrayList<OfflineMapDatabase>();
         // Load OfflineMapDatabases from File System
         ContextWrapper cw = new ContextWrapper(context);
+        String partialDatabaseName = null;
         for (String s : cw.databaseList()) {
-            if (!s.toLowerCase().contains("partial") && !s.toLowerCase().contains("journal")) {
+            if (s.endsWith("-PARTIAL")) {
+                // A download that was interrupted, possibly by the process being killed
+                partialDatabaseName = s;
+            } else if (!s.toLowerCase().contains("partial") && !s.toLowerCase().contains("journal") && !s.endsWith("-wal") && !s.endsWith("-shm")) {
                 // Setup Database Handler
                 OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(s, true);
 
@@ -202,6 +151,55 @@ public class OfflineMapDownloader implements MapboxConstants {
         }
 
         this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable;
+        if (partialDatabaseName != null) {
+            restorePartialDownload(partialDatabaseName);
+        }
+    }
+
+    /**
+     * Pick up the metadata of an interrupted download so it can be resumed. The downloader is
+     * left suspended; call {@link #resume()} to carry on from where the download stopped, or
+     * {@link #cancel()} to discard it.
+     */
+    private void restorePartialDownload(String databaseName) {
+        this.mapID = databaseName.substring(0, databaseName.length() - "-PARTIAL".length());
+        String mapID = sqliteMetadataForName("mapID");
+        String uniqueID = sqliteMetadataForName("uniqueID");
+        String includesMetadata = sqliteMetadataForName("includesMetadata");
+        String includesMarkers = sqliteMetadataForName("includesMarkers");
+        String imageQuality = sqliteMetadataForName("imageQuality");
+
+        if (TextUtils.isEmpty(mapID) || TextUtils.isEmpty(includesMetadata) || TextUtils.isEmpty(includesMarkers) || TextUtils.isEmpty(imageQuality)) {
+            // The database is only populated in a single transaction, so this one never got its list of files
+            Log.w(TAG, "Partial offline map database '" + databaseName + "' has no metadata, it can't be resumed.");
+            closeDatabase();
+            this.mapID = null;
+            return;
+        }
+
+        this.mapID = mapID;
+        this.uniqueID = uniqueID;
+        this.includesMetadata = "YES".equalsIgnoreCase(includesMetadata);
+        this.includesMarkers = "YES".equalsIgnoreCase(includesMarkers);
+        this.imageQuality = RasterImageQuality.getEnumForValue(Integer.parseInt(imageQuality));
+        sqliteQueryWrittenAndExpectedCountsWithError();
+        this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended;
+        Log.i(TAG, String.format(MAPBOX_LOCALE, "Found an interrupted download of '%s' with %d of %d files written", mapID, totalFilesWritten, totalFilesExpectedToWrite));
+    }
+
+    private String sqliteMetadataForName(String name) {
+        String query = "SELECT " + OfflineDatabaseHandler.FIELD_METADATA_VALUE + " FROM " + OfflineDatabaseHandler.TABLE_METADATA + " WHERE " + OfflineDatabaseHandler.FIELD_METADATA_NAME + "=?;";
+        Cursor cursor = database().rawQuery(query, new String[] { name });
+        String res = null;
+        if (cursor.moveToFirst()) {
+            res = cursor.getString(0);
+        }
+        cursor.close();
+        return res;
+    }
+
+    public MBXOfflineMapDownloaderState getState() {
+        return state;
     }
 
     public static OfflineMapDownloader getOfflineMapDownloader(Context context) {
@@ -219,6 +217,51 @@ public class OfflineMapDownloader implements MapboxConstants {
         return listeners.remove(listener);
     }
 
+    /**
+     * Set how many files of an offline map are downloaded at the same time. Each download keeps
+     * its own connection alive and reuses it for the next file. Takes effect with the next
+     * download.
+     *
+     * @param downloadConcurrency number of concurrent downloads
+     */
+    public void setDownloadConcurrency(int downloadConcurrency) {
+        this.downloadConcurrency = downloadConcurrency;
+    }
+
+    public int getDownloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    /**
+     * Set how many downloaded files are committed to the database in a single transaction.
+     * Larger batches mean fewer disk syncs; a crash loses at most one batch, which will be
+     * downloaded again. Downloads wait while a full batch is pending, so this also bounds how
+     * much downloaded data is held in memory. Takes effect with the next download.
+     *
+     * @param writeBatchSize number of files per transaction
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    /**
+     * Set how long a downloaded file can wait for its batch to fill up before the batch is
+     * committed anyway. Takes effect with the next download.
+     *
+     * @param writeBatchIntervalMs maximum wait in milliseconds
+     */
+    public void setWriteBatchInterval(long writeBatchIntervalMs) {
+        this.writeBatchIntervalMs = writeBatchIntervalMs;
+    }
+
+    public long getWriteBatchInterval() {
+        return writeBatchIntervalMs;
+    }
+
 /*
     Delegate Notifications
 */
@@ -278,6 +321,7 @@ public class OfflineMapDownloader implements MapboxConstants {
         // Rename database file (remove -PARTIAL) and update path in db object, update path in OfflineMapDatabase, create new Handler
         SQLiteDatabase db = database();
         String dbPath = db.getPath();
+        OfflineMapDatabaseWriter.disableWriteAheadLogging(db);
         closeDatabase();
 
         if (dbPath.endsWith("-PARTIAL")) {
@@ -332,27 +376,126 @@ public class OfflineMapDownloader implements MapboxConstants {
         }
 */
 
+        // Files left in flight by a suspended or killed download go back in the queue
+        sqliteRequeueFilesWithStatus(OfflineDatabaseHandler.STATUS_IN_FLIGHT, Integer.MAX_VALUE);
+
         // Update expected files numbers (totalFilesExpectedToWrite and totalFilesWritten)
         sqliteQueryWrittenAndExpectedCountsWithError();
         Log.d(TAG, String.format(MAPBOX_LOCALE, "totalFilesExpectedToWrite = %d, totalFilesWritten = %d", this.totalFilesExpectedToWrite, this.totalFilesWritten));
 
-//        [_sqliteQueue addOperationWithBlock:^{
-        // Get the actual URLs
-        Iterator<String> urlIter = sqliteReadOfflineMapURLsToBeDownloadedLimit(-1);
-        if (urlIter == null) {
-            // The operation failed for one reason or another (e.g. we're on the main thread).
-            closeDatabase();
-            return;
+        // Once the engine runs out of queued files, checkDownloadComplete() decides whether the download is done.
+        DownloadEngineCallback callback = new DownloadEngineCallback();
+        OfflineMapDownloadEngine engine = new OfflineMapDownloadEngine(new DownloadSource(), callback, downloadConcurrency);
+        callback.engine = engine;
+        synchronized (this) {
+            downloadEngine = engine;
+        }
+        engine.start();
+    }
+
+    /**
+     * Hands out the resources first, which are keyed by url, then the tiles, which are keyed by
+     * their packed id and only get a url when they are about to be downloaded. Files are read a
+     * page at a time and marked as in flight, so the next page picks up where this one ended.
+     */
+    private class DownloadSource implements OfflineMapDownloadEngine.Source {
+        private final ArrayDeque<OfflineMapDownloadEngine.Download> page = new ArrayDeque<OfflineMapDownloadEngine.Download>(DOWNLOAD_PAGE_SIZE);
+        private boolean exhausted = false;
+
+        @Override
+        public synchronized OfflineMapDownloadEngine.Download next() {
+            if (page.isEmpty() && !exhausted) {
+                readNextPage();
+            }
+            return page.poll();
         }
 
-        if (!urlIter.hasNext()) {
-            // All files are downloaded, but hasn't been persisted yet.
-            finishUpDownloadProcess();
-            return;
+        private void readNextPage() {
+            // Holding the downloader's lock keeps a cancel from deleting the database under the page
+            synchronized (OfflineMapDownloader.this) {
+                if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+                    exhausted = true;
+                    return;
+                }
+                readNextPageLocked();
+            }
         }
 
-        OfflineMapDownloadTaskManager manager = new OfflineMapDownloadTaskManager(urlIter, 8);
-        manager.start();
+        private void readNextPageLocked() {
+            Iterator<String> urlIter = sqliteReadOfflineMapURLsToBeDownloadedLimit(DOWNLOAD_PAGE_SIZE);
+            while (urlIter != null && urlIter.hasNext()) {
+                page.add(new OfflineMapDownloadEngine.Download(urlIter.next(), -1));
+            }
+            if (page.isEmpty()) {
+                Iterator<Long> tileIdIter = sqliteReadOfflineMapTileIdsToBeDownloadedLimit(DOWNLOAD_PAGE_SIZE);
+                while (tileIdIter != null && tileIdIter.hasNext()) {
+                    long tileId = tileIdIter.next();
+                    String url = MapboxUtils.getMapTileURL(context, mapID, OfflineDatabaseHandler.tileIdZ(tileId), OfflineDatabaseHandler.tileIdX(tileId), OfflineDatabaseHandler.tileIdY(tileId), imageQuality);
+                    page.add(new OfflineMapDownloadEngine.Download(url, tileId));
+                }
+            }
+
+            if (page.isEmpty()) {
+                exhausted = true;
+            } else {
+                sqliteMarkFilesInFlight(page);
+            }
+        }
+    }
+
+    private class DownloadEngineCallback implements OfflineMapDownloadEngine.Callback {
+        OfflineMapDownloadEngine engine;
+
+        @Override
+        public void downloaded(OfflineMapDownloadEngine.Download download, byte[] data) {
+            if (download.isTile()) {
+                sqliteSaveDownloadedTileData(data, download.tileId);
+            } else {
+                sqliteSaveDownloadedData(data, download.url);
+            }
+        }
+
+        @Override
+        public void failed(OfflineMapDownloadEngine.Download download, int statusCode, Throwable error) {
+            if (statusCode < 0 && !NetworkUtils.isNetworkAvailable(context)) {
+                // The connection is gone. Leave the file in flight, it is queued again when the download is resumed.
+                if (state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+                    Log.w(TAG, "Network is no longer available, suspending the download.");
+                    notifyDelegateOfNetworkConnectivityError(error);
+                }
+                suspend();
+                return;
+            }
+
+            if (statusCode > 0) {
+                Log.w(TAG, String.format(MAPBOX_LOCALE, "HTTP Error connection.  Response Code = %d for url = %s", statusCode, download.url));
+                notifyDelegateOfHTTPStatusError(statusCode, download.url);
+            } else {
+                Log.e(TAG, String.format(MAPBOX_LOCALE, "Failed to download %s", download.url), error);
+                notifyDelegateOfNetworkConnectivityError(error);
+            }
+            sqliteSaveDownloadFailure(download.url, download.tileId);
+        }
+
+        @Override
+        public void finished() {
+            OfflineMapDatabaseWriter writer;
+            synchronized (OfflineMapDownloader.this) {
+                if (downloadEngine != engine) {
+                    // Suspended, or replaced by a later pass
+                    return;
+                }
+                downloadEngine = null;
+                writer = databaseWriter;
+            }
+            Log.d(TAG, "Download engine has no more files to download");
+            if (writer != null) {
+                // checkDownloadComplete() runs once the writer has committed everything
+                writer.finish();
+            } else {
+                checkDownloadComplete();
+            }
+        }
     }
 
 /*
@@ -375,23 +518,132 @@ public class OfflineMapDownloader implements MapboxConstants {
             return;
         }
 
-        // Open the database read-write and multi-threaded. The slightly obscure c-style variable names here and below are
-        // used to stay consistent with the sqlite documentaion.
-        // Continue by inserting an image blob into the data table
+        // Hand the data over to the writer thread, which commits it with the rest of its batch
         //
-        SQLiteDatabase db = database();
-        db.beginTransaction();
+        OfflineMapDatabaseWriter writer = getDatabaseWriter();
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.saveResource(url, data);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while queueing " + url + " to be saved");
+        }
+    }
 
-//      String query2 = "INSERT INTO data(value) VALUES(?);";
-        ContentValues values = new ContentValues();
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_URL, url);
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_DATA, data);
-        values.put(OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, 200);
-        db.replace(OfflineDatabaseHandler.TABLE_RESOURCES, null, values);
+    public void sqliteSaveDownloadedTileData(byte[] data, long tileId) {
+        if (AppUtils.runningOnMainThread()) {
+            Log.w(TAG, "trying to run sqliteSaveDownloadedTileData() on main thread. Return.");
+            return;
+        }
 
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        // Bail out if the state has changed to canceling, suspended, or available
+        //
+        if (this.state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+            Log.w(TAG, "sqliteSaveDownloadedTileData() is not in a Running state so bailing.  State = " + this.state);
+            return;
+        }
+
+        OfflineMapDatabaseWriter writer = getDatabaseWriter();
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.saveTile(tileId, data);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while queueing tile " + tileId + " to be saved");
+        }
+    }
+
+    public void sqliteSaveDownloadFailure(String url, long tileId) {
+        if (this.state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+            Log.w(TAG, "sqliteSaveDownloadFailure() is not in a Running state so bailing.  State = " + this.state);
+            return;
+        }
+
+        OfflineMapDatabaseWriter writer = getDatabaseWriter();
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.saveFailure(tileId >= 0 ? null : url, tileId);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while queueing the failure of " + url + " to be saved");
+        }
+    }
 
+    /**
+     * @return the writer of the running download, or null once it has been suspended or canceled
+     */
+    private synchronized OfflineMapDatabaseWriter getDatabaseWriter() {
+        if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+            return null;
+        }
+        if (databaseWriter == null || databaseWriter.isFinishing()) {
+            databaseWriter = new OfflineMapDatabaseWriter(database(), databaseWriterListener, writeBatchSize, writeBatchIntervalMs);
+            databaseWriter.start();
+        }
+        return databaseWriter;
+    }
+
+    private final OfflineMapDatabaseWriter.Listener databaseWriterListener = new OfflineMapDatabaseWriter.Listener() {
+        @Override
+        public void dataWritten(String url, long tileId) {
+            downloadedDataSaved();
+        }
+
+        @Override
+        public void writeFailed(Throwable error) {
+            notifyDelegateOfSqliteError(error);
+        }
+
+        @Override
+        public void writerFinished(OfflineMapDatabaseWriter writer) {
+            synchronized (OfflineMapDownloader.this) {
+                if (databaseWriter == writer) {
+                    databaseWriter = null;
+                }
+            }
+            if (state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateCanceling) {
+                // cancel() waited for the writer to let go of the partial database
+                discardPartialDownload();
+                return;
+            }
+            checkDownloadComplete();
+        }
+    };
+
+    /**
+     * Called once a download pass has run out of files and everything it downloaded has been
+     * committed. Completes the download, or starts another pass for the files that failed.
+     */
+    private void checkDownloadComplete() {
+        synchronized (this) {
+            if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning || downloadEngine != null || databaseWriter != null) {
+                return;
+            }
+        }
+
+        // If all the downloads are done, clean up and notify the delegate
+        //
+        sqliteQueryWrittenAndExpectedCountsWithError();
+        if (this.totalFilesWritten >= this.totalFilesExpectedToWrite) {
+            finishUpDownloadProcess();
+            return;
+        }
+
+        int requeued = sqliteRequeueFilesWithStatus(OfflineDatabaseHandler.STATUS_FAILED, MAX_DOWNLOAD_ATTEMPTS);
+        if (requeued > 0) {
+            Log.i(TAG, "Retrying " + requeued + " files that failed to download");
+            startDownloading();
+            return;
+        }
+
+        Log.w(TAG, String.format(MAPBOX_LOCALE, "%d files couldn't be downloaded, completing the offline map without them.", this.totalFilesExpectedToWrite - this.totalFilesWritten));
+        finishUpDownloadProcess();
+    }
+
+    private void downloadedDataSaved() {
 /*
         if(error)
         {
@@ -408,11 +660,6 @@ public class OfflineMapDownloader implements MapboxConstants {
         notifyDelegateOfProgress();
         Log.d(TAG, "totalFilesWritten = " + this.totalFilesWritten + "; totalFilesExpectedToWrite = " + this.totalFilesExpectedToWrite);
 
-        // If all the downloads are done, clean up and notify the delegate
-        //
-        if (this.totalFilesWritten >= this.totalFilesExpectedToWrite) {
-            finishUpDownloadProcess();
-        }
 /*
         }
 */
@@ -466,37 +713,83 @@ public class OfflineMapDownloader implements MapboxConstants {
         // Open the database
         final SQLiteDatabase db = database();
         final Cursor cursor = db.rawQuery(query, null);
-        final boolean hasFirst = cursor.moveToNext();
-        if (!hasFirst) {
-            cursor.close();
+        final ArrayList<String> urls = new ArrayList<String>(Math.max(0, cursor.getCount()));
+        while (cursor.moveToNext()) {
+            urls.add(cursor.getString(0));
         }
+        cursor.close();
+        return urls.iterator();
+    }
 
-        return new Iterator<String>() {
-            private boolean hasNext = hasFirst;
-            @Override
-            public boolean hasNext() {
-                return hasNext;
-            }
+    public Iterator<Long> sqliteReadOfflineMapTileIdsToBeDownloadedLimit(int limit) {
+        if (AppUtils.runningOnMainThread()) {
+            Log.w(TAG, "Attempting to run sqliteReadOfflineMapTileIdsToBeDownloadedLimit() on main thread.  Returning.");
+            return null;
+        }
 
-            @Override
-            public String next() {
-                if (!hasNext) {
-                    throw new NoSuchElementException();
-                }
+        // Read up to limit undownloaded tile ids from the offline map database
+        //
+        String query = String.format(MAPBOX_LOCALE, "SELECT %s FROM %s WHERE %s IS NULL", OfflineDatabaseHandler.FIELD_TILES_ID, OfflineDatabaseHandler.TABLE_TILES, OfflineDatabaseHandler.FIELD_TILES_STATUS);
+        if (limit > 0) {
+            query = query + String.format(MAPBOX_LOCALE, " LIMIT %d", limit);
+        }
+        query = query + ";";
 
-                String result = cursor.getString(0);
-                hasNext = cursor.moveToNext();
-                if (!hasNext) {
-                    cursor.close();
+        final SQLiteDatabase db = database();
+        final Cursor cursor = db.rawQuery(query, null);
+        final ArrayList<Long> tileIds = new ArrayList<Long>(Math.max(0, cursor.getCount()));
+        while (cursor.moveToNext()) {
+            tileIds.add(cursor.getLong(0));
+        }
+        cursor.close();
+        return tileIds.iterator();
+    }
+
+    /**
+     * Mark a page of files as handed to the download workers, in a single transaction.
+     */
+    private void sqliteMarkFilesInFlight(Iterable<OfflineMapDownloadEngine.Download> downloads) {
+        final SQLiteDatabase db = database();
+        final SQLiteStatement markTile = db.compileStatement("UPDATE " + OfflineDatabaseHandler.TABLE_TILES + " SET " + OfflineDatabaseHandler.FIELD_TILES_STATUS + " = '" + OfflineDatabaseHandler.STATUS_IN_FLIGHT + "' WHERE " + OfflineDatabaseHandler.FIELD_TILES_ID + " = ?;");
+        final SQLiteStatement markResource = db.compileStatement("UPDATE " + OfflineDatabaseHandler.TABLE_RESOURCES + " SET " + OfflineDatabaseHandler.FIELD_RESOURCES_STATUS + " = '" + OfflineDatabaseHandler.STATUS_IN_FLIGHT + "' WHERE " + OfflineDatabaseHandler.FIELD_RESOURCES_URL + " = ?;");
+        db.beginTransaction();
+        try {
+            for (OfflineMapDownloadEngine.Download download : downloads) {
+                if (download.isTile()) {
+                    markTile.bindLong(1, download.tileId);
+                    markTile.execute();
+                } else {
+                    markResource.bindString(1, download.url);
+                    markResource.execute();
                 }
-                return result;
             }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            markTile.close();
+            markResource.close();
+        }
+    }
 
-            @Override
-            public void remove() {
-                throw new UnsupportedOperationException();
-            }
-        };
+    /**
+     * Put the files with the given status back in the download queue.
+     *
+     * @param status {@link OfflineDatabaseHandler#STATUS_IN_FLIGHT} or {@link OfflineDatabaseHandler#STATUS_FAILED}
+     * @param maxRetries only requeue files that failed less often than this
+     * @return the number of files queued again
+     */
+    private int sqliteRequeueFilesWithStatus(String status, int maxRetries) {
+        final SQLiteDatabase db = database();
+        final String[] whereArgs = new String[] { status, String.valueOf(maxRetries) };
+        ContentValues queued = new ContentValues();
+        queued.putNull(OfflineDatabaseHandler.FIELD_RESOURCES_STATUS);
+        int count = db.update(OfflineDatabaseHandler.TABLE_RESOURCES, queued,
+                OfflineDatabaseHandler.FIELD_RESOURCES_STATUS + " = ? AND " + OfflineDatabaseHandler.FIELD_RESOURCES_RETRIES + " < ?", whereArgs);
+        queued = new ContentValues();
+        queued.putNull(OfflineDatabaseHandler.FIELD_TILES_STATUS);
+        count += db.update(OfflineDatabaseHandler.TABLE_TILES, queued,
+                OfflineDatabaseHandler.FIELD_TILES_STATUS + " = ? AND " + OfflineDatabaseHandler.FIELD_TILES_RETRIES + " < ?", whereArgs);
+        return count;
     }
 
     public boolean sqliteQueryWrittenAndExpectedCountsWithError() {
@@ -506,9 +799,12 @@ public class OfflineMapDownloader implements MapboxConstants {
         // Calculate how many files need to be written in total and how many of them have been written already
         //
         String query = String.format(MAPBOX_LOCALE,
-                "SELECT COUNT(%s) AS totalFilesExpectedToWrite, (SELECT COUNT(%s) FROM %s WHERE %s IS NOT NULL) AS totalFilesWritten FROM %s;",
-                OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_RESOURCES,
-                OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, OfflineDatabaseHandler.TABLE_RESOURCES);
+                "SELECT (SELECT COUNT(%s) FROM %s) + (SELECT COUNT(%s) FROM %s) AS totalFilesExpectedToWrite, "
+                        + "(SELECT COUNT(%s) FROM %s WHERE %s = '%s') + (SELECT COUNT(%s) FROM %s WHERE %s = '%s') AS totalFilesWritten;",
+                OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_RESOURCES,
+                OfflineDatabaseHandler.FIELD_TILES_ID, OfflineDatabaseHandler.TABLE_TILES,
+                OfflineDatabaseHandler.FIELD_RESOURCES_URL, OfflineDatabaseHandler.TABLE_RESOURCES, OfflineDatabaseHandler.FIELD_RESOURCES_STATUS, OfflineDatabaseHandler.STATUS_DONE,
+                OfflineDatabaseHandler.FIELD_TILES_ID, OfflineDatabaseHandler.TABLE_TILES, OfflineDatabaseHandler.FIELD_TILES_STATUS, OfflineDatabaseHandler.STATUS_DONE);
 
         boolean success = false;
         SQLiteDatabase db = database();
@@ -553,12 +849,14 @@ public class OfflineMapDownloader implements MapboxConstants {
             cv.put(OfflineDatabaseHandler.FIELD_RESOURCES_URL, url);
             db.insert(OfflineDatabaseHandler.TABLE_RESOURCES, null, cv);
         }
-        for (int generatedIndex = 0; generatedIndex < generator.getURLCount(); generatedIndex++) {
-            ContentValues cv = new ContentValues();
-            String url = generator.getURLForIndex(context, mapID, imageQuality, generatedIndex);
-            cv.put(OfflineDatabaseHandler.FIELD_RESOURCES_URL, url);
-            db.insert(OfflineDatabaseHandler.TABLE_RESOURCES, null, cv);
+        // Tiles are stored under their packed id, the url is only built when the tile is downloaded
+        SQLiteStatement insertTile = db.compileStatement("INSERT OR IGNORE INTO " + OfflineDatabaseHandler.TABLE_TILES + " (" + OfflineDatabaseHandler.FIELD_TILES_ID + ") VALUES (?);");
+        OfflineMapURLGenerator.TileIterator tiles = generator.tileIterator();
+        while (tiles.hasNext()) {
+            insertTile.bindLong(1, tiles.nextTileId());
+            insertTile.executeInsert();
         }
+        insertTile.close();
         db.setTransactionSuccessful();
         db.endTransaction();
         this.totalFilesExpectedToWrite = urlStrings.size() + generator.getURLCount();
@@ -612,17 +910,79 @@ public class OfflineMapDownloader implements MapboxConstants {
         beginDownloadingMapID(mapID, mapRegion, minimumZ, maximumZ, includeMetadata, includeMarkers, RasterImageQuality.MBXRasterImageQualityFull);
     }
 
+    /**
+     * Start downloading an offline map. Only one download runs at a time: a download that is
+     * suspended, including one interrupted by the process being killed, has to be resumed with
+     * {@link #resume()} or discarded with {@link #cancel()} first.
+     * <p/>
+     * Listeners are told the state of the downloader either way: it is
+     * {@link MBXOfflineMapDownloaderState#MBXOfflineMapDownloaderStateRunning} if the download
+     * started. If it couldn't, the state is unchanged and the reason is logged; without a network
+     * connection {@link OfflineMapDownloaderListener#networkConnectivityError(Throwable)} is
+     * called first.
+     */
     public void beginDownloadingMapID(String mapID, CoordinateRegion mapRegion, Integer minimumZ, Integer maximumZ,
+                                         boolean includeMetadata, boolean includeMarkers, RasterImageQuality imageQuality) {
+        // Loop through the zoom levels and lat/lon bounds to generate a list of urls which should be included in the offline map
+        //
+        double minLat = mapRegion.getCenter().getLatitude() - (mapRegion.getSpan().getLatitudeSpan() / 2.0);
+        double maxLat = minLat + mapRegion.getSpan().getLatitudeSpan();
+        double minLon = mapRegion.getCenter().getLongitude() - (mapRegion.getSpan().getLongitudeSpan() / 2.0);
+        double maxLon = minLon + mapRegion.getSpan().getLongitudeSpan();
+        OfflineMapURLGenerator generator = new OfflineMapURLGenerator(minLat, maxLat, minLon, maxLon, minimumZ, maximumZ);
+        if (beginDownloadingMapID(mapID, generator, minimumZ, maximumZ, includeMetadata, includeMarkers, imageQuality)) {
+            this.mapRegion = mapRegion;
+        }
+        notifyDelegateOfStateChange();
+    }
+
+    /**
+     * Download only the tiles intersecting a polygon, e.g. a route corridor or an irregular
+     * region, instead of its whole bounding box. Listeners are told whether the download started
+     * as with {@link #beginDownloadingMapID(String, CoordinateRegion, Integer, Integer, boolean, boolean, RasterImageQuality)}.
+     */
+    public void beginDownloadingMapID(String mapID, Polygon polygon, int minimumZ, int maximumZ) {
+        beginDownloadingMapID(mapID, polygon, minimumZ, maximumZ, true, true, RasterImageQuality.MBXRasterImageQualityFull);
+    }
+
+    public void beginDownloadingMapID(String mapID, Polygon polygon, int minimumZ, int maximumZ,
+                                      boolean includeMetadata, boolean includeMarkers, RasterImageQuality imageQuality) {
+        beginDownloadingMapID(mapID, new OfflineMapURLGenerator(polygon, minimumZ, maximumZ), minimumZ, maximumZ, includeMetadata, includeMarkers, imageQuality);
+        notifyDelegateOfStateChange();
+    }
+
+    /**
+     * Download only the tiles intersecting any of the polygons.
+     */
+    public void beginDownloadingMapID(String mapID, MultiPolygon multiPolygon, int minimumZ, int maximumZ) {
+        beginDownloadingMapID(mapID, multiPolygon, minimumZ, maximumZ, true, true, RasterImageQuality.MBXRasterImageQualityFull);
+    }
+
+    public void beginDownloadingMapID(String mapID, MultiPolygon multiPolygon, int minimumZ, int maximumZ,
                                       boolean includeMetadata, boolean includeMarkers, RasterImageQuality imageQuality) {
+        beginDownloadingMapID(mapID, new OfflineMapURLGenerator(multiPolygon, minimumZ, maximumZ), minimumZ, maximumZ, includeMetadata, includeMarkers, imageQuality);
+        notifyDelegateOfStateChange();
+    }
+
+    /**
+     * @return false if the download couldn't be started. The listeners aren't told about the
+     * state, the public methods do that.
+     */
+    private boolean beginDownloadingMapID(String mapID, final OfflineMapURLGenerator generator, int minimumZ, int maximumZ,
+                                          boolean includeMetadata, boolean includeMarkers, RasterImageQuality imageQuality) {
+        if (state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended) {
+            Log.w(TAG, String.format(MAPBOX_LOCALE, "The download of '%s' is suspended. Call resume() to finish it or cancel() to discard it before downloading '%s'.", this.mapID, mapID));
+            return false;
+        }
         if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable) {
             Log.w(TAG, "state doesn't equal MBXOfflineMapDownloaderStateAvailable so return.  state = " + state);
-            return;
+            return false;
         }
 
         // Make sure this completed map doesn't exist already
         if (isMapIdAlreadyAnOfflineMapDatabase(mapID)) {
             Log.w(TAG, String.format(MAPBOX_LOCALE, "MapId '%s' has already been downloaded.  Please delete it before trying to download again.", mapID));
-            return;
+            return false;
         }
 
 //        [self setUpNewDataSession];
@@ -636,7 +996,7 @@ public class OfflineMapDownloader implements MapboxConstants {
         this.includesMetadata = includeMetadata;
         this.includesMarkers = includeMarkers;
         this.imageQuality = imageQuality;
-        this.mapRegion = mapRegion;
+        this.mapRegion = null;
         this.minimumZ = minimumZ;
         this.maximumZ = maximumZ;
         this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning;
@@ -662,13 +1022,6 @@ public class OfflineMapDownloader implements MapboxConstants {
             urls.add(String.format(MAPBOX_LOCALE, MAPBOX_BASE_URL_V4 + "%s/%s?access_token=%s", this.mapID, dataName, MapboxUtils.getAccessToken()));
         }
 
-        // Loop through the zoom levels and lat/lon bounds to generate a list of urls which should be included in the offline map
-        //
-        double minLat = this.mapRegion.getCenter().getLatitude() - (this.mapRegion.getSpan().getLatitudeSpan() / 2.0);
-        double maxLat = minLat + this.mapRegion.getSpan().getLatitudeSpan();
-        double minLon = this.mapRegion.getCenter().getLongitude() - (this.mapRegion.getSpan().getLongitudeSpan() / 2.0);
-        double maxLon = minLon + this.mapRegion.getSpan().getLongitudeSpan();
-        final OfflineMapURLGenerator generator = new OfflineMapURLGenerator(minLat, maxLat, minLon, maxLon, minimumZ, maximumZ);
         Log.i(TAG, "Number of URLs so far: " + (urls.size() + generator.getURLCount()));
 
         // Determine if we need to add marker icon urls (i.e. parse markers.geojson/features.json), and if so, add them
@@ -683,12 +1036,11 @@ public class OfflineMapDownloader implements MapboxConstants {
                 // added to the list of urls to download, the lack of network connectivity is a non-recoverable error
                 // here.
                 //
-                // TODO
-/*
-                [self notifyDelegateOfNetworkConnectivityError:error];
-                [self cancelImmediatelyWithError:error];
-*/
-                return;
+                this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable;
+                this.mapID = null;
+                this.uniqueID = null;
+                notifyDelegateOfNetworkConnectivityError(new IOException("No network connection to fetch the markers of " + mapID));
+                return false;
             }
 
             AsyncTask<Void, Void, Void> foo = new AsyncTask<Void, Void, Void>() {
@@ -750,6 +1102,7 @@ public class OfflineMapDownloader implements MapboxConstants {
             // There aren't any marker icons to worry about, so just create database and start downloading
             startDownloadProcess(metadataDictionary, urls, generator);
         }
+        return true;
     }
 
     /**
@@ -858,71 +1211,134 @@ public class OfflineMapDownloader implements MapboxConstants {
     API: Control an in-progress offline map download
 */
 
+    /**
+     * Stop the download, running or suspended, and delete its partial database. The downloader
+     * is available again once the state changes to
+     * {@link MBXOfflineMapDownloaderState#MBXOfflineMapDownloaderStateAvailable}.
+     */
     public void cancel() {
         Log.d(TAG, "cancel called with state = " + state);
-/*
-        if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateCanceling && state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable) {
+        final OfflineMapDownloadEngine engine;
+        synchronized (this) {
+            if (state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateCanceling || state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable) {
+                return;
+            }
             // Stop a download job and discard the associated files
             //
-            [_backgroundWorkQueue addOperationWithBlock:^{
-            _state = MBXOfflineMapDownloaderStateCanceling;
-            [self notifyDelegateOfStateChange];
-
-            [_dataSession invalidateAndCancel];
-            [_sqliteQueue cancelAllOperations];
-
-            [_sqliteQueue addOperationWithBlock:^{
-                [self setUpNewDataSession];
-                _totalFilesWritten = 0;
-                _totalFilesExpectedToWrite = 0;
-                [[NSFileManager defaultManager] removeItemAtPath:_partialDatabasePath error:nil];
-
-                if([_delegate respondsToSelector:@selector(offlineMapDownloader:didCompleteOfflineMapDatabase:withError:)])
-                {
-                    NSError *canceled = [NSError mbx_errorWithCode:MBXMapKitErrorCodeDownloadingCanceled reason:@"The download job was canceled" description:@"Download canceled"];
-                    dispatch_async(dispatch_get_main_queue(), ^(void){
-                            [_delegate offlineMapDownloader:self didCompleteOfflineMapDatabase:nil withError:canceled];
-                    });
-                }
+            state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateCanceling;
+            engine = downloadEngine;
+            downloadEngine = null;
+        }
+        notifyDelegateOfStateChange();
 
-                _state = MBXOfflineMapDownloaderStateAvailable;
-                [self notifyDelegateOfStateChange];
-            }];
+        if (engine != null) {
+            engine.cancel();
+        }
+        // Not an AsyncTask: the wait below would hold up every other task on the serial executor
+        Thread discard = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Let the workers give up their downloads first, so none of them is still using
+                // the partial database. Workers of an earlier, suspended pass find the state
+                // changed under the lock and leave the database alone.
+                if (engine != null) {
+                    try {
+                        if (!engine.awaitTermination(ENGINE_TERMINATION_TIMEOUT_MS)) {
+                            Log.w(TAG, "Download engine still running, discarding the partial download anyway");
+                        }
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "Interrupted while waiting for the download engine to stop");
+                    }
+                }
+                OfflineMapDatabaseWriter writer;
+                synchronized (OfflineMapDownloader.this) {
+                    writer = databaseWriter;
+                }
+                if (writer != null) {
+                    // The partial database is deleted once the writer has let go of it, in writerFinished()
+                    writer.discard();
+                } else {
+                    discardPartialDownload();
+                }
+            }
+        }, TAG + " discard");
+        discard.start();
+    }
 
+    /**
+     * Delete the partial database of a canceled download, its files and their status go with it,
+     * and make the downloader available again.
+     */
+    private void discardPartialDownload() {
+        synchronized (this) {
+            if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateCanceling) {
+                // Already discarded
+                return;
+            }
+            if (mapID != null) {
+                String databaseName = new File(database().getPath()).getName();
+                closeDatabase();
+                boolean result = context.deleteDatabase(databaseName);
+                Log.i(TAG, String.format(MAPBOX_LOCALE, "Result of removing partial database '%s': %s", databaseName, result));
             }
+
+            this.totalFilesWritten = 0;
+            this.totalFilesExpectedToWrite = 0;
+            this.mapID = null;
+            this.uniqueID = null;
+            this.mapRegion = null;
+            this.state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateAvailable;
         }
-*/
+        notifyDelegateOfStateChange();
     }
 
     public void resume() {
-        if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended) {
-            return;
+        synchronized (this) {
+            if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended) {
+                return;
+            }
+            // Resume a previously suspended download job
+            //
+            state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning;
         }
-/*
-        // Resume a previously suspended download job
-        //
-        [_backgroundWorkQueue addOperationWithBlock:^{
-            _state = MBXOfflineMapDownloaderStateRunning;
-            [self startDownloading];
-            [self notifyDelegateOfStateChange];
-        }];
-*/
+        notifyDelegateOfStateChange();
+
+        AsyncTask<Void, Void, Void> resumeDownload = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                // Give the files that failed in earlier passes another chance
+                sqliteRequeueFilesWithStatus(OfflineDatabaseHandler.STATUS_FAILED, Integer.MAX_VALUE);
+                startDownloading();
+                return null;
+            }
+        };
+        resumeDownload.execute();
     }
 
     public void suspend() {
         Log.d(TAG, "suspend called with state = " + state);
-/*
-        if (state == MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
-            // Stop a download job, preserving the necessary state to resume later
+        OfflineMapDownloadEngine engine;
+        OfflineMapDatabaseWriter writer;
+        synchronized (this) {
+            if (state != MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateRunning) {
+                return;
+            }
+            // Stop a download job, preserving the necessary state to resume later. Files in flight
+            // keep that status in the database and are queued again by startDownloading().
             //
-            [_backgroundWorkQueue addOperationWithBlock:^{
-                [_sqliteQueue cancelAllOperations];
-                _state = MBXOfflineMapDownloaderStateSuspended;
-                _activeDataSessionTasks = 0;
-                [self notifyDelegateOfStateChange];
-            }];
+            state = MBXOfflineMapDownloaderState.MBXOfflineMapDownloaderStateSuspended;
+            engine = downloadEngine;
+            downloadEngine = null;
+            writer = databaseWriter;
         }
-*/
+        if (engine != null) {
+            engine.cancel();
+        }
+        if (writer != null) {
+            // Commit what has been downloaded so far
+            writer.finish();
+        }
+        notifyDelegateOfStateChange();
     }
 
 /*
@@ -972,14 +1388,14 @@ public class OfflineMapDownloader implements MapboxConstants {
         return false;
     }
 
-    private SQLiteDatabase database() {
+    private synchronized SQLiteDatabase database() {
         if (db == null) {
             db = OfflineDatabaseManager.getOfflineDatabaseManager(context).getOfflineDatabaseHandlerForMapId(mapID).getWritableDatabase();
         }
         return db;
     }
 
-    private void closeDatabase() {
+    private synchronized void closeDatabase() {
         if (db != null) {
             db.close();
             db = null;
@@ -2,75 +2,414 @@ package com.mapbox.mapboxsdk.offline;
 
 import android.content.Context;
 
+import com.cocoahero.android.geojson.MultiPolygon;
+import com.cocoahero.android.geojson.Polygon;
+import com.cocoahero.android.geojson.Position;
+import com.cocoahero.android.geojson.Ring;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.constants.MathConstants;
 import com.mapbox.mapboxsdk.util.MapboxUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
 
+/**
+ * Works out which tiles an offline map needs, either for a lat/lon rectangle or for the tiles
+ * intersecting a polygon.
+ * <p/>
+ * The coverage is kept as runs of rows sharing the same range of columns, so a rectangle costs a
+ * single run per zoom level and a polygon roughly one run per row. Tiles are produced from the
+ * runs on demand by {@link #tileIterator()}, without building urls up front.
+ * <p/>
+ * Polygons are expected not to cross the antimeridian.
+ */
 public class OfflineMapURLGenerator {
 
-    private static class Bounds {
-        public int minX;
-        public int maxX;
-        public int minY;
-        public int maxY;
-        public Bounds(int minX, int maxX, int minY, int maxY) {
-            this.minX = minX;
-            this.maxX = maxX;
-            this.minY = minY;
-            this.maxY = maxY;
+    // Web mercator can't represent the poles
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    // A run is stored as ENTRY_SIZE ints: zoom, first row, last row, first column, last column
+    private static final int ENTRY_SIZE = 5;
+    private static final int ENTRY_Z = 0;
+    private static final int ENTRY_MIN_Y = 1;
+    private static final int ENTRY_MAX_Y = 2;
+    private static final int ENTRY_MIN_X = 3;
+    private static final int ENTRY_MAX_X = 4;
+
+    private int[] entries = new int[ENTRY_SIZE * 16];
+    private int entryCount = 0;
+    // Index of the first tile of each run, for getTileIdForIndex()
+    private long[] entryStarts = new long[16];
+    private long tileCount = 0;
+
+    public OfflineMapURLGenerator(double minLat, double maxLat, double minLon, double maxLon, int minimumZ, int maximumZ) {
+        for (int zoom = minimumZ; zoom <= maximumZ; zoom++) {
+            int tilesPerSide = 1 << zoom;
+            int minX = clamp((int) Math.floor(projectLongitude(minLon) * tilesPerSide), tilesPerSide);
+            int maxX = clamp((int) Math.floor(projectLongitude(maxLon) * tilesPerSide), tilesPerSide);
+            int minY = clamp((int) Math.floor(projectLatitude(maxLat) * tilesPerSide), tilesPerSide);
+            int maxY = clamp((int) Math.floor(projectLatitude(minLat) * tilesPerSide), tilesPerSide);
+            addRun(zoom, minY, maxY, minX, maxX);
         }
     }
 
-    private ArrayList<Bounds> bounds;
-    private int minimumZoom;
-    private int maximumZoom;
-    private int urlCount;
+    /**
+     * Generate the tiles intersecting a polygon. Holes are taken into account.
+     */
+    public OfflineMapURLGenerator(Polygon polygon, int minimumZ, int maximumZ) {
+        this(projectPolygons(Arrays.asList(polygon)), minimumZ, maximumZ);
+    }
 
-    public OfflineMapURLGenerator(double minLat, double maxLat, double minLon, double maxLon, int minimumZ, int maximumZ) {
-        this.bounds = new ArrayList<Bounds>();
-        this.minimumZoom = minimumZ;
-        this.maximumZoom = maximumZ;
-        this.urlCount = 0;
+    /**
+     * Generate the tiles intersecting any of the polygons of a multi polygon.
+     */
+    public OfflineMapURLGenerator(MultiPolygon multiPolygon, int minimumZ, int maximumZ) {
+        this(projectPolygons(multiPolygon.getPolygons()), minimumZ, maximumZ);
+    }
+
+    private OfflineMapURLGenerator(List<double[][]> polygons, int minimumZ, int maximumZ) {
+        final double[] bounds = bounds(polygons);
+        if (bounds == null) {
+            return;
+        }
+        final IntList spans = new IntList();
+        final DoubleBuffer crossings = new DoubleBuffer();
+        final LongBuffer packedSpans = new LongBuffer();
         for (int zoom = minimumZ; zoom <= maximumZ; zoom++) {
-            int tilesPerSide = Double.valueOf(Math.pow(2.0, zoom)).intValue();
-            int minX = Double.valueOf(Math.floor(((minLon + 180.0) / 360.0) * tilesPerSide)).intValue();
-            int maxX = Double.valueOf(Math.floor(((maxLon + 180.0) / 360.0) * tilesPerSide)).intValue();
-            int minY = Double.valueOf(Math.floor((1.0 - (Math.log(Math.tan(Math.toRadians(maxLat)) + 1.0 / Math.cos(Math.toRadians(maxLat))) / MathConstants.PI)) / 2.0 * tilesPerSide)).intValue();
-            int maxY = Double.valueOf(Math.floor((1.0 - (Math.log(Math.tan(Math.toRadians(minLat)) + 1.0 / Math.cos(Math.toRadians(minLat))) / MathConstants.PI)) / 2.0 * tilesPerSide)).intValue();
-            this.bounds.add(new Bounds(minX, maxX, minY, maxY));
-            this.urlCount += (maxX - minX + 1) * (maxY - minY + 1);
+            final int tilesPerSide = 1 << zoom;
+            final int minRow = clamp((int) Math.floor(bounds[1] * tilesPerSide), tilesPerSide);
+            final int maxRow = clamp((int) Math.floor(bounds[3] * tilesPerSide), tilesPerSide);
+            for (int row = minRow; row <= maxRow; row++) {
+                spans.clear();
+                for (double[][] polygon : polygons) {
+                    addRowSpans(polygon, tilesPerSide, row, spans, crossings);
+                }
+                mergeSpans(spans, tilesPerSide, packedSpans);
+                for (int i = 0; i < spans.size(); i += 2) {
+                    addRun(zoom, row, row, spans.get(i), spans.get(i + 1));
+                }
+            }
         }
     }
 
     public int getURLCount() {
-        return urlCount;
+        return (int) Math.min(tileCount, Integer.MAX_VALUE);
     }
 
     public String getURLForIndex(Context context, String mapID, MapboxConstants.RasterImageQuality imageQuality, int index) {
-        if (index >= getURLCount()) {
+        long tileId = getTileIdForIndex(index);
+        if (tileId < 0) {
             return null;
         }
+        return MapboxUtils.getMapTileURL(context, mapID, OfflineDatabaseHandler.tileIdZ(tileId), OfflineDatabaseHandler.tileIdX(tileId), OfflineDatabaseHandler.tileIdY(tileId), imageQuality);
+    }
+
+    /**
+     * Get the packed id (see {@link OfflineDatabaseHandler#tileId(int, int, int)}) of a tile.
+     * Prefer {@link #tileIterator()} to walk all the tiles.
+     *
+     * @param index index of the tile, between 0 and {@link #getURLCount()}
+     * @return the tile id, or -1 if the index is out of range
+     */
+    public long getTileIdForIndex(int index) {
+        if (index < 0 || index >= tileCount) {
+            return -1;
+        }
+        int entry = Arrays.binarySearch(entryStarts, 0, entryCount, index);
+        if (entry < 0) {
+            entry = -entry - 2;
+        }
+        final int base = entry * ENTRY_SIZE;
+        final int width = entries[base + ENTRY_MAX_X] - entries[base + ENTRY_MIN_X] + 1;
+        final long offset = index - entryStarts[entry];
+        final int y = entries[base + ENTRY_MIN_Y] + (int) (offset / width);
+        final int x = entries[base + ENTRY_MIN_X] + (int) (offset % width);
+        return OfflineDatabaseHandler.tileId(entries[base + ENTRY_Z], x, y);
+    }
+
+    /**
+     * @return a new iterator over the ids of all the tiles, zoom level by zoom level
+     */
+    public TileIterator tileIterator() {
+        return new TileIterator();
+    }
+
+    /**
+     * Walks the tiles without boxing their ids or formatting any url.
+     */
+    public class TileIterator {
+        private int entry = 0;
+        private int x;
+        private int y;
+
+        TileIterator() {
+            if (entryCount > 0) {
+                x = entries[ENTRY_MIN_X];
+                y = entries[ENTRY_MIN_Y];
+            }
+        }
+
+        public boolean hasNext() {
+            return entry < entryCount;
+        }
+
+        /**
+         * @return the packed id (see {@link OfflineDatabaseHandler#tileId(int, int, int)}) of the next tile
+         */
+        public long nextTileId() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final int base = entry * ENTRY_SIZE;
+            final long tileId = OfflineDatabaseHandler.tileId(entries[base + ENTRY_Z], x, y);
+            if (x < entries[base + ENTRY_MAX_X]) {
+                x++;
+            } else if (y < entries[base + ENTRY_MAX_Y]) {
+                x = entries[base + ENTRY_MIN_X];
+                y++;
+            } else if (++entry < entryCount) {
+                x = entries[base + ENTRY_SIZE + ENTRY_MIN_X];
+                y = entries[base + ENTRY_SIZE + ENTRY_MIN_Y];
+            }
+            return tileId;
+        }
+    }
+
+    private void addRun(int zoom, int minY, int maxY, int minX, int maxX) {
+        if (maxX < minX || maxY < minY) {
+            return;
+        }
+        if (entryCount > 0) {
+            // Extend the previous run when this one continues it on the next row
+            final int last = (entryCount - 1) * ENTRY_SIZE;
+            if (entries[last + ENTRY_Z] == zoom && entries[last + ENTRY_MAX_Y] + 1 == minY
+                    && entries[last + ENTRY_MIN_X] == minX && entries[last + ENTRY_MAX_X] == maxX) {
+                entries[last + ENTRY_MAX_Y] = maxY;
+                tileCount += (long) (maxY - minY + 1) * (maxX - minX + 1);
+                return;
+            }
+        }
+        if ((entryCount + 1) * ENTRY_SIZE > entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+            entryStarts = Arrays.copyOf(entryStarts, entryStarts.length * 2);
+        }
+        final int base = entryCount * ENTRY_SIZE;
+        entries[base + ENTRY_Z] = zoom;
+        entries[base + ENTRY_MIN_Y] = minY;
+        entries[base + ENTRY_MAX_Y] = maxY;
+        entries[base + ENTRY_MIN_X] = minX;
+        entries[base + ENTRY_MAX_X] = maxX;
+        entryStarts[entryCount] = tileCount;
+        entryCount++;
+        tileCount += (long) (maxY - minY + 1) * (maxX - minX + 1);
+    }
+
+    /**
+     * Add the column ranges of the tiles of a row that intersect a polygon: the tiles crossed by
+     * an edge, plus the tiles inside the polygon along the middle of the row. A tile that is
+     * crossed by no edge is either fully inside or fully outside, which the middle line tells.
+     */
+    private static void addRowSpans(double[][] polygon, int tilesPerSide, int row, IntList spans, DoubleBuffer crossings) {
+        final double top = row;
+        final double bottom = row + 1;
+        final double middle = row + 0.5;
+        double[] middleCrossings = crossings.values;
+        int middleCrossingCount = 0;
+
+        for (double[] ring : polygon) {
+            for (int i = 0; i + 3 < ring.length; i += 2) {
+                final double ax = ring[i] * tilesPerSide;
+                final double ay = ring[i + 1] * tilesPerSide;
+                final double bx = ring[i + 2] * tilesPerSide;
+                final double by = ring[i + 3] * tilesPerSide;
+
+                // Part of the edge within the row
+                if (Math.max(ay, by) > top && Math.min(ay, by) < bottom) {
+                    double minX;
+                    double maxX;
+                    if (ay == by) {
+                        minX = Math.min(ax, bx);
+                        maxX = Math.max(ax, bx);
+                    } else {
+                        final double t0 = clamp01((top - ay) / (by - ay));
+                        final double t1 = clamp01((bottom - ay) / (by - ay));
+                        final double x0 = ax + (bx - ax) * t0;
+                        final double x1 = ax + (bx - ax) * t1;
+                        minX = Math.min(x0, x1);
+                        maxX = Math.max(x0, x1);
+                    }
+                    spans.add((int) Math.floor(minX));
+                    spans.add((int) Math.floor(maxX));
+                }
+
+                // Crossing with the middle of the row
+                if ((ay > middle) != (by > middle)) {
+                    if (middleCrossingCount == middleCrossings.length) {
+                        middleCrossings = Arrays.copyOf(middleCrossings, middleCrossingCount * 2);
+                    }
+                    middleCrossings[middleCrossingCount++] = ax + (middle - ay) * (bx - ax) / (by - ay);
+                }
+            }
+        }
+        // Keep the grown array for the next rows
+        crossings.values = middleCrossings;
+
+        // Even-odd rule, so holes are left out
+        Arrays.sort(middleCrossings, 0, middleCrossingCount);
+        for (int i = 0; i + 1 < middleCrossingCount; i += 2) {
+            spans.add((int) Math.floor(middleCrossings[i]));
+            spans.add((int) Math.floor(middleCrossings[i + 1]));
+        }
+    }
+
+    /**
+     * Sort the column ranges of a row, clamp them to the map and merge the ones that overlap or
+     * touch.
+     */
+    private static void mergeSpans(IntList spans, int tilesPerSide, LongBuffer packedSpans) {
+        final int count = spans.size() / 2;
+        if (count == 0) {
+            return;
+        }
+        // Sort the ranges by their start, as packed longs
+        if (packedSpans.values.length < count) {
+            packedSpans.values = new long[Math.max(count, packedSpans.values.length * 2)];
+        }
+        final long[] packed = packedSpans.values;
+        for (int i = 0; i < count; i++) {
+            final int start = clamp(spans.get(2 * i), tilesPerSide);
+            final int end = clamp(spans.get(2 * i + 1), tilesPerSide);
+            packed[i] = ((long) start << 32) | end;
+        }
+        Arrays.sort(packed, 0, count);
 
-        int zoom, x, y;
-        // Middle condition intentionally 'less than' instead of 'less than or equal'.
-        // If the 'break' is never hit, the last increment will make zoom equal to this.maximumZoom and end the loop.
-        for (zoom = this.minimumZoom; zoom < this.maximumZoom; zoom++) {
-            int boundsIndex = zoom - this.minimumZoom;
-            Bounds bounds = this.bounds.get(boundsIndex);
-            int urlsInThisLevel = (bounds.maxX - bounds.minX + 1) * (bounds.maxY - bounds.minY + 1);
-            if (index < urlsInThisLevel) {
-                break;
+        spans.clear();
+        int start = (int) (packed[0] >>> 32);
+        int end = (int) packed[0];
+        for (int i = 1; i < count; i++) {
+            final int s = (int) (packed[i] >>> 32);
+            final int e = (int) packed[i];
+            if (s <= end + 1) {
+                end = Math.max(end, e);
             } else {
-                index -= urlsInThisLevel;
+                spans.add(start);
+                spans.add(end);
+                start = s;
+                end = e;
+            }
+        }
+        spans.add(start);
+        spans.add(end);
+    }
+
+    /**
+     * Project the rings of the polygons to web mercator, normalized to [0, 1] on both axes.
+     */
+    private static List<double[][]> projectPolygons(List<Polygon> polygons) {
+        final ArrayList<double[][]> projected = new ArrayList<double[][]>(polygons.size());
+        for (Polygon polygon : polygons) {
+            final List<Ring> rings = polygon.getRings();
+            final double[][] projectedRings = new double[rings.size()][];
+            for (int r = 0; r < rings.size(); r++) {
+                final List<Position> positions = rings.get(r).getPositions();
+                final int size = positions.size();
+                // Close the ring if it isn't already
+                final double[] coordinates = new double[(size + 1) * 2];
+                for (int i = 0; i < size; i++) {
+                    final Position position = positions.get(i);
+                    coordinates[2 * i] = projectLongitude(position.getLongitude());
+                    coordinates[2 * i + 1] = projectLatitude(position.getLatitude());
+                }
+                if (size > 0) {
+                    coordinates[2 * size] = coordinates[0];
+                    coordinates[2 * size + 1] = coordinates[1];
+                }
+                projectedRings[r] = coordinates;
+            }
+            projected.add(projectedRings);
+        }
+        return projected;
+    }
+
+    /**
+     * @return minX, minY, maxX, maxY of all the rings, or null if there are no coordinates
+     */
+    private static double[] bounds(List<double[][]> polygons) {
+        double[] bounds = null;
+        for (double[][] polygon : polygons) {
+            for (double[] ring : polygon) {
+                for (int i = 0; i + 1 < ring.length; i += 2) {
+                    if (bounds == null) {
+                        bounds = new double[] { ring[i], ring[i + 1], ring[i], ring[i + 1] };
+                    } else {
+                        bounds[0] = Math.min(bounds[0], ring[i]);
+                        bounds[1] = Math.min(bounds[1], ring[i + 1]);
+                        bounds[2] = Math.max(bounds[2], ring[i]);
+                        bounds[3] = Math.max(bounds[3], ring[i + 1]);
+                    }
+                }
             }
         }
+        return bounds;
+    }
+
+    private static double projectLongitude(double longitude) {
+        return (longitude + 180.0) / 360.0;
+    }
+
+    private static double projectLatitude(double latitude) {
+        final double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        return (1.0 - (Math.log(Math.tan(lat) + 1.0 / Math.cos(lat)) / MathConstants.PI)) / 2.0;
+    }
+
+    private static int clamp(int tile, int tilesPerSide) {
+        return Math.max(0, Math.min(tilesPerSide - 1, tile));
+    }
+
+    private static double clamp01(double t) {
+        return Math.max(0.0, Math.min(1.0, t));
+    }
+
+    /**
+     * Minimal growable int array, to keep the per-row work free of boxing.
+     */
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Scratch array reused across rows for the crossings of the middle line.
+     */
+    private static final class DoubleBuffer {
+        double[] values = new double[16];
+    }
 
-        Bounds bounds = this.bounds.get(zoom - this.minimumZoom);
-        int yCount = bounds.maxY - bounds.minY + 1;
-        x = (index / yCount) + bounds.minX;
-        y = (index % yCount) + bounds.minY;
-        return MapboxUtils.getMapTileURL(context, mapID, zoom, x, y, imageQuality);
+    /**
+     * Scratch array reused across rows to sort the column ranges.
+     */
+    private static final class LongBuffer {
+        long[] values = new long[16];
     }
 }
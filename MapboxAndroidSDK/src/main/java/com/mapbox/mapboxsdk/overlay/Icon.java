@@ -13,6 +13,7 @@ import com.mapbox.mapboxsdk.util.NetworkUtils;
 import com.mapbox.mapboxsdk.util.constants.UtilConstants;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
@@ -214,7 +215,13 @@ public class Icon implements MapboxConstants {
                     // Note, sIconCache cannot be null..
 
                     BitmapFactory.Options opts = BitmapUtils.getBitmapOptions(context.getResources().getDisplayMetrics());
-                    result = sIconCache.put(this.url, connection.getInputStream(), opts);
+                    InputStream is = connection.getInputStream();
+                    try {
+                        result = sIconCache.put(this.url, is, opts);
+                    } finally {
+                        // Hands the connection back to the pool
+                        is.close();
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "doInBackground: Unable to fetch icon from: " + this.url);
                 }
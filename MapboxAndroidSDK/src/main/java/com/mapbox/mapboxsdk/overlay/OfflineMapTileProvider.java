@@ -1,61 +1,43 @@
 package com.mapbox.mapboxsdk.overlay;
 
 import android.content.Context;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
-import com.mapbox.mapboxsdk.exceptions.OfflineDatabaseException;
 import com.mapbox.mapboxsdk.offline.OfflineMapDatabase;
-import com.mapbox.mapboxsdk.tileprovider.MapTile;
-import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
-import com.mapbox.mapboxsdk.util.MapboxUtils;
-import java.io.ByteArrayInputStream;
+import com.mapbox.mapboxsdk.tileprovider.MapTileLayerArray;
+import com.mapbox.mapboxsdk.tileprovider.modules.MapTileOfflineDatabaseProvider;
+import com.mapbox.mapboxsdk.tileprovider.util.SimpleRegisterReceiver;
+import com.mapbox.mapboxsdk.views.MapView;
 
-import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
-
-public class OfflineMapTileProvider extends MapTileLayerBase implements MapboxConstants {
+/**
+ * Serves the tiles of an {@link OfflineMapDatabase}. Tiles are read and decoded asynchronously by a
+ * {@link MapTileOfflineDatabaseProvider}; the drawing thread only ever looks at the memory cache.
+ */
+public class OfflineMapTileProvider extends MapTileLayerArray implements MapboxConstants {
 
     private static final String TAG = "OfflineMapTileProvider";
 
     private OfflineMapDatabase offlineMapDatabase = null;
 
+    /**
+     * Creates a provider that isn't attached to a view yet. The {@link TilesOverlay} showing it
+     * hands it the completion handler of its map on the first draw, so the map is redrawn as tiles
+     * come in.
+     */
     public OfflineMapTileProvider(Context context, OfflineMapDatabase offlineMapDatabase) {
-        super(context, null);
+        super(context, null, new SimpleRegisterReceiver(context));
         this.offlineMapDatabase = offlineMapDatabase;
+        mCacheKey = offlineMapDatabase.getMapID();
+        mTileProviderList.add(new MapTileOfflineDatabaseProvider(offlineMapDatabase, mTileCache));
     }
 
-    @Override
-    public Drawable getMapTile(MapTile pTile, boolean allowRemote) {
-        try {
-            CacheableBitmapDrawable cacheable = mTileCache.getMapTile(pTile);
-            if (cacheable != null) {
-                return cacheable;
-            }
-
-            // Build URL to match url in database
-            String url = MapboxUtils.getMapTileURL(context, offlineMapDatabase.getMapID(), pTile.getZ(), pTile.getX(), pTile.getY(), offlineMapDatabase.getImageQuality());
-            byte[] data = offlineMapDatabase.dataForURL(url);
-
-            if (data == null || data.length == 0) {
-                // No data found, just return null so that default gray screen is displayed.
-                return null;
-            }
-
-            // Return the tile image
-            BitmapDrawable drawable = new BitmapDrawable(context.getResources(), new ByteArrayInputStream(data));
-            return mTileCache.putTile(pTile, drawable);
-        } catch (OfflineDatabaseException e) {
-            e.printStackTrace();
-        }
-
-        return null;
+    public OfflineMapTileProvider(Context context, OfflineMapDatabase offlineMapDatabase, MapView mapView) {
+        this(context, offlineMapDatabase);
+        setTileRequestCompleteHandler(mapView.getTileRequestCompleteHandler());
     }
 
     @Override
     public void detach() {
-        if (getTileSource() != null) {
-            getTileSource().detach();
-        }
+        super.detach();
         if (offlineMapDatabase != null) {
             offlineMapDatabase.closeDatabase();
         }
@@ -11,6 +11,8 @@ import android.graphics.Shader;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase;
@@ -35,6 +37,24 @@ public class TilesOverlay extends SafeDrawOverlay {
     private static final String TAG = "TilesOverlay";
 
     public static final int MENU_OFFLINE = getSafeMenuId();
+
+    /**
+     * Default number of rings of tiles prefetched around the viewport.
+     */
+    public static final int DEFAULT_PREFETCH_MARGIN = 1;
+
+    /**
+     * Default maximum number of tiles prefetched for a viewport.
+     */
+    public static final int DEFAULT_PREFETCH_MAX_TILES = 48;
+
+    /**
+     * How many zoom levels up a missing tile looks for a cached ancestor to draw instead.
+     */
+    public static final int MAX_FALLBACK_ZOOM_DIFF = 4;
+
+    // How long the map has to stay still before tiles are prefetched
+    private static final long PREFETCH_DELAY_MS = 250;
     private int mNuberOfTiles;
 
     /**
@@ -50,6 +70,10 @@ public class TilesOverlay extends SafeDrawOverlay {
     private final Rect mTileRect = new Rect();
     private final Rect mViewPort = new Rect();
     private final Rect mClipRect = new Rect();
+    private final Point mViewportCenterTile = new Point();
+    private int mViewportZoom = -1;
+    private int mViewportCenterX;
+    private int mViewportCenterY;
     float mCurrentZoomFactor = 1;
     private float mRescaleZoomDiffMax = 4;
     private boolean isAnimating = false;
@@ -60,6 +84,16 @@ public class TilesOverlay extends SafeDrawOverlay {
     private int mLoadingBackgroundColor = Color.rgb(216, 208, 208);
     private int mLoadingLineColor = Color.rgb(200, 192, 192);
     private boolean mDrawLoadingTile = true;
+    private boolean mDrawFallbackTiles = true;
+    private final Rect mFallbackSrcRect = new Rect();
+    private final Rect mFallbackDestRect = new Rect();
+    private final Paint mFallbackPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private int mPrefetchMargin = DEFAULT_PREFETCH_MARGIN;
+    private boolean mPrefetchZoomLevels = true;
+    private int mPrefetchMaxTiles = DEFAULT_PREFETCH_MAX_TILES;
+    private final Handler mPrefetchHandler = new Handler(Looper.getMainLooper());
+    private final TilePrefetcher mPrefetcher = new TilePrefetcher();
 
     public TilesOverlay(final MapTileLayerBase aTileProvider) {
         super();
@@ -91,6 +125,7 @@ public class TilesOverlay extends SafeDrawOverlay {
 
     @Override
     public void onDetach(final MapView pMapView) {
+        cancelPrefetch();
         this.mTileProvider.detach();
     }
 
@@ -127,6 +162,11 @@ public class TilesOverlay extends SafeDrawOverlay {
         if (shadow) {
             return;
         }
+        if (mTileProvider.getTileRequestCompleteHandler() == null) {
+            // A provider created without a view, e.g. added with addOverlay(): redraw this map as
+            // its tiles are loaded
+            mTileProvider.setTileRequestCompleteHandler(mapView.getTileRequestCompleteHandler());
+        }
         //Commented for now. It needs heavy testing to see if we actually need it
         isAnimating = mapView.isAnimating();
 
@@ -142,10 +182,16 @@ public class TilesOverlay extends SafeDrawOverlay {
         int tileSize = Projection.getTileSize();
         // Draw the tiles!
         if (tileSize > 0) {
+            updateViewport(zoomLevel);
             if (mDrawLoadingTile) {
                 drawLoadingTile(c.getSafeCanvas(), mapView, zoomLevel, mClipRect);
             }
             drawTiles(c.getSafeCanvas(), zoomLevel, tileSize, mViewPort, mClipRect);
+            if (isAnimating) {
+                cancelPrefetch();
+            } else {
+                schedulePrefetch(zoomLevel, tileSize);
+            }
         }
 
         if (UtilConstants.DEBUGMODE && mapView.getScrollableAreaLimit() != null) {
@@ -160,6 +206,23 @@ public class TilesOverlay extends SafeDrawOverlay {
         }
     }
 
+    /**
+     * Let the tile provider know which tile is at the center of the viewport, so that its
+     * pending requests can be ranked. Only forwarded when the center tile or zoom changes.
+     */
+    private void updateViewport(final float zoomLevel) {
+        final int zoom = (int) Math.floor(zoomLevel);
+        Projection.pixelXYToTileXY(mViewPort.centerX(), mViewPort.centerY(), mViewportCenterTile);
+        final int centerX = GeometryMath.mod(mViewportCenterTile.x, 1 << zoom);
+        final int centerY = mViewportCenterTile.y;
+        if (zoom != mViewportZoom || centerX != mViewportCenterX || centerY != mViewportCenterY) {
+            mViewportZoom = zoom;
+            mViewportCenterX = centerX;
+            mViewportCenterY = centerY;
+            mTileProvider.setViewport(zoom, centerX, centerY);
+        }
+    }
+
     /**
      * Draw a loading tile image to make in-progress tiles easier to deal with.
      *
@@ -185,7 +248,8 @@ public class TilesOverlay extends SafeDrawOverlay {
     public void drawTiles(final Canvas c, final float zoomLevel, final int tileSizePx,
                           final Rect viewPort, final Rect pClipRect) {
 
-        mNuberOfTiles = mTileLooper.loop(c, mTileProvider.getCacheKey(), zoomLevel, tileSizePx, viewPort, pClipRect);
+        mNuberOfTiles = mTileLooper.loop(c, mTileProvider.getCacheKey(), mTileProvider.getLayerId(),
+                zoomLevel, tileSizePx, viewPort, pClipRect);
 
         // draw a cross at center in debug mode
         if (UtilConstants.DEBUGMODE) {
@@ -236,6 +300,9 @@ public class TilesOverlay extends SafeDrawOverlay {
             } else {
                 mTileProvider.memoryCacheNeedsMoreMemory(mNuberOfTiles);
                 //Log.w(TAG, "tile should have been drawn to canvas, but it was null.  tile = '" + pTile + "'");
+                if (mDrawFallbackTiles) {
+                    drawFallbackTile(pCanvas, pCacheKey, pTile);
+                }
             }
 
             if (UtilConstants.DEBUGMODE) {
@@ -244,8 +311,252 @@ public class TilesOverlay extends SafeDrawOverlay {
                 canvas.drawRect(mTileRect, getDebugPaint());
             }
         }
+
+        /**
+         * Draws what the memory cache has of a missing tile at other zoom levels in mTileRect:
+         * the parent scaled up, else the children scaled down, else a farther ancestor. The
+         * cached bitmaps are drawn scaled, no bitmap is created.
+         *
+         * @return true if something was drawn
+         */
+        private boolean drawFallbackTile(final Canvas pCanvas, final String pCacheKey,
+                                         final MapTile pTile) {
+            if (drawAncestor(pCanvas, pCacheKey, pTile, 1)
+                    || drawChildren(pCanvas, pCacheKey, pTile)) {
+                return true;
+            }
+            for (int dz = 2; dz <= MAX_FALLBACK_ZOOM_DIFF; dz++) {
+                if (drawAncestor(pCanvas, pCacheKey, pTile, dz)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean drawAncestor(final Canvas pCanvas, final String pCacheKey,
+                                     final MapTile pTile, final int dz) {
+            final int z = pTile.getZ() - dz;
+            if (z < 0 || z < mTileProvider.getMinimumZoomLevel()) {
+                return false;
+            }
+            final Bitmap bitmap = getCachedBitmap(pCacheKey, z, pTile.getX() >> dz, pTile.getY() >> dz);
+            if (bitmap == null) {
+                return false;
+            }
+            // The part of the ancestor covering the tile
+            final int size = bitmap.getWidth() >> dz;
+            if (size == 0) {
+                return false;
+            }
+            final int mask = (1 << dz) - 1;
+            final int left = (pTile.getX() & mask) * size;
+            final int top = (pTile.getY() & mask) * size;
+            mFallbackSrcRect.set(left, top, left + size, top + size);
+            pCanvas.drawBitmap(bitmap, mFallbackSrcRect, mTileRect, mFallbackPaint);
+            return true;
+        }
+
+        private boolean drawChildren(final Canvas pCanvas, final String pCacheKey,
+                                     final MapTile pTile) {
+            final int z = pTile.getZ() + 1;
+            if (z > mTileProvider.getMaximumZoomLevel()) {
+                return false;
+            }
+            boolean drawn = false;
+            final int centerX = mTileRect.centerX();
+            final int centerY = mTileRect.centerY();
+            for (int i = 0; i < 4; i++) {
+                final int dx = i & 1;
+                final int dy = i >> 1;
+                final Bitmap bitmap = getCachedBitmap(pCacheKey, z, (pTile.getX() << 1) + dx,
+                        (pTile.getY() << 1) + dy);
+                if (bitmap != null) {
+                    mFallbackDestRect.set(dx == 0 ? mTileRect.left : centerX,
+                            dy == 0 ? mTileRect.top : centerY,
+                            dx == 0 ? centerX : mTileRect.right,
+                            dy == 0 ? centerY : mTileRect.bottom);
+                    pCanvas.drawBitmap(bitmap, null, mFallbackDestRect, mFallbackPaint);
+                    drawn = true;
+                }
+            }
+            return drawn;
+        }
+
+        /**
+         * @return the bitmap of a tile of the memory cache, marked as being used until it is
+         * drawn, or null if the tile isn't there
+         */
+        private Bitmap getCachedBitmap(final String pCacheKey, final int z, final int x,
+                                       final int y) {
+            final CacheableBitmapDrawable drawable =
+                    mTileProvider.getMapTileFromMemory(obtainTile(pCacheKey, z, x, y));
+            if (drawable == null) {
+                return null;
+            }
+            drawable.setBeingUsed(true);
+            mBeingUsedDrawables.add(drawable);
+            return drawable.getBitmap();
+        }
     };
 
+    /**
+     * Set whether a tile that isn't loaded yet is drawn from the tiles of the memory cache at
+     * other zoom levels, a part of an ancestor scaled up or the children scaled down, rather than
+     * as a loading tile. Defaults to true. Rescaling the cache on zoom is then not needed, and
+     * {@link #rescaleCache(float, float, Projection)} does nothing.
+     */
+    public void setDrawFallbackTiles(final boolean drawFallbackTiles) {
+        mDrawFallbackTiles = drawFallbackTiles;
+    }
+
+    public boolean isDrawingFallbackTiles() {
+        return mDrawFallbackTiles;
+    }
+
+    /**
+     * Set how many rings of tiles around the viewport are requested once the map stops moving,
+     * so they are ready when the map is panned. 0 only prefetches the adjacent zoom levels, if
+     * enabled.
+     *
+     * @param margin the number of rings of tiles, defaults to {@value #DEFAULT_PREFETCH_MARGIN}
+     */
+    public void setPrefetchMargin(final int margin) {
+        mPrefetchMargin = Math.max(0, margin);
+    }
+
+    public int getPrefetchMargin() {
+        return mPrefetchMargin;
+    }
+
+    /**
+     * Set whether the tiles of the viewport at the parent and child zoom levels are requested
+     * once the map stops moving, so they are ready when the map is zoomed. Defaults to true.
+     */
+    public void setPrefetchZoomLevels(final boolean prefetch) {
+        mPrefetchZoomLevels = prefetch;
+    }
+
+    public boolean isPrefetchingZoomLevels() {
+        return mPrefetchZoomLevels;
+    }
+
+    /**
+     * Set the maximum number of tiles prefetched for a viewport. Fewer are prefetched if the
+     * memory cache can't hold them along with the displayed tiles. 0 disables prefetching.
+     *
+     * @param maxTiles the number of tiles, defaults to {@value #DEFAULT_PREFETCH_MAX_TILES}
+     */
+    public void setPrefetchMaxTiles(final int maxTiles) {
+        mPrefetchMaxTiles = Math.max(0, maxTiles);
+        if (mPrefetchMaxTiles == 0) {
+            cancelPrefetch();
+        }
+    }
+
+    public int getPrefetchMaxTiles() {
+        return mPrefetchMaxTiles;
+    }
+
+    /**
+     * Cancel the prefetch scheduled for the current viewport, if it hasn't run yet. Prefetch
+     * requests already queued are cancelled by the tile providers once the viewport moves away.
+     */
+    public void cancelPrefetch() {
+        mPrefetchHandler.removeCallbacks(mPrefetcher);
+    }
+
+    private void schedulePrefetch(final float zoomLevel, final int tileSizePx) {
+        mPrefetchHandler.removeCallbacks(mPrefetcher);
+        if (mPrefetchMaxTiles == 0 || (mPrefetchMargin == 0 && !mPrefetchZoomLevels)) {
+            return;
+        }
+        if (mPrefetcher.set(zoomLevel, tileSizePx, mViewPort)) {
+            mPrefetchHandler.postDelayed(mPrefetcher, PREFETCH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Requests the tiles around the last drawn viewport and at the adjacent zoom levels: first the
+     * parent tiles, which are few, then the rings around the viewport from the closest, then the
+     * child tiles. The tile providers load them after the displayed tiles, as they are farther
+     * from the center of the viewport or at another zoom level.
+     */
+    private final class TilePrefetcher implements Runnable {
+        private final Rect mPrefetchViewPort = new Rect();
+        private final Point mUpperLeft = new Point();
+        private final Point mLowerRight = new Point();
+        private int mZoom;
+        private int mTileSizePx;
+        private int mRemaining;
+        private boolean mDone = false;
+
+        /**
+         * @return false if the tiles of this viewport have already been prefetched
+         */
+        boolean set(final float zoomLevel, final int tileSizePx, final Rect viewPort) {
+            final int zoom = (int) Math.floor(zoomLevel);
+            if (mDone && zoom == mZoom && tileSizePx == mTileSizePx && viewPort.equals(mPrefetchViewPort)) {
+                return false;
+            }
+            mDone = false;
+            mZoom = zoom;
+            mTileSizePx = tileSizePx;
+            mPrefetchViewPort.set(viewPort);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            mDone = true;
+            Projection.pixelXYToTileXY(mPrefetchViewPort.left, mPrefetchViewPort.top, mUpperLeft);
+            mUpperLeft.offset(-1, -1);
+            Projection.pixelXYToTileXY(mPrefetchViewPort.right, mPrefetchViewPort.bottom, mLowerRight);
+            mLowerRight.offset(1, 1);
+
+            // Stay within what the memory cache can hold along with the displayed tiles
+            final int visibleTiles = (mLowerRight.x - mUpperLeft.x + 1) * (mLowerRight.y - mUpperLeft.y + 1);
+            final int cacheTiles = mTileProvider.getMemoryCacheMaxSize() / (mTileSizePx * mTileSizePx * 4);
+            mRemaining = Math.min(mPrefetchMaxTiles, cacheTiles - visibleTiles);
+
+            final String cacheKey = mTileProvider.getCacheKey();
+            final int layerId = mTileProvider.getLayerId();
+            if (mPrefetchZoomLevels && mZoom - 1 >= mTileProvider.getMinimumZoomLevel()) {
+                prefetchRange(cacheKey, layerId, mZoom - 1, mUpperLeft.x >> 1, mUpperLeft.y >> 1,
+                        mLowerRight.x >> 1, mLowerRight.y >> 1);
+            }
+            for (int d = 1; d <= mPrefetchMargin; d++) {
+                final int left = mUpperLeft.x - d;
+                final int top = mUpperLeft.y - d;
+                final int right = mLowerRight.x + d;
+                final int bottom = mLowerRight.y + d;
+                prefetchRange(cacheKey, layerId, mZoom, left, top, right, top);
+                prefetchRange(cacheKey, layerId, mZoom, left, bottom, right, bottom);
+                prefetchRange(cacheKey, layerId, mZoom, left, top + 1, left, bottom - 1);
+                prefetchRange(cacheKey, layerId, mZoom, right, top + 1, right, bottom - 1);
+            }
+            if (mPrefetchZoomLevels && mZoom + 1 <= mTileProvider.getMaximumZoomLevel()) {
+                prefetchRange(cacheKey, layerId, mZoom + 1, mUpperLeft.x << 1, mUpperLeft.y << 1,
+                        (mLowerRight.x << 1) + 1, (mLowerRight.y << 1) + 1);
+            }
+        }
+
+        private void prefetchRange(final String cacheKey, final int layerId, final int zoom,
+                                   final int left, final int top, final int right,
+                                   final int bottom) {
+            final int mapTileUpperBound = 1 << zoom;
+            for (int y = Math.max(top, 0); y <= Math.min(bottom, mapTileUpperBound - 1); y++) {
+                for (int x = left; x <= right; x++) {
+                    if (mRemaining <= 0) {
+                        return;
+                    }
+                    mRemaining--;
+                    mTileProvider.prefetchMapTile(new MapTile(cacheKey, layerId, zoom,
+                            GeometryMath.mod(x, mapTileUpperBound), y));
+                }
+            }
+        }
+    }
+
     public int getLoadingBackgroundColor() {
         return mLoadingBackgroundColor;
     }
@@ -334,7 +645,7 @@ public class TilesOverlay extends SafeDrawOverlay {
     public void rescaleCache(final float pNewZoomLevel, final float pOldZoomLevel,
                              final Projection projection) {
 
-        if (mTileProvider.hasNoSource() || Math.floor(pNewZoomLevel) == Math.floor(pOldZoomLevel) || projection == null || Math.abs(pOldZoomLevel - pNewZoomLevel) > mRescaleZoomDiffMax) {
+        if (mDrawFallbackTiles || mTileProvider.hasNoSource() || Math.floor(pNewZoomLevel) == Math.floor(pOldZoomLevel) || projection == null || Math.abs(pOldZoomLevel - pNewZoomLevel) > mRescaleZoomDiffMax) {
             return;
         }
 
@@ -351,7 +662,8 @@ public class TilesOverlay extends SafeDrawOverlay {
         final ScaleTileLooper tileLooper =
                 pNewZoomLevel > pOldZoomLevel ? new ZoomInTileLooper(pOldZoomLevel)
                         : new ZoomOutTileLooper(pOldZoomLevel);
-        tileLooper.loop(null, mTileProvider.getCacheKey(), pNewZoomLevel, tileSize, viewPort, null);
+        tileLooper.loop(null, mTileProvider.getCacheKey(), mTileProvider.getLayerId(), pNewZoomLevel,
+                tileSize, viewPort, null);
 
         final long endMs = System.currentTimeMillis();
         if (UtilConstants.DEBUGMODE) {
@@ -439,7 +751,7 @@ public class TilesOverlay extends SafeDrawOverlay {
             int oldTileY = GeometryMath.mod((int) GeometryMath.rightShift(pY, mDiff), mOldTileUpperBound);
 
             // get the correct fraction of the tile from cache and scale up
-            final MapTile oldTile = new MapTile(pCacheKey,
+            final MapTile oldTile = new MapTile(pCacheKey, getLayerId(),
                     mOldZoomRound, oldTileX, oldTileY);
             final Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
 
@@ -498,7 +810,7 @@ public class TilesOverlay extends SafeDrawOverlay {
                 for (int y = 0; y < numTiles; y++) {
                     oldTileY = GeometryMath.mod(yy + y, mOldTileUpperBound);
                     oldTileX = GeometryMath.mod(xx + x, mOldTileUpperBound);
-                    final MapTile oldTile = new MapTile(pCacheKey,
+                    final MapTile oldTile = new MapTile(pCacheKey, getLayerId(),
                             mOldZoomRound, oldTileX, oldTileY);
                     Drawable oldDrawable = mTileProvider.getMapTileFromMemory(oldTile);
 
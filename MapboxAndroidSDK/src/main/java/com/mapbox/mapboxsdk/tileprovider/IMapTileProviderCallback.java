@@ -20,6 +20,15 @@ public interface IMapTileProviderCallback {
      */
     void mapTileRequestFailed(MapTileRequestState aState);
 
+    /**
+     * The map tile request has been dropped by a provider before it was tried, because its queue
+     * was full or the tile no longer matches the viewport. It is not passed on to the next
+     * provider.
+     *
+     * @param aState a state object
+     */
+    void mapTileRequestDropped(MapTileRequestState aState);
+
     /**
      * The map tile request has produced an expired tile.
      *
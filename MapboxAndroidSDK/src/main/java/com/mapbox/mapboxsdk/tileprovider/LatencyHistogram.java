@@ -0,0 +1,131 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with power of two buckets: the first bucket counts the latencies under
+ * a millisecond, bucket <code>i</code> those from 2<sup>i-1</sup> to 2<sup>i</sup> milliseconds and
+ * the last one everything longer. Recording is lock-free and doesn't allocate.
+ */
+public final class LatencyHistogram {
+
+    public static final int BUCKET_COUNT = 18;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final AtomicLongArray mBuckets;
+    private final AtomicLong mCount;
+    private final AtomicLong mTotalNanos;
+    private final AtomicLong mMaxNanos;
+
+    public LatencyHistogram() {
+        mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        mCount = new AtomicLong();
+        mTotalNanos = new AtomicLong();
+        mMaxNanos = new AtomicLong();
+    }
+
+    /**
+     * Records the time elapsed since <code>startNanos</code>, as given by
+     * {@link System#nanoTime()}.
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(final long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        final long millis = nanos / NANOS_PER_MILLI;
+        final int bucket = millis == 0 ? 0
+                : Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(millis));
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, nanos)) {
+            // Lost a race with another thread, try again
+        }
+    }
+
+    /**
+     * @return a copy of the histogram, which isn't updated anymore
+     */
+    public LatencyHistogram copy() {
+        final LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy.mBuckets.set(i, mBuckets.get(i));
+        }
+        copy.mCount.set(mCount.get());
+        copy.mTotalNanos.set(mTotalNanos.get());
+        copy.mMaxNanos.set(mMaxNanos.get());
+        return copy;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return the number of latencies recorded in a bucket
+     */
+    public long getBucketCount(final int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    /**
+     * @return the upper bound of a bucket in milliseconds, or {@link Long#MAX_VALUE} for the last
+     * one
+     */
+    public static long getBucketUpperBoundMillis(final int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public double getMeanMillis() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : (double) mTotalNanos.get() / count / NANOS_PER_MILLI;
+    }
+
+    public double getMaxMillis() {
+        return (double) mMaxNanos.get() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound in milliseconds of the bucket holding the percentile, or the
+     * maximum if it is in the last bucket, or 0 if nothing was recorded
+     */
+    public double getPercentileMillis(final double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return getBucketUpperBoundMillis(i);
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LatencyHistogram [count=%d, mean=%.1fms, p50=%.0fms, p95=%.0fms, max=%.1fms]",
+                getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(95),
+                getMaxMillis());
+    }
+}
@@ -5,6 +5,7 @@ import com.mapbox.mapboxsdk.constants.GeoConstants;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A map tile is distributed using the observer pattern. The tile is delivered by a tile provider
@@ -13,20 +14,47 @@ import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
  * {@link MapTileLayerBase} to a consumer of tiles (e.g. descendant of
  * {@link com.mapbox.mapboxsdk.overlay.TilesOverlay}). Tiles are typically images (e.g. png or
  * jpeg).
+ * <p/>
+ * Each tile is identified by a packed 64-bit id holding its layer, zoom level and indices (see
+ * {@link #getId()}), which is what tiles are compared and looked up with. The path and cache key
+ * strings are only built when asked for, at the network and disk boundaries.
  */
 public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstants {
 
     public static final int MAPTILE_SUCCESS_ID = 0;
     public static final int MAPTILE_FAIL_ID = MAPTILE_SUCCESS_ID + 1;
 
+    // Layout of a tile id, from the most significant bits: layer, zoom level, x and y
+    private static final int ID_LAYER_BITS = 15;
+    private static final int ID_ZOOM_BITS = 5;
+    private static final int ID_INDEX_BITS = 22;
+    private static final int ID_Y_SHIFT = 0;
+    private static final int ID_X_SHIFT = ID_INDEX_BITS;
+    private static final int ID_ZOOM_SHIFT = 2 * ID_INDEX_BITS;
+    private static final int ID_LAYER_SHIFT = ID_ZOOM_SHIFT + ID_ZOOM_BITS;
+    private static final long ID_INDEX_MASK = (1L << ID_INDEX_BITS) - 1;
+    private static final long ID_ZOOM_MASK = (1L << ID_ZOOM_BITS) - 1;
+    private static final long ID_LAYER_MASK = (1L << ID_LAYER_BITS) - 1;
+
+    // The id of each layer cache key, the empty key being 0. Read without locking, ids are
+    // handed out under the lock of the map.
+    private static final ConcurrentHashMap<String, Integer> sLayerIds =
+            new ConcurrentHashMap<String, Integer>();
+    private static int sNextLayerId = 1;
+
+    static {
+        sLayerIds.put("", 0);
+    }
+
     // This class must be immutable because it's used as the key in the cache hash map
-    // (ie all the fields are final).
+    // (ie all the fields are final, the strings are only built lazily).
     private final int x;
     private final int y;
     private final int z;
-    private final String path;
-    private final String cacheKey;
-    private final int code;
+    private final long id;
+    private final String layerKey;
+    private String path;
+    private String cacheKey;
     private Rect mTileRect;
 
     // For lat/lng bounds calculation
@@ -39,12 +67,84 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
     }
 
     public MapTile(final String aCacheKey, final int az, final int ax, final int ay) {
+        this(aCacheKey, getLayerId(aCacheKey), az, ax, ay);
+    }
+
+    /**
+     * Creates a tile of a layer whose id was already looked up with {@link #getLayerId(String)},
+     * which is what the draw loop does so it doesn't hash the cache key for every tile.
+     *
+     * @param aLayerId the id of <code>aCacheKey</code>
+     */
+    public MapTile(final String aCacheKey, final int aLayerId, final int az, final int ax,
+            final int ay) {
+        if (aLayerId < 0 || aLayerId > ID_LAYER_MASK) {
+            throw new IllegalArgumentException("Invalid layer id: " + aLayerId);
+        }
         this.z = az;
         this.x = ax;
         this.y = ay;
-        this.path = (new StringBuilder()).append(z).append('/').append(x).append('/').append(y).toString();
-        this.cacheKey = aCacheKey + "/" + path;
-        this.code = ((17 * (37 + z)) * (37 * x)) * (37 + y);
+        this.layerKey = (aCacheKey != null) ? aCacheKey : "";
+        this.id = toId(aLayerId, az, ax, ay);
+    }
+
+    /**
+     * @return the small number standing for a layer cache key in tile ids. Numbers are handed out
+     * in order and never reused, so the tiles of two layers can't share an id.
+     * @throws IllegalStateException if more than 32768 cache keys were used in the process
+     */
+    public static int getLayerId(final String aCacheKey) {
+        final String key = (aCacheKey != null) ? aCacheKey : "";
+        final Integer layerId = sLayerIds.get(key);
+        if (layerId != null) {
+            return layerId;
+        }
+        synchronized (sLayerIds) {
+            Integer created = sLayerIds.get(key);
+            if (created == null) {
+                if (sNextLayerId > ID_LAYER_MASK) {
+                    throw new IllegalStateException("Too many layer cache keys, no id left for "
+                            + key);
+                }
+                created = sNextLayerId++;
+                sLayerIds.put(key, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Packs a tile into a 64-bit id: 15 bits of layer, 5 bits of zoom level and 22 bits for each
+     * index, which covers every tile up to {@link #MAXIMUM_ZOOMLEVEL}.
+     */
+    public static long toId(final int layerId, final int z, final int x, final int y) {
+        return ((long) layerId << ID_LAYER_SHIFT)
+                | ((z & ID_ZOOM_MASK) << ID_ZOOM_SHIFT)
+                | ((x & ID_INDEX_MASK) << ID_X_SHIFT)
+                | ((y & ID_INDEX_MASK) << ID_Y_SHIFT);
+    }
+
+    public static int getLayerId(final long id) {
+        return (int) ((id >>> ID_LAYER_SHIFT) & ID_LAYER_MASK);
+    }
+
+    public static int getZ(final long id) {
+        return (int) ((id >>> ID_ZOOM_SHIFT) & ID_ZOOM_MASK);
+    }
+
+    public static int getX(final long id) {
+        return (int) ((id >>> ID_X_SHIFT) & ID_INDEX_MASK);
+    }
+
+    public static int getY(final long id) {
+        return (int) ((id >>> ID_Y_SHIFT) & ID_INDEX_MASK);
+    }
+
+    /**
+     * @return the packed id of this tile, unique for its layer, zoom level and indices
+     */
+    public long getId() {
+        return id;
     }
 
     public int getZ() {
@@ -60,16 +160,22 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
     }
 
     public String getPath() {
+        if (path == null) {
+            path = (new StringBuilder()).append(z).append('/').append(x).append('/').append(y).toString();
+        }
         return path;
     }
 
     public String getCacheKey() {
+        if (cacheKey == null) {
+            cacheKey = layerKey + "/" + getPath();
+        }
         return cacheKey;
     }
 
     @Override
     public String toString() {
-        return path;
+        return getPath();
     }
 
     @Override
@@ -83,17 +189,26 @@ public class MapTile implements GeoConstants, MapboxConstants, TileLayerConstant
         if (!(obj instanceof MapTile)) {
             return false;
         }
-        final MapTile rhs = (MapTile) obj;
-        return z == rhs.z && x == rhs.x && y == rhs.y;
+        return id == ((MapTile) obj).id;
     }
 
     @Override
     public int hashCode() {
-        return this.code;
+        return (int) (id ^ (id >>> 32));
     }
 
+    /**
+     * Sets where the tile was last drawn. The rect is copied, so a single rect can be reused to
+     * draw all the tiles.
+     */
     public void setTileRect(final Rect rect) {
-        mTileRect = rect;
+        if (rect == null) {
+            mTileRect = null;
+        } else if (mTileRect == null) {
+            mTileRect = new Rect(rect);
+        } else {
+            mTileRect.set(rect);
+        }
     }
 
     public final Rect getTileRect() {
@@ -25,10 +25,13 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 public class MapTileCache implements TileLayerConstants {
 
     protected static BitmapLruCache sCachedTiles = null;
+
+    private static final TileLoaderMetrics sMetrics = TileLoaderMetrics.getInstance();
     private Context context;
     static final String TAG = "MapTileCache";
     private static final String DISK_CACHE_SUBDIR = "mapbox_tiles_cache";
     private int mMaximumCacheSize;
+    private int mCompressedCacheSize = CACHE_MAPTILECOMPRESSEDSIZE_DEFAULT;
 
     private boolean mDiskCacheEnabled = false;
 
@@ -64,6 +67,7 @@ public class MapTileCache implements TileLayerConstants {
                     .setDiskCacheEnabled(mDiskCacheEnabled)
                     .setDiskCacheMaxSize(mMaximumCacheSize)
                     .setDiskCacheLocation(cacheDir)
+                    .setCompressedCacheMaxSize(mCompressedCacheSize)
                     .build();
             Log.i(TAG, "Disk Cache Enabled: '" + sCachedTiles.isDiskCacheEnabled() + "'; Memory Cache Enabled: '" + sCachedTiles.isMemoryCacheEnabled() + "'");
         }
@@ -83,27 +87,92 @@ public class MapTileCache implements TileLayerConstants {
     public CacheableBitmapDrawable getMapTile(final MapTile aTile) {
         String key = getCacheKey(aTile);
         CacheableBitmapDrawable result = getCache().getFromMemoryCache(key);
+        sMetrics.recordMemoryLookup(result != null);
         if (result == null) {
+            final long start = System.nanoTime();
             result = getCache().getFromDiskCache(key, null);
+            sMetrics.recordLatency(TileLoaderMetrics.STAGE_DISK_READ, start);
+            sMetrics.recordDiskLookup(result != null);
         }
-        return result;
+        return index(aTile, result);
     }
 
+    /**
+     * Looks a tile up in the memory cache. Tiles seen before are found by their id, indexed in the
+     * memory cache itself, so no string is built.
+     */
     public CacheableBitmapDrawable getMapTileFromMemory(final MapTile aTile) {
-        return getCache().getFromMemoryCache(getCacheKey(aTile));
+        CacheableBitmapDrawable result = getCache().getFromMemoryCache(aTile.getId());
+        if (result == null) {
+            // Not indexed, e.g. put in the memory cache by the bitmap cache itself on a disk read
+            result = index(aTile, getCache().getFromMemoryCache(getCacheKey(aTile)));
+        }
+        sMetrics.recordMemoryLookup(result != null);
+        return result;
+    }
+
+    /**
+     * Indexes a drawable just put in the memory cache under the id of its tile.
+     *
+     * @return the drawable
+     */
+    private CacheableBitmapDrawable index(final MapTile aTile,
+            final CacheableBitmapDrawable drawable) {
+        if (drawable != null) {
+            getCache().indexInMemoryCache(aTile.getId(), drawable);
+        }
+        return drawable;
+    }
+
+    /**
+     * Looks a tile up in the cache of compressed tiles only, without reading the disk.
+     *
+     * @return the tile, decoded and put in the memory cache, or null if it isn't there
+     */
+    public CacheableBitmapDrawable getMapTileFromCompressedCache(final MapTile aTile) {
+        final long start = System.nanoTime();
+        final CacheableBitmapDrawable result = getCache().getFromCompressedCache(getCacheKey(aTile), null);
+        if (result != null) {
+            // Misses are counted by the disk read that follows
+            sMetrics.recordLatency(TileLoaderMetrics.STAGE_DISK_READ, start);
+            sMetrics.recordDiskLookup(true);
+        }
+        return index(aTile, result);
     }
 
     public CacheableBitmapDrawable getMapTileFromDisk(final MapTile aTile) {
-        return getCache().getFromDiskCache(getCacheKey(aTile), null);
+        final long start = System.nanoTime();
+        final CacheableBitmapDrawable result = getCache().getFromDiskCache(getCacheKey(aTile), null);
+        sMetrics.recordLatency(TileLoaderMetrics.STAGE_DISK_READ, start);
+        sMetrics.recordDiskLookup(result != null);
+        return index(aTile, result);
     }
 
     public CacheableBitmapDrawable putTileStream(final MapTile aTile, final InputStream inputStream,
                                                  final BitmapFactory.Options decodeOpts) {
-        return getCache().put(getCacheKey(aTile), inputStream, decodeOpts);
+        final long start = System.nanoTime();
+        final CacheableBitmapDrawable result = getCache().put(getCacheKey(aTile), inputStream, decodeOpts);
+        sMetrics.recordLatency(TileLoaderMetrics.STAGE_CACHE_INSERT, start);
+        return index(aTile, result);
+    }
+
+    /**
+     * Decodes and caches the encoded contents of a tile, e.g. read from an MBTiles file. Nothing
+     * goes through a temporary file.
+     */
+    public CacheableBitmapDrawable putTileData(final MapTile aTile, final byte[] data,
+                                               final BitmapFactory.Options decodeOpts) {
+        final long start = System.nanoTime();
+        final CacheableBitmapDrawable result = getCache().put(getCacheKey(aTile), data, decodeOpts);
+        sMetrics.recordLatency(TileLoaderMetrics.STAGE_CACHE_INSERT, start);
+        return index(aTile, result);
     }
 
     public CacheableBitmapDrawable putTileBitmap(final MapTile aTile, final Bitmap bitmap) {
-        return getCache().put(getCacheKey(aTile), bitmap);
+        final long start = System.nanoTime();
+        final CacheableBitmapDrawable result = getCache().put(getCacheKey(aTile), bitmap);
+        sMetrics.recordLatency(TileLoaderMetrics.STAGE_CACHE_INSERT, start);
+        return index(aTile, result);
     }
 
     public CacheableBitmapDrawable putTile(final MapTile aTile, final Drawable aDrawable) {
@@ -111,8 +180,8 @@ public class MapTileCache implements TileLayerConstants {
             String key = getCacheKey(aTile);
             CacheableBitmapDrawable drawable = null;
             if (!getCache().containsInMemoryCache(key)) {
-                drawable = getCache().putInMemoryCache(getCacheKey(aTile),
-                        ((BitmapDrawable) aDrawable).getBitmap());
+                drawable = index(aTile, getCache().putInMemoryCache(getCacheKey(aTile),
+                        ((BitmapDrawable) aDrawable).getBitmap()));
             }
             if (getCache().isDiskCacheEnabled() && !getCache().containsInDiskCache(key)) {
                 if (drawable != null) {
@@ -127,9 +196,28 @@ public class MapTileCache implements TileLayerConstants {
         return null;
     }
 
+    /**
+     * Stores the encoded bytes of a tile, as they were downloaded, in the disk cache. They are
+     * only decoded when the tile is read back, so nothing is re-encoded here.
+     *
+     * @return true if the bytes were written
+     */
+    public boolean putTileDataInDiskCache(final MapTile aTile, final byte[] data, final int length) {
+        if (data == null || !getCache().isDiskCacheEnabled()) {
+            return false;
+        }
+        final long start = System.nanoTime();
+        final boolean written = getCache().putInDiskCache(getCacheKey(aTile), data, length);
+        sMetrics.recordLatency(TileLoaderMetrics.STAGE_CACHE_INSERT, start);
+        return written;
+    }
+
     public CacheableBitmapDrawable putTileInMemoryCache(final MapTile aTile, final Bitmap aBitmap) {
         if (aBitmap != null) {
-            return getCache().putInMemoryCache(getCacheKey(aTile), aBitmap);
+            final long start = System.nanoTime();
+            final CacheableBitmapDrawable result = getCache().putInMemoryCache(getCacheKey(aTile), aBitmap);
+            sMetrics.recordLatency(TileLoaderMetrics.STAGE_CACHE_INSERT, start);
+            return index(aTile, result);
         }
         return null;
     }
@@ -139,9 +227,9 @@ public class MapTileCache implements TileLayerConstants {
         if (aDrawable != null && aDrawable instanceof BitmapDrawable) {
             String key = getCacheKey(aTile);
             if (aDrawable instanceof CacheableBitmapDrawable) {
-                return getCache().putInMemoryCache(key, ((CacheableBitmapDrawable) aDrawable));
+                return index(aTile, getCache().putInMemoryCache(key, ((CacheableBitmapDrawable) aDrawable)));
             } else {
-                return getCache().putInMemoryCache(key, ((BitmapDrawable) aDrawable).getBitmap());
+                return index(aTile, getCache().putInMemoryCache(key, ((BitmapDrawable) aDrawable).getBitmap()));
             }
         }
         return null;
@@ -159,6 +247,34 @@ public class MapTileCache implements TileLayerConstants {
         return null;
     }
 
+    /**
+     * @return the HTTP validators stored with the tile in the disk cache, or null if there are
+     * none. They are read from the compressed cache when the tile is there with them.
+     */
+    public TileValidators getTileValidators(final MapTile aTile) {
+        if (!getCache().isDiskCacheEnabled()) {
+            return null;
+        }
+        final String key = getCacheKey(aTile);
+        String metadata = getCache().getMetadataFromCompressedCache(key);
+        if (metadata == null) {
+            metadata = getCache().getMetadataFromDiskCache(key);
+        }
+        return TileValidators.decode(metadata);
+    }
+
+    /**
+     * Stores the HTTP validators of a tile next to it in the disk cache.
+     *
+     * @param validators the validators, or null to remove them
+     */
+    public void putTileValidators(final MapTile aTile, final TileValidators validators) {
+        if (getCache().isDiskCacheEnabled()) {
+            getCache().putMetadataInDiskCache(getCacheKey(aTile),
+                    (validators != null) ? validators.encode() : null);
+        }
+    }
+
     public boolean containsTile(final MapTile aTile) {
         return getCache().contains(getCacheKey(aTile));
     }
@@ -193,10 +309,25 @@ public class MapTileCache implements TileLayerConstants {
         return getCache().getBitmapFromRemoved(width, height);
     }
 
+    /**
+     * Returns a bitmap that isn't used anymore to the pool the tiles are decoded into.
+     */
+    public void releaseBitmap(final Bitmap bitmap) {
+        getCache().releaseBitmap(bitmap);
+    }
+
     public Bitmap decodeBitmap(final byte[] data, final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(new BitmapLruCache.ByteArrayInputStreamProvider(data), opts);
     }
 
+    /**
+     * Decodes the first {@code length} bytes of a buffer, reusing a bitmap of the pool when one
+     * fits. Both the bounds and the pixels are decoded from the buffer, so it is read only once.
+     */
+    public Bitmap decodeBitmap(final byte[] data, final int length, final BitmapFactory.Options opts) {
+        return getCache().decodeBitmap(new BitmapLruCache.ByteArrayInputStreamProvider(data, length), opts);
+    }
+
     public Bitmap decodeBitmap(final BitmapLruCache.InputStreamProvider ip,
                                final BitmapFactory.Options opts) {
         return getCache().decodeBitmap(ip, opts);
@@ -229,4 +360,24 @@ public class MapTileCache implements TileLayerConstants {
     public boolean isDiskCacheEnabled() {
         return mDiskCacheEnabled;
     }
+
+    /**
+     * Sets the size of the cache of compressed tiles kept outside of the Java heap, so recently
+     * seen tiles are decoded again without a disk read. 0 disables it.
+     *
+     * @param size the size in bytes
+     */
+    public void setCompressedCacheSize(final int size) {
+        if (mCompressedCacheSize != size) {
+            mCompressedCacheSize = size;
+            // Resized in place, the memory and disk caches are kept
+            if (sCachedTiles != null) {
+                sCachedTiles.setCompressedCacheMaxSize(size);
+            }
+        }
+    }
+
+    public int getCompressedCacheSize() {
+        return mCompressedCacheSize;
+    }
 }
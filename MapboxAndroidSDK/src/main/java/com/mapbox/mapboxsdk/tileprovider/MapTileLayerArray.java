@@ -10,7 +10,6 @@ import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -26,13 +25,15 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
  * asynchronous tile provider is called in the chain. If there are no more asynchronous tile
  * providers in the chain, then the failure result is passed to the base class. The
  * {@link MapTileLayerArray} provides a mechanism so that only one unique tile-request can be in
- * the map tile request chain at a time.
+ * the map tile request chain at a time, across all the providers of the process: requests are
+ * coalesced in the {@link MapTileRequestTable}.
  *
  * @author Marc Kurtz
  */
 public class MapTileLayerArray extends MapTileLayerBase {
 
-    protected final HashMap<MapTile, MapTileRequestState> mWorking;
+    // The requests in progress, shared with the other providers
+    protected final MapTileRequestTable mRequestTable = MapTileRequestTable.getInstance();
 
     protected final List<MapTileModuleLayerBase> mTileProviderList;
 
@@ -61,7 +62,6 @@ public class MapTileLayerArray extends MapTileLayerBase {
                              final MapTileModuleLayerBase[] pTileProviderArray) {
         super(context, pTileSource);
 
-        mWorking = new HashMap<MapTile, MapTileRequestState>();
         mUnaccessibleTiles = new ArrayList<MapTile>();
 
         mNetworkAvailabilityCheck = new NetworkAvailabilityCheck(context);
@@ -85,8 +85,19 @@ public class MapTileLayerArray extends MapTileLayerBase {
             }
         }
 
-        synchronized (mWorking) {
-            mWorking.clear();
+        for (MapTileLayerBase listener : mRequestTable.remove(this)) {
+            listener.coalescedRequestFailed();
+        }
+    }
+
+    @Override
+    public void setViewport(final int zoom, final int centerTileX, final int centerTileY) {
+        final MapTileModuleLayerBase[] providers;
+        synchronized (mTileProviderList) {
+            providers = mTileProviderList.toArray(new MapTileModuleLayerBase[mTileProviderList.size()]);
+        }
+        for (final MapTileModuleLayerBase tileProvider : providers) {
+            tileProvider.setViewport(zoom, centerTileX, centerTileY);
         }
     }
 
@@ -113,6 +124,12 @@ public class MapTileLayerArray extends MapTileLayerBase {
 
     @Override
     public Drawable getMapTile(final MapTile pTile, final boolean allowRemote) {
+        return getMapTile(pTile, allowRemote, false);
+    }
+
+    @Override
+    protected Drawable getMapTile(final MapTile pTile, final boolean allowRemote,
+            final boolean prefetch) {
         //       Log.d(TAG, "getMapTile() with pTile (CacheKey) = '" + pTile.getCacheKey() + "'; allowRemote = '" + allowRemote + "'");
         if (tileUnavailable(pTile)) {
 //            Log.d(TAG, "MapTileLayerArray.getMapTile() tileUnavailable: " + pTile);
@@ -127,12 +144,7 @@ public class MapTileLayerArray extends MapTileLayerBase {
             return tileDrawable;
         } else if (allowRemote) {
 //            Log.d(TAG, "Tile not found in memory so will load from remote.");
-            boolean alreadyInProgress = false;
-            synchronized (mWorking) {
-                alreadyInProgress = mWorking.containsKey(pTile);
-            }
-
-            if (!alreadyInProgress) {
+            if (!mRequestTable.join(pTile, this, prefetch)) {
 //                Log.d(TAG, "MapTileLayerArray.getMapTile() requested but not in cache, trying from async providers: " + pTile);
 
                 final MapTileRequestState state;
@@ -141,14 +153,11 @@ public class MapTileLayerArray extends MapTileLayerBase {
                     final MapTileModuleLayerBase[] providerArray = new MapTileModuleLayerBase[mTileProviderList.size()];
                     state = new MapTileRequestState(pTile, mTileProviderList.toArray(providerArray), this);
                 }
+                state.setPrefetch(prefetch);
 
-                synchronized (mWorking) {
-                    // Check again
-                    alreadyInProgress = mWorking.containsKey(pTile);
-                    if (alreadyInProgress) {
-                        return null;
-                    }
-                    mWorking.put(pTile, state);
+                // Another provider may have asked for the tile in the meantime
+                if (!mRequestTable.begin(state)) {
+                    return null;
                 }
 
                 final MapTileModuleLayerBase provider = findNextAppropriateProvider(state);
@@ -172,25 +181,38 @@ public class MapTileLayerArray extends MapTileLayerBase {
     @Override
     public void mapTileRequestCompleted(final MapTileRequestState aState,
                                         final Drawable aDrawable) {
-        synchronized (mWorking) {
-            mWorking.remove(aState.getMapTile());
-        }
+        final List<MapTileLayerBase> listeners = mRequestTable.end(aState);
         super.mapTileRequestCompleted(aState, aDrawable);
+        for (MapTileLayerBase listener : listeners) {
+            listener.coalescedRequestCompleted(aState.getMapTile());
+        }
     }
 
     @Override
     public void mapTileRequestFailed(final MapTileRequestState aState) {
         final MapTileModuleLayerBase nextProvider = findNextAppropriateProvider(aState);
         if (nextProvider != null) {
+            mRequestTable.onRequeued();
             nextProvider.loadMapTileAsync(aState);
         } else {
-            synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
-            }
+            final List<MapTileLayerBase> listeners = mRequestTable.end(aState);
             if (!networkAvailable()) {
                 mUnaccessibleTiles.add(aState.getMapTile());
             }
             super.mapTileRequestFailed(aState);
+            for (MapTileLayerBase listener : listeners) {
+                listener.coalescedRequestFailed();
+            }
+        }
+    }
+
+    @Override
+    public void mapTileRequestDropped(final MapTileRequestState aState) {
+        mRequestTable.onDropped();
+        final List<MapTileLayerBase> listeners = mRequestTable.end(aState);
+        super.mapTileRequestDropped(aState);
+        for (MapTileLayerBase listener : listeners) {
+            listener.coalescedRequestFailed();
         }
     }
 
@@ -200,15 +222,18 @@ public class MapTileLayerArray extends MapTileLayerBase {
         // Call through to the super first so aState.getCurrentProvider() still contains the proper
         // provider.
         super.mapTileRequestExpiredTile(aState, aDrawable);
+        // The expired tile is in the shared memory cache, the others can draw it too
+        for (MapTileLayerBase listener : mRequestTable.getListeners(aState)) {
+            listener.coalescedRequestCompleted(aState.getMapTile());
+        }
 
         // Continue through the provider chain
         final MapTileModuleLayerBase nextProvider = findNextAppropriateProvider(aState);
         if (nextProvider != null) {
+            mRequestTable.onRequeued();
             nextProvider.loadMapTileAsync(aState);
         } else {
-            synchronized (mWorking) {
-                mWorking.remove(aState.getMapTile());
-            }
+            mRequestTable.end(aState);
         }
     }
 
@@ -243,6 +268,17 @@ public class MapTileLayerArray extends MapTileLayerBase {
         return provider;
     }
 
+    @Override
+    protected List<TileLoaderMetrics.QueueDepth> getQueueDepths() {
+        final ArrayList<TileLoaderMetrics.QueueDepth> depths = new ArrayList<TileLoaderMetrics.QueueDepth>();
+        synchronized (mTileProviderList) {
+            for (final MapTileModuleLayerBase tileProvider : mTileProviderList) {
+                depths.add(tileProvider.getQueueDepth());
+            }
+        }
+        return depths;
+    }
+
     public boolean getProviderExists(final MapTileModuleLayerBase provider) {
         synchronized (mTileProviderList) {
             return mTileProviderList.contains(provider);
@@ -3,17 +3,23 @@ package com.mapbox.mapboxsdk.tileprovider;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+import com.mapbox.mapboxsdk.tileprovider.util.SimpleInvalidationHandler;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
@@ -30,11 +36,16 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 public abstract class MapTileLayerBase implements IMapTileProviderCallback, TileLayerConstants {
     protected Context context;
     protected final MapTileCache mTileCache;
-    private Handler mTileRequestCompleteHandler;
+    private volatile Handler mTileRequestCompleteHandler;
     private boolean mUseDataConnection = true;
 
     private ITileLayer mTileSource;
     protected String mCacheKey = "";
+    private volatile LayerId mLayerId;
+
+    private volatile TileLoaderMetrics.Listener mMetricsListener;
+    private volatile long mMetricsIntervalMs;
+    private final AtomicLong mLastMetricsTime = new AtomicLong();
 
     /**
      * Attempts to get a Drawable that represents a {@link MapTile}. If the tile is not immediately
@@ -47,6 +58,16 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
      */
     public abstract Drawable getMapTile(MapTile pTile, boolean allowRemote);
 
+    /**
+     * Like {@link #getMapTile(MapTile, boolean)}, for a tile that may not be displayed.
+     *
+     * @param prefetch true if the tile isn't displayed, the map isn't redrawn when it loads
+     */
+    protected Drawable getMapTile(final MapTile pTile, final boolean allowRemote,
+            final boolean prefetch) {
+        return getMapTile(pTile, allowRemote);
+    }
+
     public abstract void detach();
 
     /**
@@ -136,6 +157,32 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         return mCacheKey;
     }
 
+    /**
+     * Gets the id standing for the cache key in tile ids. It is only looked up again when the
+     * cache key changes, so the draw loop can build tiles without hashing the key.
+     *
+     * @return the layer id, see {@link MapTile#getLayerId(String)}
+     */
+    public int getLayerId() {
+        final String cacheKey = getCacheKey();
+        LayerId layerId = mLayerId;
+        if (layerId == null || layerId.cacheKey != cacheKey) {
+            layerId = new LayerId(cacheKey, MapTile.getLayerId(cacheKey));
+            mLayerId = layerId;
+        }
+        return layerId.id;
+    }
+
+    private static final class LayerId {
+        final String cacheKey;
+        final int id;
+
+        LayerId(final String cacheKey, final int id) {
+            this.cacheKey = cacheKey;
+            this.id = id;
+        }
+    }
+
     /**
      * Creates a {@link MapTileCache} to be used to cache tiles in memory.
      */
@@ -157,7 +204,8 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
 
     /**
      * Called by implementation class methods indicating that they have completed the request as
-     * best it can. The tile is added to the cache, and a MAPTILE_SUCCESS_ID message is sent.
+     * best it can. The tile is added to the cache, and a MAPTILE_SUCCESS_ID message is sent, or
+     * the completion is queued directly if the handler is a {@link SimpleInvalidationHandler}.
      *
      * @param pState the map tile request state object
      * @param pDrawable the Drawable of the map tile
@@ -165,19 +213,58 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
     @Override
     public void mapTileRequestCompleted(final MapTileRequestState pState,
             final Drawable pDrawable) {
-        // tell our caller we've finished and it should update its view
+        // tell our caller we've finished and it should update its view, unless nothing shows it
+        if (!pState.isPrefetch()) {
+            sendTileRequestCompleted(pState.getMapTile());
+        }
+        dispatchMetrics();
+
+        if (DEBUG_TILE_PROVIDERS) {
+            Log.d(TAG, "MapTileLayerBase.mapTileRequestCompleted(): " + pState.getMapTile());
+        }
+    }
+
+    /**
+     * Called when a request this provider joined in the {@link MapTileRequestTable} has loaded
+     * its tile, the tile is in the shared memory cache.
+     */
+    void coalescedRequestCompleted(final MapTile pTile) {
+        // The tile is the one of the owner of the request, not necessarily drawn here
+        sendTileRequestCompleted(null);
+    }
+
+    /**
+     * Called when a request this provider joined in the {@link MapTileRequestTable} has ended
+     * without a tile.
+     */
+    void coalescedRequestFailed() {
         if (mTileRequestCompleteHandler != null) {
+            mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_FAIL_ID);
+        }
+    }
+
+    /**
+     * Other handlers get a MAPTILE_SUCCESS_ID message whose <code>obj</code> is a copy of the
+     * {@link Rect} the tile was last drawn at, or null if it hasn't been drawn or the whole map
+     * should be redrawn.
+     *
+     * @param tile the completed tile, or null if the whole map should be redrawn. Where it is
+     * drawn is only read on the UI thread by a {@link SimpleInvalidationHandler}.
+     */
+    private void sendTileRequestCompleted(final MapTile tile) {
+        if (mTileRequestCompleteHandler instanceof SimpleInvalidationHandler) {
+            // Batched without a message per tile
+            ((SimpleInvalidationHandler) mTileRequestCompleteHandler).invalidateTile(tile);
+        } else if (mTileRequestCompleteHandler != null) {
+            final Rect rect = (tile != null) ? tile.getTileRect() : null;
             Message msg = new Message();
-            msg.obj = pState.getMapTile().getTileRect();
+            // A copy, the draw loop moves the rect of a tile as it reuses it
+            msg.obj = (rect != null) ? new Rect(rect) : null;
             msg.what = MapTile.MAPTILE_SUCCESS_ID;
             mTileRequestCompleteHandler.sendMessage(msg);
         } else {
             Log.e(TAG, "Failed to send map update request because mTileRequestCompleteHandler == null");
         }
-
-        if (DEBUG_TILE_PROVIDERS) {
-            Log.d(TAG, "MapTileLayerBase.mapTileRequestCompleted(): " + pState.getMapTile());
-        }
     }
 
     /**
@@ -191,12 +278,26 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         if (mTileRequestCompleteHandler != null) {
             mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_FAIL_ID);
         }
+        dispatchMetrics();
 
         if (DEBUG_TILE_PROVIDERS) {
             Log.d(TAG, "MapTileLayerBase.mapTileRequestFailed(): " + pState.getMapTile());
         }
     }
 
+    /**
+     * Called by implementation class methods indicating that they have dropped the request
+     * without trying it. The tile is requested again the next time it is drawn.
+     *
+     * @param pState the map tile request state object
+     */
+    @Override
+    public void mapTileRequestDropped(final MapTileRequestState pState) {
+        if (DEBUG_TILE_PROVIDERS) {
+            Log.d(TAG, "MapTileLayerBase.mapTileRequestDropped(): " + pState.getMapTile());
+        }
+    }
+
     /**
      * Called by implementation class methods indicating that they have produced an expired result
      * that can be used but better results may be delivered later. The tile is added to the cache,
@@ -212,8 +313,8 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         putExpiredTileIntoCache(pState.getMapTile(), pDrawable.getBitmap());
 
         // tell our caller we've finished and it should update its view
-        if (mTileRequestCompleteHandler != null) {
-            mTileRequestCompleteHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
+        if (mTileRequestCompleteHandler != null && !pState.isPrefetch()) {
+            sendTileRequestCompleted(null);
         }
 
         if (DEBUG_TILE_PROVIDERS) {
@@ -260,10 +361,29 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         BitmapUtils.setCacheDrawableExpired(drawable);
     }
 
+    /**
+     * Called when the displayed part of the map changes, so that pending tile requests can be
+     * ranked against it. Does nothing by default.
+     *
+     * @param zoom the (floored) zoom level of the viewport
+     * @param centerTileX the x index of the tile at the center of the viewport
+     * @param centerTileY the y index of the tile at the center of the viewport
+     */
+    public void setViewport(final int zoom, final int centerTileX, final int centerTileY) {
+        // Do nothing by default
+    }
+
     public void setTileRequestCompleteHandler(final Handler handler) {
         mTileRequestCompleteHandler = handler;
     }
 
+    /**
+     * @return the handler told when tiles are loaded, or null if there is none
+     */
+    public Handler getTileRequestCompleteHandler() {
+        return mTileRequestCompleteHandler;
+    }
+
     public void clearTileMemoryCache() {
         mTileCache.purgeMemoryCache();
     }
@@ -272,6 +392,73 @@ public abstract class MapTileLayerBase implements IMapTileProviderCallback, Tile
         mTileCache.getCache().resizeMemoryForTiles(numberOfTiles);
     }
 
+    /**
+     * @return the maximum size, in bytes, of the memory cache of tiles
+     */
+    public int getMemoryCacheMaxSize() {
+        return mTileCache.getCache().getMemoryCacheMaxSize();
+    }
+
+    /**
+     * Requests a tile that isn't displayed yet, so that it is in the memory cache by the time it
+     * is. The request goes through the same providers as displayed tiles, whose schedulers rank
+     * it after the tiles of the viewport. Its completion doesn't redraw the map, unless the tile
+     * has been asked for display in the meantime.
+     *
+     * @return true if the tile wasn't in the memory cache and was requested
+     */
+    public boolean prefetchMapTile(final MapTile pTile) {
+        if (getMapTileFromMemory(pTile) != null) {
+            return false;
+        }
+        final Drawable drawable = getMapTile(pTile, true, true);
+        if (drawable instanceof CacheableBitmapDrawable) {
+            // Loaded in the meantime, but it isn't drawn
+            ((CacheableBitmapDrawable) drawable).setBeingUsed(false);
+        }
+        return drawable == null;
+    }
+
+    /**
+     * @return a snapshot of the metrics of the tile pipeline, with the queue depths of this
+     * provider
+     */
+    public TileLoaderMetrics.Snapshot getMetrics() {
+        return TileLoaderMetrics.getInstance().snapshot(getQueueDepths());
+    }
+
+    /**
+     * @return the depths of the queues of the modules of this provider
+     */
+    protected List<TileLoaderMetrics.QueueDepth> getQueueDepths() {
+        return new ArrayList<TileLoaderMetrics.QueueDepth>(0);
+    }
+
+    /**
+     * Set a listener receiving snapshots of the metrics as tile requests end, at most once per
+     * interval.
+     *
+     * @param listener the listener, or null to stop delivering snapshots
+     * @param intervalMs the minimum time between two snapshots
+     */
+    public void setMetricsListener(final TileLoaderMetrics.Listener listener, final long intervalMs) {
+        mMetricsIntervalMs = intervalMs;
+        mMetricsListener = listener;
+    }
+
+    private void dispatchMetrics() {
+        final TileLoaderMetrics.Listener listener = mMetricsListener;
+        if (listener == null) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long last = mLastMetricsTime.get();
+        // Only the thread winning the race delivers
+        if (now - last >= mMetricsIntervalMs && mLastMetricsTime.compareAndSet(last, now)) {
+            listener.onMetrics(getMetrics());
+        }
+    }
+
     public void clearTileDiskCache() {
         mTileCache.purgeDiskCache();
     }
@@ -15,6 +15,7 @@ public class MapTileRequestState {
     private final MapTile mMapTile;
     private final IMapTileProviderCallback mCallback;
     private MapTileModuleLayerBase mCurrentProvider;
+    private volatile boolean mPrefetch;
 
     /**
      * Initialize a new state to keep track of a map tile
@@ -47,6 +48,20 @@ public class MapTileRequestState {
         return mCallback;
     }
 
+    /**
+     * @return true if the tile isn't displayed: its completion doesn't redraw the map
+     */
+    public boolean isPrefetch() {
+        return mPrefetch;
+    }
+
+    /**
+     * Mark the request as a prefetch, or as displayed once a displayed request joins it.
+     */
+    public void setPrefetch(final boolean prefetch) {
+        mPrefetch = prefetch;
+    }
+
     public MapTileModuleLayerBase getNextProvider() {
         mCurrentProvider = mProviderQueue.poll();
         return mCurrentProvider;
@@ -0,0 +1,256 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.support.v4.util.LongSparseArray;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The tile requests in flight in the process, by tile id. A tile asked for by several tile
+ * providers at once, such as two overlays showing the same layer, is loaded once: the first
+ * provider owns the request and walks it through its provider chain, the others are only told
+ * when it ends.
+ * <p/>
+ * The table is split into stripes, each with its own lock, so providers working on different
+ * tiles don't contend. The counters are lock-free.
+ */
+public final class MapTileRequestTable {
+
+    private static final int STRIPE_COUNT = 16;
+
+    private static final MapTileRequestTable sInstance = new MapTileRequestTable();
+
+    private static final class Request {
+        final MapTileRequestState state;
+        // The providers other than the owner waiting for the tile
+        ArrayList<MapTileLayerBase> listeners;
+
+        Request(final MapTileRequestState state) {
+            this.state = state;
+        }
+    }
+
+    private final Object[] mLocks = new Object[STRIPE_COUNT];
+    private final LongSparseArray<Request>[] mRequests;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mRequeuedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    private MapTileRequestTable() {
+        mRequests = new LongSparseArray[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mLocks[i] = new Object();
+            mRequests[i] = new LongSparseArray<Request>();
+        }
+    }
+
+    public static MapTileRequestTable getInstance() {
+        return sInstance;
+    }
+
+    private static int stripe(final long id) {
+        // Mix in the zoom and x bits, neighbouring tiles differ in the low bits of x and y
+        return (int) (id ^ (id >>> 22) ^ (id >>> 44)) & (STRIPE_COUNT - 1);
+    }
+
+    /**
+     * @return true if a request for the tile is in flight
+     */
+    public boolean isInFlight(final MapTile tile) {
+        final long id = tile.getId();
+        final int stripe = stripe(id);
+        synchronized (mLocks[stripe]) {
+            return mRequests[stripe].indexOfKey(id) >= 0;
+        }
+    }
+
+    /**
+     * Registers a new request, or joins the one already in flight for the same tile.
+     *
+     * @param state the request, its callback being the provider asking for the tile
+     * @return true if the request is new and the caller has to start it, false if the caller
+     * will be told when the request in flight ends
+     */
+    boolean begin(final MapTileRequestState state) {
+        final long id = state.getMapTile().getId();
+        final int stripe = stripe(id);
+        synchronized (mLocks[stripe]) {
+            final Request request = mRequests[stripe].get(id);
+            if (request == null) {
+                mRequests[stripe].put(id, new Request(state));
+                mRequestCount.incrementAndGet();
+                return true;
+            }
+            if (!state.isPrefetch()) {
+                request.state.setPrefetch(false);
+                if (state.getCallback() instanceof MapTileLayerBase) {
+                    addListener(request, (MapTileLayerBase) state.getCallback());
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Joins the request in flight for a tile, if any. This is the cheap check to make before
+     * building a new request.
+     *
+     * @param prefetch true if the tile isn't displayed, the provider isn't told when the request
+     * ends then. Otherwise a prefetch request in flight becomes a displayed one.
+     * @return true if a request for the tile is in flight, the provider will be told when it ends
+     */
+    boolean join(final MapTile tile, final MapTileLayerBase provider, final boolean prefetch) {
+        final long id = tile.getId();
+        final int stripe = stripe(id);
+        synchronized (mLocks[stripe]) {
+            final Request request = mRequests[stripe].get(id);
+            if (request == null) {
+                return false;
+            }
+            if (!prefetch) {
+                request.state.setPrefetch(false);
+                addListener(request, provider);
+            }
+            return true;
+        }
+    }
+
+    private void addListener(final Request request, final MapTileLayerBase provider) {
+        if (provider == request.state.getCallback()) {
+            return;
+        }
+        if (request.listeners == null) {
+            request.listeners = new ArrayList<MapTileLayerBase>(2);
+        }
+        if (!request.listeners.contains(provider)) {
+            request.listeners.add(provider);
+            mCoalescedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a request that has completed or failed for good.
+     *
+     * @return the other providers waiting for the tile, possibly empty
+     */
+    List<MapTileLayerBase> end(final MapTileRequestState state) {
+        final long id = state.getMapTile().getId();
+        final int stripe = stripe(id);
+        synchronized (mLocks[stripe]) {
+            final Request request = mRequests[stripe].get(id);
+            if (request == null || request.state != state) {
+                return new ArrayList<MapTileLayerBase>(0);
+            }
+            mRequests[stripe].remove(id);
+            return request.listeners != null ? request.listeners : new ArrayList<MapTileLayerBase>(0);
+        }
+    }
+
+    /**
+     * @return the other providers waiting for the tile of a request still in flight
+     */
+    List<MapTileLayerBase> getListeners(final MapTileRequestState state) {
+        final long id = state.getMapTile().getId();
+        final int stripe = stripe(id);
+        synchronized (mLocks[stripe]) {
+            final Request request = mRequests[stripe].get(id);
+            if (request == null || request.state != state || request.listeners == null) {
+                return new ArrayList<MapTileLayerBase>(0);
+            }
+            return new ArrayList<MapTileLayerBase>(request.listeners);
+        }
+    }
+
+    /**
+     * Removes a provider that is shutting down: the requests it owns are abandoned and it stops
+     * listening to the others.
+     *
+     * @return the providers that were waiting for the abandoned requests
+     */
+    List<MapTileLayerBase> remove(final MapTileLayerBase provider) {
+        final ArrayList<MapTileLayerBase> abandoned = new ArrayList<MapTileLayerBase>();
+        for (int stripe = 0; stripe < STRIPE_COUNT; stripe++) {
+            synchronized (mLocks[stripe]) {
+                final LongSparseArray<Request> requests = mRequests[stripe];
+                for (int i = requests.size() - 1; i >= 0; i--) {
+                    final Request request = requests.valueAt(i);
+                    if (request.state.getCallback() == provider) {
+                        if (request.listeners != null) {
+                            for (MapTileLayerBase listener : request.listeners) {
+                                if (!abandoned.contains(listener)) {
+                                    abandoned.add(listener);
+                                }
+                            }
+                        }
+                        requests.removeAt(i);
+                    } else if (request.listeners != null) {
+                        request.listeners.remove(provider);
+                    }
+                }
+            }
+        }
+        return abandoned;
+    }
+
+    void onRequeued() {
+        mRequeuedCount.incrementAndGet();
+    }
+
+    void onDropped() {
+        mDroppedCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int size() {
+        int size = 0;
+        for (int stripe = 0; stripe < STRIPE_COUNT; stripe++) {
+            synchronized (mLocks[stripe]) {
+                size += mRequests[stripe].size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of requests started, not counting the coalesced ones
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of times a provider joined a request another provider had in flight
+     * for the same tile
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * @return the number of times a request failed or expired on a provider and was passed on to
+     * the next provider of the chain
+     */
+    public long getRequeuedCount() {
+        return mRequeuedCount.get();
+    }
+
+    /**
+     * @return the number of requests dropped because a pending queue was full or they no longer
+     * matched the viewport
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MapTileRequestTable [inFlight=" + size() + ", requests=" + getRequestCount()
+                + ", coalesced=" + getCoalescedCount() + ", requeued=" + getRequeuedCount()
+                + ", dropped=" + getDroppedCount() + "]";
+    }
+}
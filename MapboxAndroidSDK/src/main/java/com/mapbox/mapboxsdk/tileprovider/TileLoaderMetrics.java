@@ -0,0 +1,272 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the tile pipeline, shared by all the tile providers of the
+ * process like the memory and disk caches are. Recording only touches atomic counters.
+ * <p/>
+ * Read them through {@link MapTileLayerBase#getMetrics()}, which adds the queue depths of the
+ * provider, or get them delivered with
+ * {@link MapTileLayerBase#setMetricsListener(Listener, long)}.
+ */
+public final class TileLoaderMetrics {
+
+    /**
+     * From opening the connection to the last byte of a downloaded tile.
+     */
+    public static final int STAGE_NETWORK = 0;
+    /**
+     * Reading a tile back from the disk cache, decoding included.
+     */
+    public static final int STAGE_DISK_READ = 1;
+    /**
+     * Decoding a downloaded tile.
+     */
+    public static final int STAGE_DECODE = 2;
+    /**
+     * Putting a tile into the memory or disk cache.
+     */
+    public static final int STAGE_CACHE_INSERT = 3;
+
+    public static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {"network", "diskRead", "decode", "cacheInsert"};
+
+    private static final TileLoaderMetrics sInstance = new TileLoaderMetrics();
+
+    /**
+     * Receives snapshots of the metrics of a tile provider.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that loaded the last tile, keep it short.
+         */
+        void onMetrics(Snapshot snapshot);
+    }
+
+    /**
+     * The depth of the queues of a tile provider module.
+     */
+    public static final class QueueDepth {
+        private final String mName;
+        private final int mPending;
+        private final int mWorking;
+
+        public QueueDepth(final String name, final int pending, final int working) {
+            mName = name;
+            mPending = pending;
+            mWorking = working;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getPending() {
+            return mPending;
+        }
+
+        public int getWorking() {
+            return mWorking;
+        }
+
+        @Override
+        public String toString() {
+            return mName + " [pending=" + mPending + ", working=" + mWorking + "]";
+        }
+    }
+
+    /**
+     * The metrics at one point in time.
+     */
+    public static final class Snapshot {
+        private final long mTimestamp;
+        private final LatencyHistogram[] mLatencies;
+        private final long mMemoryHits;
+        private final long mMemoryMisses;
+        private final long mDiskHits;
+        private final long mDiskMisses;
+        private final Map<String, Long> mBytesByLayer;
+        private final List<QueueDepth> mQueueDepths;
+
+        Snapshot(final TileLoaderMetrics metrics, final List<QueueDepth> queueDepths) {
+            mTimestamp = System.currentTimeMillis();
+            mLatencies = new LatencyHistogram[STAGE_COUNT];
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mLatencies[i] = metrics.mLatencies[i].copy();
+            }
+            mMemoryHits = metrics.mMemoryHits.get();
+            mMemoryMisses = metrics.mMemoryMisses.get();
+            mDiskHits = metrics.mDiskHits.get();
+            mDiskMisses = metrics.mDiskMisses.get();
+            final HashMap<String, Long> bytesByLayer = new HashMap<String, Long>();
+            for (Map.Entry<String, AtomicLong> entry : metrics.mBytesByLayer.entrySet()) {
+                bytesByLayer.put(entry.getKey(), entry.getValue().get());
+            }
+            mBytesByLayer = Collections.unmodifiableMap(bytesByLayer);
+            mQueueDepths = Collections.unmodifiableList(queueDepths);
+        }
+
+        /**
+         * @return when the snapshot was taken, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * @param stage one of the <code>STAGE_</code> constants
+         */
+        public LatencyHistogram getLatency(final int stage) {
+            return mLatencies[stage];
+        }
+
+        public long getMemoryHits() {
+            return mMemoryHits;
+        }
+
+        public long getMemoryMisses() {
+            return mMemoryMisses;
+        }
+
+        /**
+         * @return the share of the memory cache lookups that found their tile, between 0 and 1
+         */
+        public double getMemoryHitRatio() {
+            return ratio(mMemoryHits, mMemoryMisses);
+        }
+
+        public long getDiskHits() {
+            return mDiskHits;
+        }
+
+        public long getDiskMisses() {
+            return mDiskMisses;
+        }
+
+        /**
+         * @return the share of the disk cache reads that found their tile, between 0 and 1
+         */
+        public double getDiskHitRatio() {
+            return ratio(mDiskHits, mDiskMisses);
+        }
+
+        private static double ratio(final long hits, final long misses) {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        /**
+         * @return the bytes downloaded for each layer, by cache key
+         */
+        public Map<String, Long> getBytesByLayer() {
+            return mBytesByLayer;
+        }
+
+        /**
+         * @return the depth of the queues of each module of the provider
+         */
+        public List<QueueDepth> getQueueDepths() {
+            return mQueueDepths;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("TileLoaderMetrics [");
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                builder.append(STAGE_NAMES[i]).append('=').append(mLatencies[i]).append(", ");
+            }
+            builder.append(String.format("memoryHitRatio=%.2f, diskHitRatio=%.2f, ",
+                    getMemoryHitRatio(), getDiskHitRatio()));
+            builder.append("bytes=").append(mBytesByLayer);
+            builder.append(", queues=").append(mQueueDepths).append(']');
+            return builder.toString();
+        }
+    }
+
+    private final LatencyHistogram[] mLatencies;
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mMemoryMisses = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mDiskMisses = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> mBytesByLayer =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private TileLoaderMetrics() {
+        mLatencies = new LatencyHistogram[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    public static TileLoaderMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Records the time a stage took since <code>startNanos</code>, as given by
+     * {@link System#nanoTime()}.
+     *
+     * @param stage one of the <code>STAGE_</code> constants
+     */
+    public void recordLatency(final int stage, final long startNanos) {
+        mLatencies[stage].recordSince(startNanos);
+    }
+
+    public void recordMemoryLookup(final boolean hit) {
+        (hit ? mMemoryHits : mMemoryMisses).incrementAndGet();
+    }
+
+    public void recordDiskLookup(final boolean hit) {
+        (hit ? mDiskHits : mDiskMisses).incrementAndGet();
+    }
+
+    /**
+     * Adds to the bytes downloaded for a layer.
+     *
+     * @param cacheKey the cache key of the layer
+     */
+    public void recordBytes(final String cacheKey, final long bytes) {
+        final String key = cacheKey != null ? cacheKey : "";
+        AtomicLong counter = mBytesByLayer.get(key);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = mBytesByLayer.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(bytes);
+    }
+
+    /**
+     * @return a snapshot of the metrics, without queue depths
+     */
+    public Snapshot snapshot() {
+        return snapshot(new ArrayList<QueueDepth>(0));
+    }
+
+    Snapshot snapshot(final List<QueueDepth> queueDepths) {
+        return new Snapshot(this, queueDepths);
+    }
+
+    /**
+     * Sets all the counters and histograms back to zero.
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : mLatencies) {
+            histogram.reset();
+        }
+        mMemoryHits.set(0);
+        mMemoryMisses.set(0);
+        mDiskHits.set(0);
+        mDiskMisses.set(0);
+        mBytesByLayer.clear();
+    }
+}
@@ -0,0 +1,120 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import com.mapbox.mapboxsdk.constants.MapboxConstants.RasterImageQuality;
+
+/**
+ * The variant of a tile to download: its image format and whether it is the @2x version. Layers
+ * that don't offer several formats only use the @2x choice.
+ */
+public final class TileQuality {
+
+    /**
+     * What is downloaded without a quality policy.
+     */
+    public static final TileQuality FULL = new TileQuality(RasterImageQuality.MBXRasterImageQualityFull, false);
+    public static final TileQuality FULL_HDPI = new TileQuality(RasterImageQuality.MBXRasterImageQualityFull, true);
+
+    private static final String HDPI_SUFFIX = "@2x";
+
+    private final RasterImageQuality mImageQuality;
+    private final boolean mHdpi;
+
+    public TileQuality(final RasterImageQuality imageQuality, final boolean hdpi) {
+        mImageQuality = imageQuality != null ? imageQuality : RasterImageQuality.MBXRasterImageQualityFull;
+        mHdpi = hdpi;
+    }
+
+    public RasterImageQuality getImageQuality() {
+        return mImageQuality;
+    }
+
+    public boolean isHdpi() {
+        return mHdpi;
+    }
+
+    /**
+     * @return how good the variant looks compared to the others, @2x weighing more than the
+     * format
+     */
+    public int getRank() {
+        final int imageRank;
+        switch (mImageQuality) {
+            case MBXRasterImageQualityJPEG70:
+                imageRank = 1;
+                break;
+            case MBXRasterImageQualityJPEG80:
+                imageRank = 2;
+                break;
+            case MBXRasterImageQualityPNG32:
+                imageRank = 3;
+                break;
+            case MBXRasterImageQualityPNG64:
+                imageRank = 4;
+                break;
+            case MBXRasterImageQualityJPEG90:
+                imageRank = 5;
+                break;
+            case MBXRasterImageQualityPNG128:
+                imageRank = 6;
+                break;
+            case MBXRasterImageQualityPNG256:
+                imageRank = 7;
+                break;
+            case MBXRasterImageQualityFull:
+            default:
+                imageRank = 8;
+                break;
+        }
+        return (mHdpi ? 16 : 0) + imageRank;
+    }
+
+    public boolean isLowerThan(final TileQuality other) {
+        return getRank() < other.getRank();
+    }
+
+    /**
+     * @return the quality as a string, to be stored with the tile in the disk cache
+     */
+    public String encode() {
+        return mImageQuality.getValue() + (mHdpi ? HDPI_SUFFIX : "");
+    }
+
+    /**
+     * @return the quality stored by {@link #encode()}, or null if it can't be read
+     */
+    public static TileQuality decode(final String encoded) {
+        if (encoded == null || encoded.length() == 0) {
+            return null;
+        }
+        final boolean hdpi = encoded.endsWith(HDPI_SUFFIX);
+        try {
+            final int value = Integer.parseInt(hdpi
+                    ? encoded.substring(0, encoded.length() - HDPI_SUFFIX.length()) : encoded);
+            return new TileQuality(RasterImageQuality.getEnumForValue(value), hdpi);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TileQuality)) {
+            return false;
+        }
+        final TileQuality other = (TileQuality) o;
+        return mImageQuality == other.mImageQuality && mHdpi == other.mHdpi;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * mImageQuality.hashCode() + (mHdpi ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "TileQuality [" + mImageQuality + (mHdpi ? ", @2x" : "") + "]";
+    }
+}
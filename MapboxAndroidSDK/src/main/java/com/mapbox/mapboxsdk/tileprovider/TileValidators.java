@@ -0,0 +1,196 @@
+package com.mapbox.mapboxsdk.tileprovider;
+
+import android.text.TextUtils;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+/**
+ * The HTTP validators of a cached tile (its ETag and Last-Modified date) and the time until which
+ * it can be used without asking the server. Once a tile has expired it is revalidated with a
+ * conditional request; a 304 answer only moves its expiry forward.
+ * <p/>
+ * The content type of the tile is kept too, as the disk cache stores the bytes the server sent
+ * rather than a re-encoded bitmap, and so is the {@link TileQuality} it was downloaded at, so a
+ * tile downloaded on a poor network can be upgraded later.
+ */
+public final class TileValidators {
+
+    /**
+     * How long a tile is considered fresh when the server doesn't say.
+     */
+    public static final long DEFAULT_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    private static final String SEPARATOR = "\n";
+
+    private final String mETag;
+    private final String mLastModified;
+    private final long mExpires;
+    private final String mContentType;
+    private final TileQuality mQuality;
+
+    public TileValidators(final String eTag, final String lastModified, final long expires) {
+        this(eTag, lastModified, expires, null);
+    }
+
+    public TileValidators(final String eTag, final String lastModified, final long expires,
+                          final String contentType) {
+        this(eTag, lastModified, expires, contentType, null);
+    }
+
+    private TileValidators(final String eTag, final String lastModified, final long expires,
+                           final String contentType, final TileQuality quality) {
+        mETag = eTag;
+        mLastModified = lastModified;
+        mExpires = expires;
+        mContentType = contentType;
+        mQuality = quality;
+    }
+
+    /**
+     * @return the validators with the quality the tile was downloaded at
+     */
+    public TileValidators withQuality(final TileQuality quality) {
+        return new TileValidators(mETag, mLastModified, mExpires, mContentType, quality);
+    }
+
+    /**
+     * Reads the validators, the freshness and the content type of a response.
+     *
+     * @return the validators, or null if the response has neither an ETag, a Last-Modified nor a
+     * Content-Type header
+     */
+    public static TileValidators fromConnection(final HttpURLConnection connection) {
+        final String eTag = connection.getHeaderField("ETag");
+        final String lastModified = connection.getHeaderField("Last-Modified");
+        final String contentType = connection.getContentType();
+        if (TextUtils.isEmpty(eTag) && TextUtils.isEmpty(lastModified) && TextUtils.isEmpty(contentType)) {
+            return null;
+        }
+        return new TileValidators(eTag, lastModified, expiresFromConnection(connection),
+                TextUtils.isEmpty(contentType) ? null : contentType);
+    }
+
+    /**
+     * A 304 answer may come with new validators and a new freshness; keep the current validators
+     * for the headers it doesn't repeat.
+     */
+    public TileValidators renew(final HttpURLConnection connection) {
+        final String eTag = connection.getHeaderField("ETag");
+        final String lastModified = connection.getHeaderField("Last-Modified");
+        return new TileValidators(TextUtils.isEmpty(eTag) ? mETag : eTag,
+                TextUtils.isEmpty(lastModified) ? mLastModified : lastModified,
+                expiresFromConnection(connection), mContentType, mQuality);
+    }
+
+    private static long expiresFromConnection(final HttpURLConnection connection) {
+        final long now = System.currentTimeMillis();
+        final String cacheControl = connection.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring("max-age=".length())) * 1000L;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        final long expires = connection.getHeaderFieldDate("Expires", 0);
+        if (expires > 0) {
+            return expires;
+        }
+        return now + DEFAULT_MAX_AGE_MS;
+    }
+
+    /**
+     * Adds the conditional headers to a request for the tile.
+     */
+    public void addConditionalHeaders(final HttpURLConnection connection) {
+        if (!TextUtils.isEmpty(mETag)) {
+            connection.setRequestProperty("If-None-Match", mETag);
+        }
+        if (!TextUtils.isEmpty(mLastModified)) {
+            connection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    public long getExpires() {
+        return mExpires;
+    }
+
+    /**
+     * @return the content type of the tile as sent by the server, e.g. <code>image/jpeg</code>,
+     * or null if unknown
+     */
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return the quality the tile was downloaded at, or null if unknown
+     */
+    public TileQuality getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return true if a conditional request can be made for the tile
+     */
+    public boolean canRevalidate() {
+        return !TextUtils.isEmpty(mETag) || !TextUtils.isEmpty(mLastModified);
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= mExpires;
+    }
+
+    /**
+     * @return the validators as a string, to be stored next to the tile in the disk cache
+     */
+    public String encode() {
+        return mExpires + SEPARATOR + (mETag != null ? mETag : "") + SEPARATOR
+                + (mLastModified != null ? mLastModified : "") + SEPARATOR
+                + (mContentType != null ? mContentType : "") + SEPARATOR
+                + (mQuality != null ? mQuality.encode() : "");
+    }
+
+    /**
+     * @return the validators stored by {@link #encode()}, or null if they can't be read
+     */
+    public static TileValidators decode(final String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        final String[] fields = encoded.split(SEPARATOR, -1);
+        // Entries written before the content type and the quality were stored have fewer fields
+        if (fields.length < 3 || fields.length > 5) {
+            return null;
+        }
+        try {
+            return new TileValidators(TextUtils.isEmpty(fields[1]) ? null : fields[1],
+                    TextUtils.isEmpty(fields[2]) ? null : fields[2], Long.parseLong(fields[0]),
+                    (fields.length >= 4 && !TextUtils.isEmpty(fields[3])) ? fields[3] : null,
+                    fields.length == 5 ? TileQuality.decode(fields[4]) : null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TileValidators [eTag=" + mETag + ", lastModified=" + mLastModified + ", expires=" + mExpires + ", contentType=" + mContentType + ", quality=" + mQuality + "]";
+    }
+}
@@ -34,11 +34,46 @@ public interface TileLayerConstants {
     public static final int CACHE_MAPTILECOUNT_DEFAULT = 9;
 
     public static final int CACHE_MAPTILEDISKSIZE_DEFAULT = 100 * 1024 * 1024;
+
+    /**
+     * size of the off-heap cache of compressed tiles, between the memory and the disk caches.
+     */
+    public static final int CACHE_MAPTILECOMPRESSEDSIZE_DEFAULT = 8 * 1024 * 1024;
     /**
      * number of tile download threads, conforming to OSM policy:
      * http://wiki.openstreetmap.org/wiki/Tile_usage_policy
      */
     public static final int NUMBER_OF_TILE_DOWNLOAD_THREADS = 8;
 
+    /**
+     * bounds of the number of concurrent tile downloads, adapted to the network between them
+     * starting from {@link #NUMBER_OF_TILE_DOWNLOAD_THREADS}. The upper bound is
+     * {@link #NUMBER_OF_TILE_DOWNLOAD_THREADS} unless a layer allows more, up to
+     * {@link #MAXIMUM_TILE_DOWNLOADS}.
+     */
+    public static final int MINIMUM_TILE_DOWNLOADS = 2;
+
+    public static final int MAXIMUM_TILE_DOWNLOADS = 16;
+
     public static final int TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE = 40;
+
+    /**
+     * number of threads shared by all the web layers to fetch the extra layers of composite tiles
+     * while the download thread fetches the first one.
+     */
+    public static final int NUMBER_OF_TILE_LAYER_FETCH_THREADS = 8;
+
+    /**
+     * how long a composite tile waits for each of its layers before going out without the ones
+     * that are still missing.
+     */
+    public static final long TILE_LAYER_FETCH_TIMEOUT_MS = 10000;
+
+    /**
+     * number of threads reading and decoding tiles from an offline map database. Reads are local,
+     * so a couple of threads are enough to keep up with the map while sparing the CPU.
+     */
+    public static final int NUMBER_OF_TILE_OFFLINE_THREADS = 2;
+
+    public static final int TILE_OFFLINE_MAXIMUM_QUEUE_SIZE = 40;
 }
@@ -0,0 +1,223 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+/**
+ * Adapts how many tiles are downloaded at once to the network, additive increase and
+ * multiplicative decrease like TCP congestion control.
+ * <p/>
+ * Each download that succeeds while the latency is close to the lowest seen raises the limit by
+ * one over the limit, so about one more download per round of downloads. A download failing on the
+ * network, or a latency several times the lowest seen, which means requests are queuing somewhere, cuts the
+ * limit: at most once per smoothed latency, so a burst of failures counts as one. The limit stays
+ * between a floor and a ceiling.
+ * <p/>
+ * The throughput in tiles per second and the bandwidth are measured too, for
+ * {@link #toString()} and the getters.
+ */
+public class DownloadConcurrencyController {
+
+    /**
+     * How many times the lowest latency a download may take before the limit is cut.
+     */
+    public static final float LATENCY_TOLERANCE = 3f;
+
+    private static final float ERROR_DECREASE_FACTOR = 0.5f;
+    private static final float LATENCY_DECREASE_FACTOR = 0.75f;
+
+    // Weight of a new sample in the moving averages
+    private static final float SMOOTHING = 0.125f;
+    // The lowest latency seen slowly forgets, in case the network got slower for good: it grows
+    // by this factor for every interval, whatever the number of downloads in between
+    private static final double MIN_LATENCY_DECAY = 1.1;
+    private static final long MIN_LATENCY_DECAY_INTERVAL_MS = 10000;
+    private static final long THROUGHPUT_WINDOW_MS = 1000;
+    // Bodies read faster than this were already buffered and say nothing about the bandwidth
+    private static final long MIN_TRANSFER_MS = 10;
+
+    private int mFloor;
+    private int mCeiling;
+    private float mLimit;
+
+    private float mSmoothedLatencyMs;
+    private float mMinLatencyMs;
+    private long mMinLatencyUpdateMs;
+    private float mErrorRate;
+    private long mLastDecreaseMs;
+
+    private float mThroughput;
+    private float mBandwidth;
+    private long mWindowStartMs;
+    private int mWindowCount;
+
+    private long mSuccessCount;
+    private long mErrorCount;
+
+    public DownloadConcurrencyController(final int floor, final int ceiling, final int initial) {
+        setBounds(floor, ceiling);
+        mLimit = Math.max(mFloor, Math.min(mCeiling, initial));
+    }
+
+    /**
+     * Set the bounds of the limit.
+     */
+    public synchronized void setBounds(final int floor, final int ceiling) {
+        if (floor < 1 || ceiling < floor) {
+            throw new IllegalArgumentException("Invalid bounds: " + floor + ", " + ceiling);
+        }
+        mFloor = floor;
+        mCeiling = ceiling;
+        mLimit = Math.max(mFloor, Math.min(mCeiling, mLimit));
+    }
+
+    public synchronized int getFloor() {
+        return mFloor;
+    }
+
+    public synchronized int getCeiling() {
+        return mCeiling;
+    }
+
+    /**
+     * @return how many downloads may run at once
+     */
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    /**
+     * A download has succeeded.
+     *
+     * @param latencyMs how long it took
+     * @param nowMs the current time, as given by {@link android.os.SystemClock#uptimeMillis()}
+     * @return true if the limit changed
+     */
+    public synchronized boolean onSuccess(final long latencyMs, final long nowMs) {
+        final int before = (int) mLimit;
+        mSuccessCount++;
+        mErrorRate *= 1 - SMOOTHING;
+        countThroughput(nowMs);
+
+        if (mMinLatencyMs == 0 || latencyMs < mMinLatencyMs) {
+            mMinLatencyMs = Math.max(1, latencyMs);
+        } else {
+            final double intervals = (double) (nowMs - mMinLatencyUpdateMs) / MIN_LATENCY_DECAY_INTERVAL_MS;
+            mMinLatencyMs = (float) Math.min(latencyMs,
+                    mMinLatencyMs * Math.pow(MIN_LATENCY_DECAY, intervals));
+        }
+        mMinLatencyUpdateMs = nowMs;
+        mSmoothedLatencyMs = mSmoothedLatencyMs == 0 ? latencyMs
+                : mSmoothedLatencyMs + SMOOTHING * (latencyMs - mSmoothedLatencyMs);
+
+        if (latencyMs > mMinLatencyMs * LATENCY_TOLERANCE) {
+            decrease(LATENCY_DECREASE_FACTOR, nowMs);
+        } else {
+            mLimit = Math.min(mCeiling, mLimit + 1 / mLimit);
+        }
+        return (int) mLimit != before;
+    }
+
+    /**
+     * A download has failed because of the network while it was available: an I/O error, a
+     * timeout or a server error. Tiles the server doesn't have and tiles that can't be decoded
+     * say nothing about congestion and must not be counted.
+     *
+     * @param nowMs the current time, as given by {@link android.os.SystemClock#uptimeMillis()}
+     * @return true if the limit changed
+     */
+    public synchronized boolean onError(final long nowMs) {
+        final int before = (int) mLimit;
+        mErrorCount++;
+        mErrorRate += SMOOTHING * (1 - mErrorRate);
+        countThroughput(nowMs);
+        decrease(ERROR_DECREASE_FACTOR, nowMs);
+        return (int) mLimit != before;
+    }
+
+    /**
+     * The body of a download has been read.
+     *
+     * @param bytes the size of the body
+     * @param durationMs how long reading the body took, once the response headers had arrived
+     */
+    public synchronized void onTransfer(final long bytes, final long durationMs) {
+        if (bytes <= 0 || durationMs < MIN_TRANSFER_MS) {
+            return;
+        }
+        final float bandwidth = bytes * 1000f / durationMs;
+        mBandwidth = mBandwidth == 0 ? bandwidth : mBandwidth + SMOOTHING * (bandwidth - mBandwidth);
+    }
+
+    private void decrease(final float factor, final long nowMs) {
+        // The downloads started before the last cut are still ending, don't count them twice
+        if (nowMs - mLastDecreaseMs < mSmoothedLatencyMs) {
+            return;
+        }
+        mLastDecreaseMs = nowMs;
+        mLimit = Math.max(mFloor, mLimit * factor);
+    }
+
+    private void countThroughput(final long nowMs) {
+        if (mWindowStartMs == 0) {
+            mWindowStartMs = nowMs;
+        }
+        mWindowCount++;
+        final long elapsed = nowMs - mWindowStartMs;
+        if (elapsed >= THROUGHPUT_WINDOW_MS) {
+            final float throughput = mWindowCount * 1000f / elapsed;
+            mThroughput = mThroughput == 0 ? throughput
+                    : mThroughput + SMOOTHING * (throughput - mThroughput);
+            mWindowStartMs = nowMs;
+            mWindowCount = 0;
+        }
+    }
+
+    /**
+     * @return the moving average of the download latency, in milliseconds
+     */
+    public synchronized float getSmoothedLatency() {
+        return mSmoothedLatencyMs;
+    }
+
+    /**
+     * @return the lowest download latency seen lately, in milliseconds
+     */
+    public synchronized float getMinLatency() {
+        return mMinLatencyMs;
+    }
+
+    /**
+     * @return the moving average of the share of downloads that fail, between 0 and 1
+     */
+    public synchronized float getErrorRate() {
+        return mErrorRate;
+    }
+
+    /**
+     * @return the moving average of the downloads ending per second
+     */
+    public synchronized float getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * @return the moving average of the bandwidth of each download, in bytes per second, or 0 if
+     * none was measured yet. Only bodies that took long enough to read to tell are measured.
+     */
+    public synchronized float getBandwidth() {
+        return mBandwidth;
+    }
+
+    public synchronized long getSuccessCount() {
+        return mSuccessCount;
+    }
+
+    public synchronized long getErrorCount() {
+        return mErrorCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DownloadConcurrencyController [limit=%d (%d-%d), latency=%.0fms, minLatency=%.0fms, errorRate=%.2f, throughput=%.1f/s, bandwidth=%.0fB/s]",
+                (int) mLimit, mFloor, mCeiling, mSmoothedLatencyMs, mMinLatencyMs, mErrorRate,
+                mThroughput, mBandwidth);
+    }
+}
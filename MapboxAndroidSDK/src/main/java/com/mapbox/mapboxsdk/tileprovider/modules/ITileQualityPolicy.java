@@ -0,0 +1,21 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.TileQuality;
+
+/**
+ * Picks the quality each tile is downloaded at. A {@link MapTileDownloader} asks for every
+ * download, so the answer can follow the network; cached tiles found below the quality asked for
+ * are upgraded in the background.
+ * <p/>
+ * Implementations are called from the download threads and must be thread safe.
+ */
+public interface ITileQualityPolicy {
+
+    /**
+     * @param tile the tile to download
+     * @param hdpiScreen whether the screen is dense enough for @2x tiles
+     * @return the quality wanted, the layer downloads the closest one it serves
+     */
+    TileQuality getQuality(MapTile tile, boolean hdpiScreen);
+}
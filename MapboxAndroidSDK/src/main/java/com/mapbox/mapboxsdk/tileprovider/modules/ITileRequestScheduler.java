@@ -0,0 +1,74 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import java.util.List;
+
+/**
+ * Orders the pending tile requests of a {@link MapTileModuleLayerBase}. The workers of the
+ * module always take the request returned by {@link #poll()}, so an implementation decides which
+ * tile gets the next free loader slot.
+ * <p/>
+ * Implementations don't need to be thread safe: the owning module only calls them while holding
+ * its queue lock.
+ */
+public interface ITileRequestScheduler {
+
+    /**
+     * Update the part of the map that is currently displayed.
+     *
+     * @param zoom the (floored) zoom level of the viewport
+     * @param centerTileX the x index of the tile at the center of the viewport
+     * @param centerTileY the y index of the tile at the center of the viewport
+     */
+    void setViewport(int zoom, int centerTileX, int centerTileY);
+
+    /**
+     * Add a request, replacing any pending request for the same tile.
+     *
+     * @param state the request to add
+     * @return the pending request that was replaced, or null if there was none
+     */
+    MapTileRequestState add(MapTileRequestState state);
+
+    /**
+     * Remove and return the request that should be loaded next.
+     *
+     * @return the most important pending request, or null if there is none
+     */
+    MapTileRequestState poll();
+
+    /**
+     * Remove and return the request that matters the least. Used to shed load when the pending
+     * queue is full.
+     *
+     * @return the least important pending request, or null if there is none
+     */
+    MapTileRequestState pollLowest();
+
+    /**
+     * Remove the pending request for a tile.
+     *
+     * @param tile the tile
+     * @return the removed request, or null if the tile wasn't pending
+     */
+    MapTileRequestState remove(MapTile tile);
+
+    /**
+     * Move every request that is no longer worth loading for the current viewport into
+     * <code>out</code> and drop it from the queue.
+     *
+     * @param out the list receiving the cancelled requests
+     */
+    void removeStale(List<MapTileRequestState> out);
+
+    /**
+     * @return the number of pending requests
+     */
+    int size();
+
+    /**
+     * Drop all pending requests.
+     */
+    void clear();
+}
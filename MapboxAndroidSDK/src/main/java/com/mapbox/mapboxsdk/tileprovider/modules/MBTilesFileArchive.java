@@ -39,9 +39,17 @@ public class MBTilesFileArchive implements IArchiveFile {
 
     @Override
     public InputStream getInputStream(final ITileLayer pTileSource, final MapTile pTile) {
+        final byte[] data = getTileData(pTileSource, pTile);
+        return (data != null) ? new ByteArrayInputStream(data) : null;
+    }
+
+    /**
+     * @return the encoded contents of a tile, or null if the archive doesn't have it
+     */
+    public byte[] getTileData(final ITileLayer pTileSource, final MapTile pTile) {
 
         try {
-            InputStream ret = null;
+            byte[] ret = null;
             final String[] tile = { COL_TILES_TILE_DATA };
             final String[] xyz = {
                     Integer.toString(pTile.getX()),
@@ -54,7 +62,7 @@ public class MBTilesFileArchive implements IArchiveFile {
 
             if (cur.getCount() != 0) {
                 cur.moveToFirst();
-                ret = new ByteArrayInputStream(cur.getBlob(0));
+                ret = cur.getBlob(0);
             }
             cur.close();
             if (ret != null) {
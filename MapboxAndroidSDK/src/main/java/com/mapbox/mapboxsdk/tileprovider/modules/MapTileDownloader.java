@@ -1,19 +1,25 @@
 package com.mapbox.mapboxsdk.tileprovider.modules;
 
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.tileprovider.IMapTileProviderCallback;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.TileQuality;
+import com.mapbox.mapboxsdk.tileprovider.TileValidators;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.MBTilesLayer;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.TileLayer;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.WebSourceTileLayer;
 import com.mapbox.mapboxsdk.util.AppUtils;
 import com.mapbox.mapboxsdk.views.MapView;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.util.HashSet;
 import java.util.concurrent.atomic.AtomicReference;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -27,13 +33,23 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
     private final AtomicReference<MapTileCache> mTileCache = new AtomicReference<>();
 
     private final NetworkAvailabilityCheck mNetworkAvailabilityCheck;
+    // One worker thread per download the layer allows at most
+    private final int mMaximumDownloads;
+    private final DownloadConcurrencyController mConcurrencyController;
+    private volatile ITileQualityPolicy mQualityPolicy;
+    // The tiles whose upgrade to a better quality is pending
+    private final HashSet<Long> mUpgrades = new HashSet<Long>();
     private MapView mMapView;
     private boolean mUseDataConnection;
     boolean hdpi;
 
     public MapTileDownloader(final ITileLayer pTileSource, final MapTileCache pTileCache,
                              final NetworkAvailabilityCheck pNetworkAvailabilityCheck, final MapView mapView) {
-        super(NUMBER_OF_TILE_DOWNLOAD_THREADS, TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
+        // One thread per download the controller may allow, the extra ones wait
+        super(getMaximumDownloads(pTileSource), TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
+        mMaximumDownloads = getMaximumDownloads(pTileSource);
+        mConcurrencyController = new DownloadConcurrencyController(MINIMUM_TILE_DOWNLOADS,
+                mMaximumDownloads, NUMBER_OF_TILE_DOWNLOAD_THREADS);
         mMapView = mapView;
         mUseDataConnection = true;
         if (pTileSource instanceof MBTilesLayer) {
@@ -56,6 +72,166 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
         return mTileCache.get();
     }
 
+    /**
+     * @return how many tiles of a layer may be downloaded at once, at most:
+     * {@link #NUMBER_OF_TILE_DOWNLOAD_THREADS} unless the layer allows more
+     */
+    private static int getMaximumDownloads(final ITileLayer tileSource) {
+        return (tileSource instanceof WebSourceTileLayer)
+                ? ((WebSourceTileLayer) tileSource).getMaximumConcurrentDownloads()
+                : NUMBER_OF_TILE_DOWNLOAD_THREADS;
+    }
+
+    /**
+     * @return the controller adapting the number of concurrent downloads to the network. Its
+     * bounds can be changed, within the maximum of the layer the downloader was created for.
+     */
+    public DownloadConcurrencyController getConcurrencyController() {
+        return mConcurrencyController;
+    }
+
+    @Override
+    protected int getConcurrencyLimit() {
+        return Math.min(mMaximumDownloads, mConcurrencyController.getLimit());
+    }
+
+    /**
+     * Called by the tile layer when a tile has been downloaded, or revalidated, to feed the
+     * concurrency controller.
+     *
+     * @param latencyMs how long the request took on the network, without decoding or caching
+     * the tile
+     */
+    public void onTileDownloaded(final long latencyMs) {
+        if (mConcurrencyController.onSuccess(latencyMs, SystemClock.uptimeMillis())) {
+            onConcurrencyLimitChanged();
+        }
+    }
+
+    /**
+     * Called by the tile layer when the body of a tile has been downloaded, to measure the
+     * bandwidth.
+     *
+     * @param durationMs how long reading the body took, once the response headers had arrived
+     */
+    public void onTileTransferred(final long bytes, final long durationMs) {
+        mConcurrencyController.onTransfer(bytes, durationMs);
+    }
+
+    /**
+     * Called by the tile layer when a download failed because of the network: an I/O error, a
+     * timeout or a server error. Missing tiles and tiles that can't be decoded aren't reported,
+     * they say nothing about congestion.
+     */
+    public void onNetworkError() {
+        if (!isNetworkAvailable()) {
+            // Nothing to learn about the network while there is none
+            return;
+        }
+        if (mConcurrencyController.onError(SystemClock.uptimeMillis())) {
+            onConcurrencyLimitChanged();
+        }
+    }
+
+    /**
+     * Set the policy picking the quality of each download, e.g. a
+     * {@link NetworkTileQualityPolicy}. Without one, tiles are downloaded at full quality, @2x on
+     * dense screens.
+     */
+    public void setTileQualityPolicy(final ITileQualityPolicy policy) {
+        mQualityPolicy = policy;
+    }
+
+    public ITileQualityPolicy getTileQualityPolicy() {
+        return mQualityPolicy;
+    }
+
+    /**
+     * @return the quality a tile would be downloaded at now, as the layer serves it
+     */
+    private TileQuality getTileQuality(final MapTile tile, final TileLayer tileLayer) {
+        final ITileQualityPolicy policy = mQualityPolicy;
+        TileQuality quality = policy != null ? policy.getQuality(tile, hdpi) : null;
+        if (quality == null) {
+            quality = hdpi ? TileQuality.FULL_HDPI : TileQuality.FULL;
+        }
+        return tileLayer instanceof WebSourceTileLayer
+                ? ((WebSourceTileLayer) tileLayer).getAvailableQuality(quality) : quality;
+    }
+
+    /**
+     * Queues the download of a better quality of a cached tile that was just loaded at a lower
+     * one. The request only reports back when it succeeds. Must be called once the request of the
+     * cached tile has left the working set, the upgrade has the same tile id.
+     */
+    private void scheduleUpgrade(final MapTileRequestState aState) {
+        if (getQueueDepth().getPending() >= TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE / 2) {
+            // Busy with tiles that aren't displayed at all yet
+            return;
+        }
+        final MapTile tile = aState.getMapTile();
+        synchronized (mUpgrades) {
+            if (!mUpgrades.add(tile.getId())) {
+                return;
+            }
+        }
+        loadMapTileAsync(new UpgradeRequestState(tile, aState.getCallback()));
+    }
+
+    private void upgradeEnded(final MapTile tile) {
+        synchronized (mUpgrades) {
+            mUpgrades.remove(tile.getId());
+        }
+    }
+
+    /**
+     * The request for the upgrade of a cached tile.
+     */
+    private final class UpgradeRequestState extends MapTileRequestState {
+        UpgradeRequestState(final MapTile tile, final IMapTileProviderCallback callback) {
+            super(tile, null, new UpgradeCallback(callback));
+        }
+    }
+
+    /**
+     * Passes the upgraded tile on, the old one is still displayed if the upgrade fails.
+     */
+    private final class UpgradeCallback implements IMapTileProviderCallback {
+        private final IMapTileProviderCallback mCallback;
+
+        UpgradeCallback(final IMapTileProviderCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void mapTileRequestCompleted(final MapTileRequestState aState, final Drawable aDrawable) {
+            upgradeEnded(aState.getMapTile());
+            mCallback.mapTileRequestCompleted(aState, aDrawable);
+        }
+
+        @Override
+        public void mapTileRequestFailed(final MapTileRequestState aState) {
+            upgradeEnded(aState.getMapTile());
+        }
+
+        @Override
+        public void mapTileRequestDropped(final MapTileRequestState aState) {
+            upgradeEnded(aState.getMapTile());
+        }
+
+        @Override
+        public void mapTileRequestExpiredTile(final MapTileRequestState aState,
+                                              final CacheableBitmapDrawable aDrawable) {
+            upgradeEnded(aState.getMapTile());
+            mCallback.mapTileRequestCompleted(aState, aDrawable);
+        }
+
+        @Override
+        public boolean useDataConnection() {
+            return mCallback.useDataConnection();
+        }
+    }
+
     public boolean isNetworkAvailable() {
         return (mNetworkAvailabilityCheck == null
                 || mNetworkAvailabilityCheck.getNetworkAvailable());
@@ -148,21 +324,108 @@ public class MapTileDownloader extends MapTileModuleLayerBase {
 
     protected class TileLoader extends MapTileModuleLayerBase.TileLoader {
 
+        // The request being loaded, if its tile is to be upgraded once it is delivered. Each
+        // worker has its own loader.
+        private MapTileRequestState mUpgradeAfterLoad;
+
+        @Override
+        protected void tileLoaded(final MapTileRequestState pState, final Drawable pDrawable) {
+            super.tileLoaded(pState, pDrawable);
+            scheduleUpgradeAfterLoad(pState);
+        }
+
+        @Override
+        protected void tileLoadedExpired(final MapTileRequestState pState,
+                                         final CacheableBitmapDrawable pDrawable) {
+            super.tileLoadedExpired(pState, pDrawable);
+            scheduleUpgradeAfterLoad(pState);
+        }
+
+        @Override
+        protected void tileLoadedFailed(final MapTileRequestState pState) {
+            mUpgradeAfterLoad = null;
+            super.tileLoadedFailed(pState);
+        }
+
+        private void scheduleUpgradeAfterLoad(final MapTileRequestState pState) {
+            if (mUpgradeAfterLoad == pState) {
+                mUpgradeAfterLoad = null;
+                scheduleUpgrade(pState);
+            }
+        }
+
         @Override
         public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
             final MapTile tile = aState.getMapTile();
+            TileLayer tileLayer = mTileSource.get();
 //            Log.d(TAG, "loadTile() with tile = '" + tile + "'");
-            if (mTileCache != null && mTileCache.get().containsTileInDiskCache(tile)) {
+            final MapTileCache cache = mTileCache.get();
+            final TileQuality quality = getTileQuality(tile, tileLayer);
+            if (aState instanceof UpgradeRequestState) {
+                return upgradeTile(tile, tileLayer, cache, quality);
+            }
+            // A tile still in the compressed cache is checked like one on disk: its validators
+            // are kept with it, so neither needs a disk read
+            final Drawable compressed = (cache != null) ? cache.getMapTileFromCompressedCache(tile) : null;
+            if (compressed != null || (cache != null && cache.containsTileInDiskCache(tile))) {
+                final TileValidators validators = cache.getTileValidators(tile);
+                final TileQuality cachedQuality = validators != null ? validators.getQuality() : null;
+                Drawable result = null;
+                if (validators != null && validators.canRevalidate() && validators.isExpired()
+                        && tileLayer instanceof WebSourceTileLayer && isNetworkAvailable()) {
+                    // Ask the server whether the cached tile is still good rather than
+                    // downloading it again. The conditional request is for the quality that is
+                    // cached.
+                    result = ((WebSourceTileLayer) tileLayer).getDrawableFromTile(
+                            MapTileDownloader.this, tile,
+                            cachedQuality != null ? cachedQuality : quality, validators);
+                    // If the server couldn't be reached, a stale tile is better than none
+                }
 //                Log.d(TAG, "tile found in Disk Cache, so returning it. tile = '" + tile + "'");
-                return mTileCache.get().getMapTileFromDisk(tile);
+                if (result == null) {
+                    result = (compressed != null) ? compressed : cache.getMapTileFromDisk(tile);
+                }
+                if (result != null && cachedQuality != null && cachedQuality.isLowerThan(quality)
+                        && isNetworkAvailable()) {
+                    // Downloaded on a poorer network than the current one, upgraded once this
+                    // request is out of the working set
+                    mUpgradeAfterLoad = aState;
+                }
+                return result;
+            }
+            if (tileLayer == null) {
+                return null;
+            }
+            // Web layers report their downloads themselves, timed on the network alone
+            final long start = SystemClock.uptimeMillis();
+            Drawable result = (tileLayer instanceof WebSourceTileLayer)
+                    ? ((WebSourceTileLayer) tileLayer).getDrawableFromTile(MapTileDownloader.this,
+                            tile, quality, null)
+                    : tileLayer.getDrawableFromTile(MapTileDownloader.this, tile, hdpi);
+            if (mUseDataConnection && result != null && !(tileLayer instanceof WebSourceTileLayer)) {
+                onTileDownloaded(SystemClock.uptimeMillis() - start);
             }
-            TileLayer tileLayer = mTileSource.get();
-            Drawable result =
-                    (tileLayer != null) ? tileLayer.getDrawableFromTile(MapTileDownloader.this,
-                            tile, hdpi) : null;
 //            Log.d(TAG, "tileLayer.getDrawable() returning result = '" + result + "'");
             return result;
         }
+
+        /**
+         * Downloads a cached tile again at the current quality, unless the network got worse
+         * since the upgrade was scheduled.
+         */
+        private Drawable upgradeTile(final MapTile tile, final TileLayer tileLayer,
+                                     final MapTileCache cache, final TileQuality quality) {
+            if (cache == null || !(tileLayer instanceof WebSourceTileLayer) || !isNetworkAvailable()) {
+                return null;
+            }
+            final TileValidators validators = cache.getTileValidators(tile);
+            if (validators == null || validators.getQuality() == null
+                    || !validators.getQuality().isLowerThan(quality)) {
+                return null;
+            }
+            return ((WebSourceTileLayer) tileLayer).getDrawableFromTile(
+                    MapTileDownloader.this, tile, quality, null);
+        }
     }
 
     private CacheableBitmapDrawable onTileLoaded(CacheableBitmapDrawable pDrawable) {
@@ -2,17 +2,17 @@ package com.mapbox.mapboxsdk.tileprovider.modules;
 
 import android.graphics.drawable.Drawable;
 import android.os.Process;
+import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 import com.mapbox.mapboxsdk.geometry.BoundingBox;
 import com.mapbox.mapboxsdk.geometry.LatLng;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.TileLoaderMetrics;
 import com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants;
 import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
 import com.mapbox.mapboxsdk.util.BitmapUtils;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
@@ -112,16 +112,20 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
     public abstract String getCacheKey();
 
     private final ExecutorService mExecutor;
+    private final int mThreadPoolSize;
+    private final int mPendingQueueSize;
+    private boolean mWorkersStarted = false;
+    private boolean mDetached = false;
 
     protected final Object mQueueLockObject = new Object();
-    protected final HashMap<MapTile, MapTileRequestState> mWorking;
-    protected final LinkedHashMap<MapTile, MapTileRequestState> mPending;
+    // The requests being loaded, by tile id
+    protected final LongSparseArray<MapTileRequestState> mWorking;
+    protected ITileRequestScheduler mPending;
 
     public MapTileRequestState popFirstPending() {
-        for (MapTile tile : mPending.keySet()) {
-            return mPending.remove(tile);
+        synchronized (mQueueLockObject) {
+            return mPending.poll();
         }
-        return null;
     }
 
     /**
@@ -135,59 +139,146 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                     "The pending queue size is smaller than the thread pool size. Automatically reducing the thread pool size.");
             pThreadPoolSize = pPendingQueueSize;
         }
+        mThreadPoolSize = pThreadPoolSize;
+        mPendingQueueSize = pPendingQueueSize;
         mExecutor = Executors.newFixedThreadPool(pThreadPoolSize,
                 new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY, getThreadGroupName()));
 
-        mWorking = new HashMap<MapTile, MapTileRequestState>();
-        mPending =
-                new LinkedHashMap<MapTile, MapTileRequestState>(pPendingQueueSize + 2, 0.1f, true) {
+        mWorking = new LongSparseArray<MapTileRequestState>();
+        mPending = new ViewportTileRequestScheduler();
+    }
 
-                    private static final long serialVersionUID = 6455337315681858866L;
+    /**
+     * Replace the scheduler deciding which pending tile is loaded next. Requests already pending
+     * are moved over to the new scheduler.
+     *
+     * @param scheduler the new scheduler
+     */
+    public void setRequestScheduler(final ITileRequestScheduler scheduler) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("The request scheduler can not be null");
+        }
+        synchronized (mQueueLockObject) {
+            MapTileRequestState state;
+            while ((state = mPending.poll()) != null) {
+                scheduler.add(state);
+            }
+            mPending = scheduler;
+        }
+    }
 
-                    @Override
-                    protected boolean removeEldestEntry(
-                            final Map.Entry<MapTile, MapTileRequestState> pEldest) {
-                        while (size() > pPendingQueueSize) {
-                            MapTileRequestState state = popFirstPending();
-                            state.getCallback().mapTileRequestFailed(state);
-                        }
-                        return false;
-                    }
-                };
+    /**
+     * Tells the scheduler which part of the map is displayed, and cancels the pending requests
+     * that became stale because of it.
+     *
+     * @param zoom the (floored) zoom level of the viewport
+     * @param centerTileX the x index of the tile at the center of the viewport
+     * @param centerTileY the y index of the tile at the center of the viewport
+     */
+    public void setViewport(final int zoom, final int centerTileX, final int centerTileY) {
+        final ArrayList<MapTileRequestState> cancelled = new ArrayList<MapTileRequestState>();
+        synchronized (mQueueLockObject) {
+            mPending.setViewport(zoom, centerTileX, centerTileY);
+            mPending.removeStale(cancelled);
+        }
+        for (MapTileRequestState state : cancelled) {
+            state.getCallback().mapTileRequestDropped(state);
+        }
     }
 
     /**
-     * Loads a map tile asynchronously, adding it to the queue and calling getTileLoader.
+     * Loads a map tile asynchronously, adding it to the queue of the scheduler. The tile is
+     * picked up by one of the long-lived workers of this provider.
      */
     public void loadMapTileAsync(final MapTileRequestState pState) {
+        MapTileRequestState replaced;
+        MapTileRequestState overflow = null;
         synchronized (mQueueLockObject) {
+            if (mDetached) {
+                replaced = pState;
+            } else {
 /*
                 Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() on provider: " + getName() + " for tile: " + pState.getMapTile());
-                if (mPending.containsKey(pState.getMapTile())) {
-                    Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() tile already exists in request queue for modular provider. Moving to front of queue.");
-                } else {
-                    Log.d(TAG, "MapTileModuleLayerBase.loadMaptileAsync() adding tile to request queue for modular provider.");
-                }
 */
-            // this will put the tile in the queue, or move it to the front of
-            // the queue if it's already present
-            mPending.put(pState.getMapTile(), pState);
+                // this will put the tile in the queue, or refresh it if it's already present
+                replaced = mPending.add(pState);
+                if (replaced == pState) {
+                    replaced = null;
+                }
+                if (mPending.size() > mPendingQueueSize) {
+                    overflow = mPending.pollLowest();
+                }
+                startWorkers();
+                mQueueLockObject.notify();
+            }
         }
 
+        if (replaced != null) {
+            replaced.getCallback().mapTileRequestDropped(replaced);
+        }
+        if (overflow != null) {
+            overflow.getCallback().mapTileRequestDropped(overflow);
+        }
+    }
+
+    /**
+     * Starts the fixed set of workers draining the scheduler. Must be called with the queue lock
+     * held.
+     */
+    private void startWorkers() {
+        if (mWorkersStarted) {
+            return;
+        }
+        mWorkersStarted = true;
         try {
-            mExecutor.execute(getTileLoader());
+            for (int i = 0; i < mThreadPoolSize; i++) {
+                mExecutor.execute(getTileLoader());
+            }
         } catch (final RejectedExecutionException e) {
             Log.w(TAG, "RejectedExecutionException", e);
         }
     }
 
     /**
-     * Clears both pending and working queues.
+     * @return the number of requests waiting and being loaded
+     */
+    public TileLoaderMetrics.QueueDepth getQueueDepth() {
+        synchronized (mQueueLockObject) {
+            return new TileLoaderMetrics.QueueDepth(getName(), mPending.size(), mWorking.size());
+        }
+    }
+
+    /**
+     * @return how many tiles may be loaded at once, at most the thread pool size. Workers beyond
+     * the limit wait; call {@link #onConcurrencyLimitChanged()} when it goes up.
+     */
+    protected int getConcurrencyLimit() {
+        return mThreadPoolSize;
+    }
+
+    /**
+     * Wakes the workers waiting for the concurrency limit to go up.
+     */
+    protected void onConcurrencyLimitChanged() {
+        synchronized (mQueueLockObject) {
+            mQueueLockObject.notifyAll();
+        }
+    }
+
+    /**
+     * Drops the pending requests, telling their callbacks. The requests being loaded are left to
+     * their workers, which report them when they end.
      */
     protected void clearQueue() {
+        final ArrayList<MapTileRequestState> dropped = new ArrayList<MapTileRequestState>();
         synchronized (mQueueLockObject) {
-            mPending.clear();
-            mWorking.clear();
+            MapTileRequestState state;
+            while ((state = mPending.poll()) != null) {
+                dropped.add(state);
+            }
+        }
+        for (MapTileRequestState state : dropped) {
+            state.getCallback().mapTileRequestDropped(state);
         }
     }
 
@@ -195,14 +286,21 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
      * Detach, we're shutting down - Stops all workers.
      */
     public void detach() {
+        synchronized (mQueueLockObject) {
+            mDetached = true;
+            mQueueLockObject.notifyAll();
+        }
         this.clearQueue();
-        this.mExecutor.shutdown();
+        this.mExecutor.shutdownNow();
     }
 
     /**
-     * Marks a given map tile as neither being downloaded or worked on.
+     * Marks the tile of a request as neither being downloaded or worked on. A request for the same
+     * tile still pending is dropped, the tile has just been loaded.
      */
-    void removeTileFromQueues(final MapTile mapTile) {
+    void removeTileFromQueues(final MapTileRequestState pState) {
+        final MapTile mapTile = pState.getMapTile();
+        MapTileRequestState pending;
         synchronized (mQueueLockObject) {
             if (DEBUG_TILE_PROVIDERS) {
                 Log.d(TAG, "MapTileModuleLayerBase.removeTileFromQueues() on provider: "
@@ -210,8 +308,16 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                         + " for tile: "
                         + mapTile);
             }
-            mPending.remove(mapTile);
-            mWorking.remove(mapTile);
+            pending = mPending.remove(mapTile);
+            // Only if it is this request's, another one for the tile may be loading now
+            if (mWorking.get(mapTile.getId()) == pState) {
+                mWorking.remove(mapTile.getId());
+            }
+            // A worker may be waiting for a free slot
+            mQueueLockObject.notify();
+        }
+        if (pending != null && pending != pState) {
+            pending.getCallback().mapTileRequestDropped(pending);
         }
     }
 
@@ -240,15 +346,26 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
             // Do nothing by default
         }
 
+        /**
+         * Blocks until the scheduler hands out a request and fewer tiles than the concurrency
+         * limit are being loaded.
+         *
+         * @return the next request to load, or null once this provider is detached
+         */
         protected MapTileRequestState nextTile() {
 
             synchronized (mQueueLockObject) {
-                // get the most recently accessed tile
-                // - the last item in the iterator that's not already being
-                // processed
-                MapTileRequestState state = popFirstPending();
+                MapTileRequestState state = null;
+                while (!mDetached && (mWorking.size() >= getConcurrencyLimit()
+                        || (state = mPending.poll()) == null)) {
+                    try {
+                        mQueueLockObject.wait();
+                    } catch (final InterruptedException e) {
+                        return null;
+                    }
+                }
                 if (state != null) {
-                    mWorking.put(state.getMapTile(), state);
+                    mWorking.put(state.getMapTile().getId(), state);
                     if (DEBUG_TILE_PROVIDERS) {
                         Log.d(TAG, "TileLoader.nextTile() on provider: "
                                 + getName()
@@ -264,7 +381,7 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
          * A tile has loaded.
          */
         protected void tileLoaded(final MapTileRequestState pState, final Drawable pDrawable) {
-            removeTileFromQueues(pState.getMapTile());
+            removeTileFromQueues(pState);
             pState.getCallback().mapTileRequestCompleted(pState, pDrawable);
         }
 
@@ -280,7 +397,7 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                         + " with tile: "
                         + pState.getMapTile());
             }
-            removeTileFromQueues(pState.getMapTile());
+            removeTileFromQueues(pState);
             pState.getCallback().mapTileRequestExpiredTile(pState, pDrawable);
         }
 
@@ -291,12 +408,13 @@ public abstract class MapTileModuleLayerBase implements TileLayerConstants {
                         + " with tile: "
                         + pState.getMapTile());
             }
-            removeTileFromQueues(pState.getMapTile());
+            removeTileFromQueues(pState);
             pState.getCallback().mapTileRequestFailed(pState);
         }
 
         /**
          * This is a functor class of type Runnable. The run method is the encapsulated function.
+         * It keeps taking tiles from the scheduler until the provider is detached.
          */
         @Override
         public void run() {
@@ -0,0 +1,126 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.util.Log;
+import com.mapbox.mapboxsdk.exceptions.OfflineDatabaseException;
+import com.mapbox.mapboxsdk.geometry.BoundingBox;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.offline.OfflineMapDatabase;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import com.mapbox.mapboxsdk.tileprovider.tilesource.ITileLayer;
+
+/**
+ * The {@link MapTileOfflineDatabaseProvider} reads tiles from an {@link OfflineMapDatabase} and
+ * decodes them on its own bounded pool of workers. Decoded tiles are put into the memory cache,
+ * so the drawing thread never touches SQLite or the decoder.
+ */
+public class MapTileOfflineDatabaseProvider extends MapTileModuleLayerBase {
+    private static final String TAG = "MapTileOfflineDatabaseProvider";
+
+    private final OfflineMapDatabase mOfflineMapDatabase;
+    private final MapTileCache mTileCache;
+
+    public MapTileOfflineDatabaseProvider(final OfflineMapDatabase offlineMapDatabase,
+                                          final MapTileCache tileCache) {
+        super(NUMBER_OF_TILE_OFFLINE_THREADS, TILE_OFFLINE_MAXIMUM_QUEUE_SIZE);
+        mOfflineMapDatabase = offlineMapDatabase;
+        mTileCache = tileCache;
+    }
+
+    public OfflineMapDatabase getOfflineMapDatabase() {
+        return mOfflineMapDatabase;
+    }
+
+    @Override
+    protected String getName() {
+        return "Offline Map Database Provider";
+    }
+
+    @Override
+    protected String getThreadGroupName() {
+        return "offlinedatabase";
+    }
+
+    @Override
+    protected Runnable getTileLoader() {
+        return new TileLoader();
+    }
+
+    @Override
+    public boolean getUsesDataConnection() {
+        return false;
+    }
+
+    @Override
+    public float getMinimumZoomLevel() {
+        return MINIMUM_ZOOMLEVEL;
+    }
+
+    @Override
+    public float getMaximumZoomLevel() {
+        return MAXIMUM_ZOOMLEVEL;
+    }
+
+    @Override
+    public BoundingBox getBoundingBox() {
+        return WORLD_BOUNDING_BOX;
+    }
+
+    @Override
+    public LatLng getCenterCoordinate() {
+        return null;
+    }
+
+    @Override
+    public float getCenterZoom() {
+        return (getMaximumZoomLevel() + getMinimumZoomLevel()) / 2;
+    }
+
+    @Override
+    public int getTileSizePixels() {
+        return DEFAULT_TILE_SIZE;
+    }
+
+    @Override
+    public void setTileSource(final ITileLayer tileSource) {
+        // The tiles come from the offline database, there is no tile source to set.
+    }
+
+    @Override
+    public ITileLayer getTileSource() {
+        return null;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return mOfflineMapDatabase.getMapID();
+    }
+
+    protected class TileLoader extends MapTileModuleLayerBase.TileLoader {
+
+        @Override
+        public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
+            final MapTile tile = aState.getMapTile();
+            try {
+                final byte[] data = mOfflineMapDatabase.dataForTile(tile.getZ(), tile.getX(), tile.getY());
+                if (data == null || data.length == 0) {
+                    // No data found, the loading tile will stay displayed.
+                    return null;
+                }
+
+                final Bitmap bitmap = mTileCache.decodeBitmap(data, null);
+                if (bitmap == null) {
+                    Log.w(TAG, "Unable to decode offline tile: " + tile);
+                    return null;
+                }
+                return mTileCache.putTileInMemoryCache(tile, bitmap);
+            } catch (OfflineDatabaseException e) {
+                Log.e(TAG, "Error reading offline tile: " + tile, e);
+            }
+            return null;
+        }
+    }
+}
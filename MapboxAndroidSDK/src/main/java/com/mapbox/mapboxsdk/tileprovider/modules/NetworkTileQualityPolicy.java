@@ -0,0 +1,170 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.telephony.TelephonyManager;
+import com.mapbox.mapboxsdk.constants.MapboxConstants.RasterImageQuality;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.TileQuality;
+
+/**
+ * Picks the tile quality from the type of the network, how the downloads are going and the
+ * battery saver:
+ * <ul>
+ * <li>unmetered networks such as Wi-Fi get full quality, @2x on dense screens,</li>
+ * <li>3G, LTE and metered Wi-Fi get 80% JPEG at 1x,</li>
+ * <li>2G gets 70% JPEG at 1x.</li>
+ * </ul>
+ * A slow or failing network, as measured by the {@link DownloadConcurrencyController} of the
+ * downloader, and the battery saver each lower the quality by one level. The network is slow when
+ * its measured bandwidth is low, or before any was measured, when downloads take long. A slow
+ * network has to get twice as fast again before the quality goes back up, so the level doesn't
+ * flap around the thresholds.
+ * <p/>
+ * JPEG tiles have no transparency: only use this policy for opaque base layers. NOTE: Requires
+ * android.permission.ACCESS_NETWORK_STATE.
+ */
+public class NetworkTileQualityPolicy implements ITileQualityPolicy {
+
+    public static final int LEVEL_LOW = 0;
+    public static final int LEVEL_MEDIUM = 1;
+    public static final int LEVEL_HIGH = 2;
+
+    /**
+     * A bandwidth below this, in bytes per second, lowers the quality.
+     */
+    public static final float SLOW_BANDWIDTH = 32 * 1024;
+
+    /**
+     * Until a bandwidth is measured, downloads taking longer than this on average lower the
+     * quality.
+     */
+    public static final float SLOW_LATENCY_MS = 2000;
+
+    /**
+     * A share of failed downloads above this lowers the quality.
+     */
+    public static final float HIGH_ERROR_RATE = 0.25f;
+
+    // How much better than the thresholds a slow network has to get to no longer be slow
+    private static final float RECOVERY_FACTOR = 2f;
+
+    // The network is looked at again at most this often
+    private static final long CHECK_INTERVAL_MS = 1000;
+
+    private final ConnectivityManager mConnectivityManager;
+    private final PowerManager mPowerManager;
+    private final DownloadConcurrencyController mController;
+
+    private volatile int mLevel = LEVEL_HIGH;
+    private volatile long mLevelTime;
+    private boolean mSlow;
+
+    /**
+     * @param controller the concurrency controller of the downloader, whose measures refine the
+     * level, or null to only look at the network type
+     */
+    public NetworkTileQualityPolicy(final Context context,
+                                    final DownloadConcurrencyController controller) {
+        mConnectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mController = controller;
+    }
+
+    @Override
+    public TileQuality getQuality(final MapTile tile, final boolean hdpiScreen) {
+        return getQualityForLevel(getLevel(), hdpiScreen);
+    }
+
+    /**
+     * @return the quality of a level, override to pick other formats
+     */
+    protected TileQuality getQualityForLevel(final int level, final boolean hdpiScreen) {
+        switch (level) {
+            case LEVEL_LOW:
+                return new TileQuality(RasterImageQuality.MBXRasterImageQualityJPEG70, false);
+            case LEVEL_MEDIUM:
+                return new TileQuality(RasterImageQuality.MBXRasterImageQualityJPEG80, false);
+            case LEVEL_HIGH:
+            default:
+                return hdpiScreen ? TileQuality.FULL_HDPI : TileQuality.FULL;
+        }
+    }
+
+    /**
+     * @return the current level, one of the <code>LEVEL_</code> constants
+     */
+    public int getLevel() {
+        final long now = SystemClock.uptimeMillis();
+        if (mLevelTime == 0 || now - mLevelTime >= CHECK_INTERVAL_MS) {
+            mLevel = computeLevel();
+            mLevelTime = now;
+        }
+        return mLevel;
+    }
+
+    private int computeLevel() {
+        final NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        if (info == null) {
+            // Nothing is downloaded anyway
+            return LEVEL_HIGH;
+        }
+        int level;
+        if (info.getType() == ConnectivityManager.TYPE_MOBILE) {
+            level = isSlowMobileNetwork(info.getSubtype()) ? LEVEL_LOW : LEVEL_MEDIUM;
+        } else {
+            level = LEVEL_HIGH;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && isMetered()) {
+                level = LEVEL_MEDIUM;
+            }
+        }
+
+        if (mController != null && (isSlow() || mController.getErrorRate() > HIGH_ERROR_RATE)) {
+            level--;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && isPowerSaveMode()) {
+            level--;
+        }
+        return Math.max(LEVEL_LOW, level);
+    }
+
+    private synchronized boolean isSlow() {
+        final float bandwidth = mController.getBandwidth();
+        if (bandwidth > 0) {
+            mSlow = bandwidth < (mSlow ? SLOW_BANDWIDTH * RECOVERY_FACTOR : SLOW_BANDWIDTH);
+        } else {
+            final float latency = mController.getSmoothedLatency();
+            mSlow = latency > (mSlow ? SLOW_LATENCY_MS / RECOVERY_FACTOR : SLOW_LATENCY_MS);
+        }
+        return mSlow;
+    }
+
+    private static boolean isSlowMobileNetwork(final int subtype) {
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private boolean isMetered() {
+        return mConnectivityManager.isActiveNetworkMetered();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean isPowerSaveMode() {
+        return mPowerManager != null && mPowerManager.isPowerSaveMode();
+    }
+}
@@ -0,0 +1,183 @@
+package com.mapbox.mapboxsdk.tileprovider.modules;
+
+import android.support.v4.util.LongSparseArray;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.MapTileRequestState;
+import java.util.List;
+
+/**
+ * The default {@link ITileRequestScheduler}. Requests are ranked by how far their tile is from
+ * the center of the viewport (in tiles, at the viewport zoom level) and by how far their zoom
+ * level is from the viewport zoom level. Ties go to the most recent request.
+ * <p/>
+ * The ranking is computed against the current viewport every time a request is taken, so
+ * requests left behind by a pan are demoted automatically. Requests that are more than one zoom
+ * level away, or farther than the stale distance from the center, are cancelled when the viewport
+ * changes.
+ * <p/>
+ * Pending queues are small (see {@link com.mapbox.mapboxsdk.tileprovider.constants.TileLayerConstants#TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE}),
+ * so a linear scan is cheaper than keeping a heap ordered across viewport changes. Entries are
+ * kept by tile id, and scanned by index, so no iterator is allocated.
+ */
+public class ViewportTileRequestScheduler implements ITileRequestScheduler {
+
+    /**
+     * Default distance, in tiles from the viewport center, beyond which a request is cancelled.
+     */
+    public static final int DEFAULT_STALE_TILE_DISTANCE = 8;
+
+    /**
+     * Cost of a zoom level mismatch, expressed in tiles of distance.
+     */
+    private static final int ZOOM_MISMATCH_COST = 64;
+
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<Entry>();
+    private final int mStaleTileDistance;
+    private long mSequence = 0;
+
+    private boolean mHasViewport = false;
+    private int mZoom;
+    private int mCenterX;
+    private int mCenterY;
+
+    public ViewportTileRequestScheduler() {
+        this(DEFAULT_STALE_TILE_DISTANCE);
+    }
+
+    /**
+     * @param staleTileDistance distance in tiles from the viewport center beyond which pending
+     * requests are cancelled
+     */
+    public ViewportTileRequestScheduler(final int staleTileDistance) {
+        mStaleTileDistance = staleTileDistance;
+    }
+
+    @Override
+    public void setViewport(final int zoom, final int centerTileX, final int centerTileY) {
+        mHasViewport = true;
+        mZoom = zoom;
+        mCenterX = centerTileX;
+        mCenterY = centerTileY;
+    }
+
+    @Override
+    public MapTileRequestState add(final MapTileRequestState state) {
+        final long id = state.getMapTile().getId();
+        final Entry replaced = mEntries.get(id);
+        mEntries.put(id, new Entry(state, mSequence++));
+        return replaced != null ? replaced.state : null;
+    }
+
+    @Override
+    public MapTileRequestState poll() {
+        Entry best = null;
+        int bestCost = Integer.MAX_VALUE;
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.valueAt(i);
+            final int cost = cost(entry.state.getMapTile());
+            if (best == null || cost < bestCost
+                    || (cost == bestCost && entry.sequence > best.sequence)) {
+                best = entry;
+                bestCost = cost;
+            }
+        }
+        return removeEntry(best);
+    }
+
+    @Override
+    public MapTileRequestState pollLowest() {
+        Entry worst = null;
+        int worstCost = Integer.MIN_VALUE;
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.valueAt(i);
+            final int cost = cost(entry.state.getMapTile());
+            if (worst == null || cost > worstCost
+                    || (cost == worstCost && entry.sequence < worst.sequence)) {
+                worst = entry;
+                worstCost = cost;
+            }
+        }
+        return removeEntry(worst);
+    }
+
+    @Override
+    public MapTileRequestState remove(final MapTile tile) {
+        return removeEntry(mEntries.get(tile.getId()));
+    }
+
+    @Override
+    public void removeStale(final List<MapTileRequestState> out) {
+        if (!mHasViewport) {
+            return;
+        }
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            final Entry entry = mEntries.valueAt(i);
+            final MapTile tile = entry.state.getMapTile();
+            if (Math.abs(tile.getZ() - mZoom) > 1 || distance(tile) > mStaleTileDistance) {
+                mEntries.removeAt(i);
+                out.add(entry.state);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public void clear() {
+        mEntries.clear();
+    }
+
+    private MapTileRequestState removeEntry(final Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        mEntries.remove(entry.state.getMapTile().getId());
+        return entry.state;
+    }
+
+    /**
+     * Lower is more important.
+     */
+    protected int cost(final MapTile tile) {
+        if (!mHasViewport) {
+            return 0;
+        }
+        return Math.abs(tile.getZ() - mZoom) * ZOOM_MISMATCH_COST + distance(tile);
+    }
+
+    /**
+     * Chebyshev distance in tiles between a tile and the viewport center, measured at the
+     * viewport zoom level and taking the wrap around the antimeridian into account.
+     */
+    protected int distance(final MapTile tile) {
+        int x = tile.getX();
+        int y = tile.getY();
+        final int dz = tile.getZ() - mZoom;
+        if (dz > 0) {
+            x >>= dz;
+            y >>= dz;
+        } else if (dz < 0) {
+            x <<= -dz;
+            y <<= -dz;
+        }
+        final int worldTiles = 1 << mZoom;
+        int dx = Math.abs(x - mCenterX) % worldTiles;
+        dx = Math.min(dx, worldTiles - dx);
+        final int dy = Math.abs(y - mCenterY);
+        return Math.max(dx, dy);
+    }
+
+    private static final class Entry {
+        final MapTileRequestState state;
+        final long sequence;
+
+        Entry(final MapTileRequestState state, final long sequence) {
+            this.state = state;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -47,7 +47,7 @@ public class BingTileLayer extends WebSourceTileLayer {
             getMetadata();
         }
 
-        return mUrl.replace("{quadkey}", quadTree(aTile));
+        return super.getTileURL(aTile, hdpi);
     }
 
     @Override
@@ -121,9 +121,7 @@ public class BingTileLayer extends WebSourceTileLayer {
 
                     String content = readAll(rd);
 
-                    String metadataUrl = getInstanceFromJSON(content).replace("{culture}", "en");
-
-                    mUrl = metadataUrl;
+                    setUrlTemplate(getInstanceFromJSON(content));
 
                     return Boolean.TRUE;
                 }
@@ -134,7 +132,7 @@ public class BingTileLayer extends WebSourceTileLayer {
         }
     }
 
-    private String getInstanceFromJSON(final String jsonContent) throws Exception {
+    private TileUrlTemplate getInstanceFromJSON(final String jsonContent) throws Exception {
         if (jsonContent == null) {
             throw new Exception("JSON to parse is null");
         }
@@ -167,10 +165,16 @@ public class BingTileLayer extends WebSourceTileLayer {
             super.mMaximumZoomLevel = (float) resource.getInt("ZoomMax");
         }
 
-        String imageBaseUrl = resource.getString("imageUrl");
-        String imageUrl = imageBaseUrl.replace("{subdomain}", resource.getJSONArray("imageUrlSubdomains").getString(0));
+        String imageUrl = resource.getString("imageUrl").replace("{culture}", "en");
+
+        // Spread the tiles over all the subdomains
+        JSONArray subdomainsArray = resource.getJSONArray("imageUrlSubdomains");
+        String[] subdomains = new String[subdomainsArray.length()];
+        for (int i = 0; i < subdomains.length; i++) {
+            subdomains[i] = subdomainsArray.getString(i);
+        }
 
-        return imageUrl;
+        return TileUrlTemplate.compile(imageUrl, subdomains);
     }
 
     private static String readAll(Reader rd) throws IOException {
@@ -181,20 +185,4 @@ public class BingTileLayer extends WebSourceTileLayer {
         }
         return sb.toString();
     }
-
-    private String quadTree(final MapTile tile) {
-        final StringBuilder quadKey = new StringBuilder();
-        for (int i = tile.getZ(); i > 0; i--) {
-            int digit = 0;
-            final int mask = 1 << (i - 1);
-            if ((tile.getX() & mask) != 0) {
-                digit += 1;
-            }
-            if ((tile.getY() & mask) != 0) {
-                digit += 2;
-            }
-            quadKey.append("" + digit);
-        }
-        return quadKey.toString();
-    }
 }
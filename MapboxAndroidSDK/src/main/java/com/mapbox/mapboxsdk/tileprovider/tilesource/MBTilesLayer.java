@@ -193,12 +193,12 @@ public class MBTilesLayer extends TileLayer implements MapViewConstants, MapboxC
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
                                                        final MapTile aTile, boolean hdpi) {
         if (mbTilesFileArchive != null) {
-            InputStream stream = mbTilesFileArchive.getInputStream(this, aTile);
-            if (stream != null) {
+            byte[] data = mbTilesFileArchive.getTileData(this, aTile);
+            if (data != null) {
                 CacheableBitmapDrawable result =
-                        downloader.getCache().putTileStream(aTile, stream, null);
+                        downloader.getCache().putTileData(aTile, data, null);
                 if (result == null) {
-                    Log.d(TAG, "error reading stream from mbtiles");
+                    Log.d(TAG, "error decoding tile from mbtiles");
                 }
                 return result;
             }
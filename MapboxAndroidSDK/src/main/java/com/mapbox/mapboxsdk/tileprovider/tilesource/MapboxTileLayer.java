@@ -2,6 +2,8 @@ package com.mapbox.mapboxsdk.tileprovider.tilesource;
 
 import android.text.TextUtils;
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import com.mapbox.mapboxsdk.tileprovider.TileQuality;
 import com.mapbox.mapboxsdk.util.MapboxUtils;
 import com.mapbox.mapboxsdk.views.util.constants.MapViewConstants;
 import java.util.Locale;
@@ -26,6 +28,8 @@ public class MapboxTileLayer extends TileJsonTileLayer implements MapViewConstan
 
     public MapboxTileLayer(String mapId, boolean enableSSL) {
         super(mapId, mapId, enableSSL);
+        // Mapbox servers aren't bound by the OSM tile usage policy
+        setMaximumConcurrentDownloads(MAXIMUM_TILE_DOWNLOADS);
     }
 
     @Override
@@ -44,6 +48,40 @@ public class MapboxTileLayer extends TileJsonTileLayer implements MapViewConstan
         return this;
     }
 
+    /**
+     * Mapbox raster tiles come in several image formats, see {@link RasterImageQuality}. They
+     * are always downloaded at 1x.
+     */
+    @Override
+    public TileQuality getAvailableQuality(final TileQuality quality) {
+        return quality.isHdpi() ? new TileQuality(quality.getImageQuality(), false) : quality;
+    }
+
+    @Override
+    public String[] getTileURLs(final MapTile aTile, final TileQuality quality) {
+        final String[] urls = super.getTileURLs(aTile, quality);
+        if (urls != null && quality.getImageQuality() != RasterImageQuality.MBXRasterImageQualityFull) {
+            final String extension = MapboxUtils.qualityExtensionForImageQuality(quality.getImageQuality());
+            for (int i = 0; i < urls.length; i++) {
+                urls[i] = replaceImageExtension(urls[i], extension);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Replaces the <code>.png</code> extension of a tile url, before its query string.
+     */
+    private static String replaceImageExtension(final String url, final String extension) {
+        final int query = url.indexOf('?');
+        final int end = query >= 0 ? query : url.length();
+        final int dot = url.lastIndexOf(".png", end);
+        if (dot < 0 || dot + ".png".length() != end) {
+            return url;
+        }
+        return url.substring(0, dot + 1) + extension + url.substring(end);
+    }
+
     @Override
     protected String getBrandedJSONURL() {
         String url = String.format(MAPBOX_LOCALE, MAPBOX_BASE_URL_V4 + "%s.json?access_token=%s&secure=1", mId, MapboxUtils.getAccessToken());
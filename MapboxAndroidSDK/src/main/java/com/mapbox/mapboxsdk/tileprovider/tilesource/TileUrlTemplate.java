@@ -0,0 +1,191 @@
+package com.mapbox.mapboxsdk.tileprovider.tilesource;
+
+import com.mapbox.mapboxsdk.tileprovider.MapTile;
+import java.util.ArrayList;
+
+/**
+ * A tile url template parsed once, so building the url of a tile is a single pass over its parts
+ * instead of a replace per token.
+ * <p/>
+ * Supported tokens are <code>{z}</code>, <code>{x}</code>, <code>{y}</code>, <code>{2x}</code>
+ * (replaced with <code>@2x</code> for hdpi tiles), <code>{quadkey}</code> and
+ * <code>{subdomain}</code> or <code>{s}</code>, which picks one of the subdomains given to
+ * {@link #compile(String, String[])} for each tile. Any other text, including unknown tokens, is
+ * kept as is.
+ * <p/>
+ * Templates are immutable and can be rendered from several threads at once; each thread renders
+ * into its own reused {@link StringBuilder}.
+ */
+public final class TileUrlTemplate {
+
+    private static final int TOKEN_TEXT = 0;
+    private static final int TOKEN_Z = 1;
+    private static final int TOKEN_X = 2;
+    private static final int TOKEN_Y = 3;
+    private static final int TOKEN_2X = 4;
+    private static final int TOKEN_QUADKEY = 5;
+    private static final int TOKEN_SUBDOMAIN = 6;
+
+    private static final String[] TOKEN_NAMES = {
+            null, "{z}", "{x}", "{y}", "{2x}", "{quadkey}", "{subdomain}"
+    };
+
+    private static final ThreadLocal<StringBuilder> sBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    private final String mTemplate;
+    private final int[] mTokens;
+    // The text of each part, as it appears in the template
+    private final String[] mTexts;
+    private final String[] mSubdomains;
+
+    private TileUrlTemplate(final String template, final int[] tokens, final String[] texts,
+                            final String[] subdomains) {
+        mTemplate = template;
+        mTokens = tokens;
+        mTexts = texts;
+        mSubdomains = subdomains;
+    }
+
+    public static TileUrlTemplate compile(final String template) {
+        return compile(template, null);
+    }
+
+    /**
+     * @param template the url template
+     * @param subdomains the values of the <code>{subdomain}</code> token, may be null if the
+     * template doesn't use it
+     */
+    public static TileUrlTemplate compile(final String template, final String[] subdomains) {
+        final ArrayList<Integer> tokens = new ArrayList<Integer>();
+        final ArrayList<String> texts = new ArrayList<String>();
+        if (template != null) {
+            final StringBuilder text = new StringBuilder();
+            int i = 0;
+            while (i < template.length()) {
+                final int token = template.charAt(i) == '{' ? tokenAt(template, i) : TOKEN_TEXT;
+                if (token == TOKEN_TEXT) {
+                    text.append(template.charAt(i));
+                    i++;
+                    continue;
+                }
+                if (text.length() > 0) {
+                    tokens.add(TOKEN_TEXT);
+                    texts.add(text.toString());
+                    text.setLength(0);
+                }
+                final int end = template.indexOf('}', i) + 1;
+                tokens.add(token);
+                texts.add(template.substring(i, end));
+                i = end;
+            }
+            if (text.length() > 0) {
+                tokens.add(TOKEN_TEXT);
+                texts.add(text.toString());
+            }
+        }
+
+        final int[] tokenArray = new int[tokens.size()];
+        for (int i = 0; i < tokenArray.length; i++) {
+            tokenArray[i] = tokens.get(i);
+        }
+        final String[] subdomainArray = (subdomains != null && subdomains.length > 0) ? subdomains.clone() : null;
+        return new TileUrlTemplate(template, tokenArray, texts.toArray(new String[texts.size()]), subdomainArray);
+    }
+
+    private static int tokenAt(final String template, final int index) {
+        if (template.startsWith("{s}", index)) {
+            return TOKEN_SUBDOMAIN;
+        }
+        for (int token = TOKEN_Z; token < TOKEN_NAMES.length; token++) {
+            if (template.startsWith(TOKEN_NAMES[token], index)) {
+                return token;
+            }
+        }
+        return TOKEN_TEXT;
+    }
+
+    public String getTemplate() {
+        return mTemplate;
+    }
+
+    /**
+     * @return the url of a tile, or null if the template is null
+     */
+    public String render(final MapTile aTile, final boolean hdpi) {
+        return render(aTile.getZ(), aTile.getX(), aTile.getY(), hdpi);
+    }
+
+    public String render(final int z, final int x, final int y, final boolean hdpi) {
+        if (mTemplate == null) {
+            return null;
+        }
+        final StringBuilder builder = sBuilder.get();
+        builder.setLength(0);
+        appendTo(builder, z, x, y, hdpi);
+        return builder.toString();
+    }
+
+    /**
+     * Append the url of a tile to a builder.
+     */
+    public void appendTo(final StringBuilder builder, final int z, final int x, final int y,
+                         final boolean hdpi) {
+        for (int i = 0; i < mTokens.length; i++) {
+            switch (mTokens[i]) {
+                case TOKEN_TEXT:
+                    builder.append(mTexts[i]);
+                    break;
+                case TOKEN_Z:
+                    builder.append(z);
+                    break;
+                case TOKEN_X:
+                    builder.append(x);
+                    break;
+                case TOKEN_Y:
+                    builder.append(y);
+                    break;
+                case TOKEN_2X:
+                    if (hdpi) {
+                        builder.append("@2x");
+                    }
+                    break;
+                case TOKEN_QUADKEY:
+                    appendQuadKey(builder, z, x, y);
+                    break;
+                case TOKEN_SUBDOMAIN:
+                    if (mSubdomains != null) {
+                        builder.append(mSubdomains[((x + y) & Integer.MAX_VALUE) % mSubdomains.length]);
+                    } else {
+                        builder.append(mTexts[i]);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void appendQuadKey(final StringBuilder builder, final int z, final int x, final int y) {
+        for (int i = z; i > 0; i--) {
+            final int mask = 1 << (i - 1);
+            int digit = 0;
+            if ((x & mask) != 0) {
+                digit += 1;
+            }
+            if ((y & mask) != 0) {
+                digit += 2;
+            }
+            builder.append((char) ('0' + digit));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mTemplate;
+    }
+}
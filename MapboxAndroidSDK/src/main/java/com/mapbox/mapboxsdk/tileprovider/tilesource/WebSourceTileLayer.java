@@ -3,19 +3,38 @@ package com.mapbox.mapboxsdk.tileprovider.tilesource;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.mapbox.mapboxsdk.constants.MapboxConstants;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.tileprovider.MapTileCache;
+import com.mapbox.mapboxsdk.tileprovider.TileLoaderMetrics;
+import com.mapbox.mapboxsdk.tileprovider.TileQuality;
+import com.mapbox.mapboxsdk.tileprovider.TileValidators;
 import com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader;
+import com.mapbox.mapboxsdk.util.BitmapUtils;
 import com.mapbox.mapboxsdk.util.NetworkUtils;
 import com.mapbox.mapboxsdk.views.util.TileLoadedListener;
 import com.mapbox.mapboxsdk.views.util.TilesLoadedListener;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
@@ -28,6 +47,8 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
     // Tracks the number of threads active in the getBitmapFromURL method.
     private AtomicInteger activeThreads = new AtomicInteger(0);
     protected boolean mEnableSSL = false;
+    // mUrl parsed once, see getUrlTemplate()
+    private volatile TileUrlTemplate mUrlTemplate;
 
     public WebSourceTileLayer(final String pId, final String url) {
         this(pId, url, false);
@@ -73,6 +94,25 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
         return null;
     }
 
+    /**
+     * Gets the Tile URLs of a tile at a given quality, see {@link #getAvailableQuality(TileQuality)}.
+     *
+     * @param aTile a map tile
+     * @param quality the quality, as returned by {@link #getAvailableQuality(TileQuality)}
+     * @return a list of tile URLs
+     */
+    public String[] getTileURLs(final MapTile aTile, final TileQuality quality) {
+        return getTileURLs(aTile, quality.isHdpi());
+    }
+
+    /**
+     * @return the closest quality to the one wanted that this layer serves. Layers only offer
+     * their own image format by default.
+     */
+    public TileQuality getAvailableQuality(final TileQuality quality) {
+        return quality.isHdpi() ? TileQuality.FULL_HDPI : TileQuality.FULL;
+    }
+
     /**
      * Get a single Tile URL for a single tile.
      *
@@ -81,9 +121,33 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
      * @return a list of tile URLs
      */
     public String getTileURL(final MapTile aTile, boolean hdpi) {
-        return parseUrlForTile(mUrl, aTile, hdpi);
+        return getUrlTemplate().render(aTile, hdpi);
     }
 
+    /**
+     * @return the compiled template of the layer's url, recompiled whenever the url has changed
+     */
+    protected TileUrlTemplate getUrlTemplate() {
+        TileUrlTemplate template = mUrlTemplate;
+        if (template == null || template.getTemplate() != mUrl) {
+            template = TileUrlTemplate.compile(mUrl);
+            mUrlTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * Sets the layer's url from an already compiled template, e.g. one with subdomains.
+     */
+    protected void setUrlTemplate(final TileUrlTemplate template) {
+        mUrlTemplate = template;
+        mUrl = template.getTemplate();
+    }
+
+    /**
+     * Replaces the tokens of a url one after the other. Use {@link TileUrlTemplate} for urls that
+     * are rendered for every tile.
+     */
     protected String parseUrlForTile(String url, final MapTile aTile, boolean hdpi) {
         return url.replace("{z}", String.valueOf(aTile.getZ()))
                 .replace("{x}", String.valueOf(aTile.getX()))
@@ -93,42 +157,231 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
 
     private static final Paint compositePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
-    private Bitmap compositeBitmaps(final Bitmap source, Bitmap dest) {
-        Canvas canvas = new Canvas(dest);
-        canvas.drawBitmap(source, 0, 0, compositePaint);
+    // Fetches the extra layers of composite tiles, shared by all the web layers
+    private static ExecutorService sLayerFetchExecutor;
+
+    private long mLayerFetchTimeoutMs = TILE_LAYER_FETCH_TIMEOUT_MS;
+
+    private int mMaximumDownloads = NUMBER_OF_TILE_DOWNLOAD_THREADS;
+
+    /**
+     * Sets how long a composite tile waits for each of its layers. Layers that are still missing
+     * after that are left out of the tile.
+     *
+     * @param timeoutMs the timeout, in milliseconds
+     */
+    public WebSourceTileLayer setLayerFetchTimeout(final long timeoutMs) {
+        mLayerFetchTimeoutMs = timeoutMs;
+        return this;
+    }
+
+    public long getLayerFetchTimeout() {
+        return mLayerFetchTimeoutMs;
+    }
+
+    /**
+     * Sets how many tiles of this layer may be downloaded at once when the network allows it.
+     * The default, {@link #NUMBER_OF_TILE_DOWNLOAD_THREADS}, conforms to the OSM tile usage
+     * policy; only raise it for servers that accept more. Takes effect for the tile downloaders
+     * created after it is set.
+     *
+     * @param maximumDownloads the number of downloads, between {@link #MINIMUM_TILE_DOWNLOADS}
+     * and {@link #MAXIMUM_TILE_DOWNLOADS}
+     */
+    public WebSourceTileLayer setMaximumConcurrentDownloads(final int maximumDownloads) {
+        mMaximumDownloads = Math.max(MINIMUM_TILE_DOWNLOADS, Math.min(MAXIMUM_TILE_DOWNLOADS, maximumDownloads));
+        return this;
+    }
+
+    public int getMaximumConcurrentDownloads() {
+        return mMaximumDownloads;
+    }
+
+    private static synchronized ExecutorService getLayerFetchExecutor() {
+        if (sLayerFetchExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(NUMBER_OF_TILE_LAYER_FETCH_THREADS,
+                    NUMBER_OF_TILE_LAYER_FETCH_THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "layerfetch #" + mCount.incrementAndGet());
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sLayerFetchExecutor = executor;
+        }
+        return sLayerFetchExecutor;
+    }
+
+    /**
+     * Fetches all the layers of a composite tile at once: the first one on the calling thread,
+     * the others on the shared layer fetch pool. Layers that don't arrive within the layer timeout
+     * are left out.
+     *
+     * @param networkError set to true if a layer failed because of the network
+     * @param latencyMs set to the network latency of the first layer, the one fetched on the
+     * calling thread, or -1 if it failed
+     * @return the layers in the order of the urls, with null for the missing ones
+     */
+    private Bitmap[] fetchLayers(final String[] urls, final MapTileCache cache,
+                                 final boolean[] networkError, final long[] latencyMs) {
+        final Bitmap[] layers = new Bitmap[urls.length];
+        final ArrayList<Future<TileResponse>> futures =
+                new ArrayList<Future<TileResponse>>(urls.length - 1);
+        final ExecutorService executor = getLayerFetchExecutor();
+        for (int i = 1; i < urls.length; i++) {
+            final String url = urls[i];
+            futures.add(executor.submit(new Callable<TileResponse>() {
+                @Override
+                public TileResponse call() throws Exception {
+                    return fetchTileFromURL(url, null, cache, null);
+                }
+            }));
+        }
+
+        final long deadline = SystemClock.uptimeMillis() + mLayerFetchTimeoutMs;
+        final TileResponse first = fetchTileFromURL(urls[0], null, cache, null);
+        layers[0] = first.bitmap;
+        networkError[0] = first.networkError;
+        latencyMs[0] = first.bitmap != null ? first.latencyMs : -1;
+        for (int i = 1; i < urls.length; i++) {
+            final Future<TileResponse> future = futures.get(i - 1);
+            try {
+                final TileResponse response = future.get(Math.max(0, deadline - SystemClock.uptimeMillis()), TimeUnit.MILLISECONDS);
+                layers[i] = response.bitmap;
+                networkError[0] |= response.networkError;
+            } catch (final TimeoutException e) {
+                Log.w(TAG, "Timed out fetching tile layer: " + urls[i]);
+                future.cancel(true);
+                networkError[0] = true;
+            } catch (final ExecutionException e) {
+                Log.e(TAG, "Error downloading tile layer: " + urls[i] + ":" + e.getCause());
+            } catch (final InterruptedException e) {
+                // The tile isn't wanted anymore
+                for (Future<TileResponse> pending : futures) {
+                    pending.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return layers;
+    }
+
+    /**
+     * Draws the layers over each other, in order, with a single canvas into a bitmap taken from
+     * the cache's pool of removed bitmaps when one fits.
+     *
+     * @return the composite bitmap, or null if no layer was fetched
+     */
+    private Bitmap compositeBitmaps(final Bitmap[] layers, final MapTileCache cache) {
+        int width = 0;
+        int height = 0;
+        for (Bitmap layer : layers) {
+            if (layer != null) {
+                width = Math.max(width, layer.getWidth());
+                height = Math.max(height, layer.getHeight());
+            }
+        }
+        if (width == 0 || height == 0) {
+            return null;
+        }
+
+        Bitmap dest = cache.getBitmapFromRemoved(width, height);
+        if (dest != null && dest.isMutable() && dest.getConfig() == Bitmap.Config.ARGB_8888) {
+            dest.eraseColor(Color.TRANSPARENT);
+        } else {
+            dest = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        final Canvas canvas = new Canvas(dest);
+        for (Bitmap layer : layers) {
+            if (layer != null) {
+                canvas.drawBitmap(layer, 0, 0, compositePaint);
+                // The layers aren't referenced anywhere else, the next decodes can reuse them
+                cache.releaseBitmap(layer);
+            }
+        }
         return dest;
     }
 
     @Override
     public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
             final MapTile aTile, boolean hdpi) {
+        return getDrawableFromTile(downloader, aTile, hdpi, null);
+    }
+
+    /**
+     * Downloads a tile, or revalidates the copy of it in the disk cache.
+     *
+     * @param validators the validators of the cached copy of an expired tile, or null to download
+     * the tile. The request is made conditional, and if the server answers that the tile hasn't
+     * changed only its expiry is updated and the cached copy is returned.
+     */
+    public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
+            final MapTile aTile, boolean hdpi, final TileValidators validators) {
+        return getDrawableFromTile(downloader, aTile, hdpi ? TileQuality.FULL_HDPI : TileQuality.FULL,
+                validators);
+    }
+
+    /**
+     * Downloads a tile at a given quality, or revalidates the copy of it in the disk cache. The
+     * quality is stored with the tile.
+     *
+     * @param quality the quality wanted, the closest one the layer serves is downloaded
+     * @param validators the validators of the cached copy of an expired tile, or null to download
+     * the tile
+     */
+    public CacheableBitmapDrawable getDrawableFromTile(final MapTileDownloader downloader,
+            final MapTile aTile, final TileQuality quality, final TileValidators validators) {
         if (downloader.isNetworkAvailable()) {
             TilesLoadedListener listener = downloader.getTilesLoadedListener();
 
-            boolean tempHDPI = hdpi;
-            if (this instanceof MapboxTileLayer) {
-                tempHDPI = false;
-            }
-
-            String[] urls = getTileURLs(aTile, tempHDPI);
+            final TileQuality availableQuality = getAvailableQuality(quality);
+            String[] urls = getTileURLs(aTile, availableQuality);
             CacheableBitmapDrawable result = null;
             Bitmap resultBitmap = null;
+            boolean partial = false;
+            TileResponse response = null;
             MapTileCache cache = downloader.getCache();
 
             if (urls != null) {
                 if (listener != null) {
                     listener.onTilesLoadStarted();
                 }
-                for (final String url : urls) {
-                    Bitmap bitmap = getBitmapFromURL(aTile, url, cache);
-                    if (bitmap == null) {
-                        continue;
+                if (urls.length == 1) {
+                    // Validators are only kept for single url tiles. The downloaded bytes go
+                    // straight to the disk cache unless a listener customizes the tile.
+                    response = fetchTileFromURL(urls[0], validators, cache,
+                            downloader.getTileLoadedListener() == null ? aTile : null);
+                    // Cached once below: a second drawable of the same bitmap would send the
+                    // replaced one to the bitmap pool while the bitmap is displayed
+                    resultBitmap = response.bitmap;
+                    if (response.networkError) {
+                        downloader.onNetworkError();
+                    } else if (resultBitmap != null || response.notModified) {
+                        downloader.onTileDownloaded(response.latencyMs);
+                        if (response.bytes > 0) {
+                            downloader.onTileTransferred(response.bytes, response.durationMs);
+                        }
                     }
-                    if (resultBitmap == null) {
-                        resultBitmap = bitmap;
-                    } else {
-                        resultBitmap = compositeBitmaps(bitmap, resultBitmap);
+                } else if (urls.length > 1) {
+                    final boolean[] networkError = new boolean[1];
+                    final long[] latencyMs = new long[1];
+                    final Bitmap[] layers = fetchLayers(urls, cache, networkError, latencyMs);
+                    if (networkError[0]) {
+                        downloader.onNetworkError();
                     }
+                    if (latencyMs[0] >= 0) {
+                        downloader.onTileDownloaded(latencyMs[0]);
+                    }
+                    for (Bitmap layer : layers) {
+                        partial |= layer == null;
+                    }
+                    resultBitmap = compositeBitmaps(layers, cache);
                 }
 
                 if (checkThreadControl()) {
@@ -138,6 +391,20 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
                 }
             }
 
+            if (response != null && response.notModified) {
+                // The cached copy is still good: keep it for longer, without downloading or
+                // decoding anything new
+                cache.putTileValidators(aTile, validators.renew(response.connection));
+                result = cache.getMapTileFromMemory(aTile);
+                if (result == null || !result.isBitmapValid() || BitmapUtils.isCacheDrawableExpired(result)) {
+                    result = cache.getMapTileFromDisk(aTile);
+                }
+                return result;
+            }
+
+            final TileValidators newValidators = response != null
+                    ? validatorsWithQuality(response.validators, availableQuality) : null;
+
             TileLoadedListener listener2 = downloader.getTileLoadedListener();
             if (listener2 != null) {
                 //create the CacheableBitmapDrawable object from the bitmap
@@ -157,13 +424,16 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
                     result.setBounds(0, 0, resultWidth, resultHeight);
                     result.draw(canvas);
 
-                    cache.putTileBitmap(aTile, bitmapToCache);
-                }
-            } else {
-                if (resultBitmap != null) {
-                    //get drawable by putting it into cache (memory and disk)
-                    result = cache.putTileBitmap(aTile, resultBitmap);
+                    if (partial) {
+                        cache.putTileInMemoryCache(aTile, bitmapToCache);
+                    } else {
+                        cache.putTileBitmap(aTile, bitmapToCache);
+                        cache.putTileValidators(aTile, newValidators);
+                    }
                 }
+            } else if (resultBitmap != null) {
+                result = cacheDownloadedTile(cache, aTile, resultBitmap, partial,
+                        response != null && response.storedOnDisk, newValidators);
             }
 
             return result;
@@ -171,6 +441,44 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
         return null;
     }
 
+    /**
+     * Caches a downloaded tile, with a single drawable for its bitmap in the memory cache.
+     *
+     * @param partial true if some layers of a composite tile are missing, it is then only kept in
+     * memory so it is fetched again once it leaves the memory cache
+     * @param storedOnDisk true if the downloaded bytes are already in the disk cache
+     * @return the drawable of the tile in the memory cache
+     */
+    static CacheableBitmapDrawable cacheDownloadedTile(final MapTileCache cache,
+            final MapTile aTile, final Bitmap bitmap, final boolean partial,
+            final boolean storedOnDisk, final TileValidators validators) {
+        if (partial) {
+            return cache.putTileInMemoryCache(aTile, bitmap);
+        }
+        final CacheableBitmapDrawable result;
+        if (storedOnDisk) {
+            // The bytes were stored as downloaded rather than re-encoding the bitmap
+            result = cache.putTileInMemoryCache(aTile, bitmap);
+        } else {
+            //get drawable by putting it into cache (memory and disk)
+            result = cache.putTileBitmap(aTile, bitmap);
+        }
+        cache.putTileValidators(aTile, validators);
+        return result;
+    }
+
+    /**
+     * @return the validators to store with a downloaded tile, recording its quality even if the
+     * server sent no validators
+     */
+    private static TileValidators validatorsWithQuality(final TileValidators validators,
+                                                        final TileQuality quality) {
+        final TileValidators base = validators != null ? validators
+                : new TileValidators(null, null,
+                        System.currentTimeMillis() + TileValidators.DEFAULT_MAX_AGE_MS);
+        return base.withQuality(quality);
+    }
+
     /**
      * Requests and returns a bitmap object from a given URL, using aCache to decode it.
      *
@@ -181,26 +489,175 @@ public class WebSourceTileLayer extends TileLayer implements MapboxConstants {
      * @return the tile if valid, otherwise null
      */
     public Bitmap getBitmapFromURL(MapTile mapTile, final String url, final MapTileCache aCache) {
+        Bitmap bitmap = fetchTileFromURL(url, null, aCache, null).bitmap;
+        if (bitmap != null) {
+            aCache.putTileInMemoryCache(mapTile, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Requests and decodes a bitmap from a given URL, without caching it.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @return the bitmap if valid, otherwise null
+     */
+    protected Bitmap fetchBitmapFromURL(final String url) {
+        return fetchTileFromURL(url, null, null, null).bitmap;
+    }
+
+    private static final int READ_BUFFER_SIZE = 32 * 1024;
+    // Larger buffers, grown for unusually big tiles, are dropped after use
+    private static final int MAX_RETAINED_READ_BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<ReadBuffer> sReadBuffer = new ThreadLocal<ReadBuffer>() {
+        @Override
+        protected ReadBuffer initialValue() {
+            return new ReadBuffer();
+        }
+    };
+
+    /**
+     * A buffer reused by a download thread to read each tile in full before decoding it.
+     */
+    private static final class ReadBuffer {
+        byte[] data = new byte[READ_BUFFER_SIZE];
+        int length;
+
+        void readFrom(final InputStream is, final int contentLength) throws IOException {
+            if (contentLength >= data.length) {
+                // One more byte so the end of the stream is seen without growing the buffer
+                data = new byte[contentLength + 1];
+            }
+            length = 0;
+            int n;
+            while ((n = is.read(data, length, data.length - length)) >= 0) {
+                length += n;
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+            }
+        }
+
+        void release() {
+            if (data.length > MAX_RETAINED_READ_BUFFER_SIZE) {
+                data = new byte[READ_BUFFER_SIZE];
+            }
+            length = 0;
+        }
+    }
+
+    /**
+     * What a tile request brought back.
+     */
+    private static final class TileResponse {
+        Bitmap bitmap;
+        // The bytes the bitmap was decoded from have been stored in the disk cache
+        boolean storedOnDisk;
+        // The validators of the downloaded bitmap, if the server sent any
+        TileValidators validators;
+        // The server answered 304 to a conditional request
+        boolean notModified;
+        // The request failed on an I/O error, a timeout or a server error, rather than because
+        // the server has no such tile or it couldn't be decoded
+        boolean networkError;
+        // The size of the body and how long it took to read it, once the headers had arrived
+        int bytes;
+        long durationMs;
+        // How long the request took on the network, up to the end of the body but without
+        // decoding or caching the tile
+        long latencyMs;
+        HttpURLConnection connection;
+    }
+
+    /**
+     * Requests and decodes a tile, without caching it.
+     *
+     * @param url the map tile url. should refer to a valid bitmap resource.
+     * @param conditional the validators of a cached copy, to only download the tile if it has
+     * changed, or null
+     * @param cache the cache whose pool of bitmaps is reused to decode the tile, or null
+     * @param diskTile the tile to store the downloaded bytes as in the disk cache of
+     * <code>cache</code>, straight from the read buffer, or null not to store them
+     */
+    private TileResponse fetchTileFromURL(final String url, final TileValidators conditional,
+                                          final MapTileCache cache, final MapTile diskTile) {
+        final TileResponse response = new TileResponse();
+
         // We track the active threads here, every exit point should decrement this value.
         activeThreads.incrementAndGet();
 
         if (TextUtils.isEmpty(url)) {
             activeThreads.decrementAndGet();
-            return null;
+            return response;
         }
 
+        final TileLoaderMetrics metrics = TileLoaderMetrics.getInstance();
+        final long start = System.nanoTime();
         try {
             HttpURLConnection connection = NetworkUtils.getHttpURLConnection(new URL(url));
-            Bitmap bitmap = BitmapFactory.decodeStream(connection.getInputStream());
-            if (bitmap != null) {
-                aCache.putTileInMemoryCache(mapTile, bitmap);
+            if (conditional != null) {
+                conditional.addConditionalHeaders(connection);
+            }
+            response.connection = connection;
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                metrics.recordLatency(TileLoaderMetrics.STAGE_NETWORK, start);
+                response.latencyMs = (System.nanoTime() - start) / 1000000;
+                response.notModified = conditional != null;
+                return response;
+            }
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                // Tiles outside the coverage of the layer are answered with a 404
+                response.networkError = responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+                Log.w(TAG, "Error downloading MapTile: " + url + ": HTTP " + responseCode);
+                connection.disconnect();
+                return response;
             }
-            return bitmap;
+            final ReadBuffer buffer = sReadBuffer.get();
+            // The bandwidth is measured over the body alone, the round trip of the request
+            // would otherwise dominate it for small tiles
+            final long bodyStart = System.nanoTime();
+            final InputStream is = connection.getInputStream();
+            try {
+                buffer.readFrom(is, connection.getContentLength());
+            } finally {
+                // Hands the connection back to the pool
+                is.close();
+            }
+            metrics.recordLatency(TileLoaderMetrics.STAGE_NETWORK, start);
+            metrics.recordBytes(getCacheKey(), buffer.length);
+            final long bodyEnd = System.nanoTime();
+            response.bytes = buffer.length;
+            response.durationMs = (bodyEnd - bodyStart) / 1000000;
+            response.latencyMs = (bodyEnd - start) / 1000000;
+            final long decodeStart = System.nanoTime();
+            try {
+                // Decoding from the buffer lets the bounds and the pixels be decoded from a
+                // single read, and the pixels go into a bitmap of the pool when one fits
+                response.bitmap = (cache != null)
+                        ? cache.decodeBitmap(buffer.data, buffer.length, null)
+                        : BitmapFactory.decodeByteArray(buffer.data, 0, buffer.length);
+                metrics.recordLatency(TileLoaderMetrics.STAGE_DECODE, decodeStart);
+                if (response.bitmap != null && diskTile != null && cache.isDiskCacheEnabled()) {
+                    response.storedOnDisk = cache.putTileDataInDiskCache(diskTile, buffer.data,
+                            buffer.length);
+                }
+            } finally {
+                buffer.release();
+            }
+            if (response.bitmap != null) {
+                response.validators = TileValidators.fromConnection(connection);
+            }
+        } catch (final IOException e) {
+            // Includes the timeouts
+            Log.e(TAG, "Error downloading MapTile: " + url + ":" + e);
+            response.networkError = true;
         } catch (final Throwable e) {
             Log.e(TAG, "Error downloading MapTile: " + url + ":" + e);
         } finally {
             activeThreads.decrementAndGet();
         }
-        return null;
+        return response;
     }
 }
@@ -0,0 +1,25 @@
+package com.mapbox.mapboxsdk.tileprovider.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.Choreographer;
+
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+class SDK16 {
+
+    static Object newFrameCallback(final Runnable runnable) {
+        return new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                runnable.run();
+            }
+        };
+    }
+
+    /**
+     * Must be called from the thread whose looper the frame callback runs on.
+     */
+    static void postFrameCallback(final Object frameCallback) {
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) frameCallback);
+    }
+}
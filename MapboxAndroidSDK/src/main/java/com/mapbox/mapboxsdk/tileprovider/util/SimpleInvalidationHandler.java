@@ -1,24 +1,133 @@
 package com.mapbox.mapboxsdk.tileprovider.util;
 
+import android.graphics.Rect;
+import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.views.MapView;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Invalidates the map as tiles complete. Completions are queued without locking from the loader
+ * threads and the map is invalidated at most once per frame: on the next vsync through the
+ * Choreographer, or after {@link #FRAME_DELAY_MS} before Jelly Bean. Only the union of the rects
+ * of the completed tiles is invalidated, unless a completion doesn't say which tile it is or the
+ * tile hasn't been drawn yet.
+ * <p/>
+ * The rects are read on the UI thread when the batch is flushed: the draw loop moves them on that
+ * thread while it reuses its tiles, so they can't be read safely as the tiles complete.
+ * <p/>
+ * MAPTILE_SUCCESS_ID messages are batched too: their <code>obj</code> is the {@link Rect} of the
+ * completed tile, or null to invalidate the whole map.
+ */
 public class SimpleInvalidationHandler extends Handler {
+
+    /**
+     * How long completions are batched for when the Choreographer isn't available.
+     */
+    public static final long FRAME_DELAY_MS = 16;
+
+    private static final int MSG_SCHEDULE_FRAME = 100;
+    private static final int MSG_FLUSH = MSG_SCHEDULE_FRAME + 1;
+
     private final MapView mView;
 
+    // Written by any thread, drained on the UI thread
+    private final ConcurrentLinkedQueue<MapTile> mDirtyTiles = new ConcurrentLinkedQueue<MapTile>();
+    private final AtomicBoolean mInvalidateAll = new AtomicBoolean();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final Rect mDirty = new Rect();
+    // The rects of MAPTILE_SUCCESS_ID messages, only touched on the UI thread
+    private final Rect mDirtyRects = new Rect();
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private Object mFrameCallback;
+
     public SimpleInvalidationHandler(final MapView pView) {
-        super();
+        super(Looper.getMainLooper());
         mView = pView;
     }
 
+    /**
+     * Queues the invalidation of a completed tile. Can be called from any thread.
+     *
+     * @param tile the tile, or null to invalidate the whole map
+     */
+    public void invalidateTile(final MapTile tile) {
+        if (tile == null) {
+            mInvalidateAll.set(true);
+        } else {
+            mDirtyTiles.offer(tile);
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == getLooper()) {
+                scheduleFlush();
+            } else {
+                sendEmptyMessage(MSG_SCHEDULE_FRAME);
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mFrameCallback == null) {
+                mFrameCallback = SDK16.newFrameCallback(mFlushRunnable);
+            }
+            SDK16.postFrameCallback(mFrameCallback);
+        } else {
+            sendEmptyMessageDelayed(MSG_FLUSH, FRAME_DELAY_MS);
+        }
+    }
+
+    private void flush() {
+        // Completions arriving from now on schedule another frame
+        mScheduled.set(false);
+        boolean invalidateAll = mInvalidateAll.getAndSet(false) || mView.isAnimating();
+        mDirty.set(mDirtyRects);
+        mDirtyRects.setEmpty();
+        MapTile tile;
+        while ((tile = mDirtyTiles.poll()) != null) {
+            // Where the tile was last drawn, in map coordinates
+            final Rect rect = tile.getTileRect();
+            if (rect == null) {
+                invalidateAll = true;
+            } else {
+                mDirty.union(rect);
+            }
+        }
+        if (invalidateAll) {
+            mView.invalidate();
+        } else if (!mDirty.isEmpty()) {
+            mView.invalidateMapCoordinates(mDirty);
+        }
+    }
+
     @Override
     public void handleMessage(final Message msg) {
         switch (msg.what) {
             case MapTile.MAPTILE_SUCCESS_ID:
-                mView.invalidate();
-                //                mView.invalidate((Rect) msg.obj);
+                if (msg.obj instanceof Rect) {
+                    mDirtyRects.union((Rect) msg.obj);
+                    if (mScheduled.compareAndSet(false, true)) {
+                        scheduleFlush();
+                    }
+                } else {
+                    invalidateTile(null);
+                }
+                break;
+            case MSG_SCHEDULE_FRAME:
+                scheduleFlush();
+                break;
+            case MSG_FLUSH:
+                flush();
                 break;
         }
     }
@@ -9,15 +9,41 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.OkUrlFactory;
+import com.squareup.okhttp.Protocol;
 import javax.net.ssl.SSLSocketFactory;
 import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 
+/**
+ * All the SDK's HTTP traffic goes through one shared {@link OkHttpClient}, so every request
+ * shares its connection pool and TLS sessions. Connections to the tile servers are kept alive
+ * between tiles and multiplexed over HTTP/2 or SPDY where the server supports it.
+ * <p/>
+ * The SDK's own requests are synchronous, so no per-host limit is set on the client: tile
+ * downloads are bounded by the workers of each
+ * {@link com.mapbox.mapboxsdk.tileprovider.modules.MapTileDownloader}, within the maximum of their
+ * layer, and offline downloads by the concurrency of the
+ * {@link com.mapbox.mapboxsdk.offline.OfflineMapDownloader}.
+ */
 public class NetworkUtils {
+
+    /**
+     * Idle connections kept alive in the shared pool.
+     */
+    public static final int MAX_IDLE_CONNECTIONS = 16;
+
+    public static final long KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+    private static OkHttpClient sHttpClient;
+    private static OkUrlFactory sUrlFactory;
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager connectivityManager =
                 (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -25,6 +51,54 @@ public class NetworkUtils {
         return activeNetworkInfo != null && activeNetworkInfo.isConnected();
     }
 
+    /**
+     * Returns the client shared by all of the SDK's requests, creating it first if needed. Use
+     * {@link OkHttpClient#clone()} to change its settings for some requests only: the clone keeps
+     * sharing the connection pool and dispatcher.
+     *
+     * @return the shared client
+     */
+    public static synchronized OkHttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            OkHttpClient client = new OkHttpClient();
+            client.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS));
+            client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.SPDY_3, Protocol.HTTP_1_1));
+            setHttpClient(client);
+        }
+        return sHttpClient;
+    }
+
+    /**
+     * Replaces the client shared by all of the SDK's requests, e.g. to configure its pool, its
+     * timeouts or its interceptors. Requests already made keep the previous client.
+     *
+     * @param client the new client
+     */
+    public static synchronized void setHttpClient(final OkHttpClient client) {
+        sHttpClient = client;
+        sUrlFactory = new OkUrlFactory(client);
+    }
+
+    /**
+     * Adds an interceptor that sees every request the SDK sends over the network from now on,
+     * e.g. to collect metrics.
+     *
+     * @param interceptor the interceptor
+     */
+    public static synchronized void addNetworkInterceptor(final Interceptor interceptor) {
+        // Requests running on other threads read the interceptors of the client they were made
+        // with, so the interceptor goes into a copy that replaces it. The copy still shares the
+        // connection pool and dispatcher.
+        OkHttpClient client = getHttpClient().clone();
+        client.networkInterceptors().add(interceptor);
+        setHttpClient(client);
+    }
+
+    private static synchronized OkUrlFactory getUrlFactory() {
+        getHttpClient();
+        return sUrlFactory;
+    }
+
     public static HttpURLConnection getHttpURLConnection(final URL url) {
         return getHttpURLConnection(url, null, null);
     }
@@ -34,14 +108,21 @@ public class NetworkUtils {
     }
 
     public static HttpURLConnection getHttpURLConnection(final URL url, final Cache cache, final SSLSocketFactory sslSocketFactory) {
-        OkHttpClient client = new OkHttpClient();
-        if (cache != null) {
-            client.setCache(cache);
-        }
-        if (sslSocketFactory != null) {
-            client.setSslSocketFactory(sslSocketFactory);
+        final OkUrlFactory urlFactory;
+        if (cache == null && sslSocketFactory == null) {
+            urlFactory = getUrlFactory();
+        } else {
+            // A clone still shares the connection pool and dispatcher
+            OkHttpClient client = getHttpClient().clone();
+            if (cache != null) {
+                client.setCache(cache);
+            }
+            if (sslSocketFactory != null) {
+                client.setSslSocketFactory(sslSocketFactory);
+            }
+            urlFactory = new OkUrlFactory(client);
         }
-        HttpURLConnection connection = new OkUrlFactory(client).open(url);
+        HttpURLConnection connection = urlFactory.open(url);
         connection.setRequestProperty("User-Agent", MapboxUtils.getUserAgent());
         return connection;
     }
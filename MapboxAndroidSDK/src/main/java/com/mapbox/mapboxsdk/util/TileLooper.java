@@ -4,6 +4,8 @@ import android.graphics.Canvas;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LongSparseArray;
 import com.mapbox.mapboxsdk.tileprovider.MapTile;
 import com.mapbox.mapboxsdk.views.util.Projection;
 import java.util.ArrayList;
@@ -12,6 +14,9 @@ import uk.co.senab.bitmapcache.CacheableBitmapDrawable;
 
 /**
  * A class that will loop around all the map tiles in the given viewport.
+ * <p/>
+ * The tiles handed to {@link #handleTile} are kept from one loop to the next, so as long as the
+ * viewport shows the same tiles, looping doesn't allocate anything.
  */
 public abstract class TileLooper {
 
@@ -21,8 +26,42 @@ public abstract class TileLooper {
     protected List<CacheableBitmapDrawable> mBeingUsedDrawables =
             new ArrayList<CacheableBitmapDrawable>();
 
+    // The tiles of the current loop and of the previous one, by id
+    private LongSparseArray<MapTile> mTiles = new LongSparseArray<MapTile>();
+    private LongSparseArray<MapTile> mPreviousTiles = new LongSparseArray<MapTile>();
+    private boolean mLooped = false;
+    private int mLayerId;
+
+    private final Handler mReleaseHandler = new Handler(Looper.getMainLooper());
+    private boolean mReleasePending = false;
+    private final Runnable mReleaseTask = new Runnable() {
+        @Override
+        public void run() {
+            mReleasePending = false;
+            for (int i = 0; i < mBeingUsedDrawables.size(); i++) {
+                mBeingUsedDrawables.get(i).setBeingUsed(false);
+            }
+            mBeingUsedDrawables.clear();
+        }
+    };
+
+    /**
+     * Loops with the layer id looked up from <code>pCacheKey</code>. Callers that have the id
+     * already should use the overload that takes it, which doesn't hash the cache key.
+     */
     public final int loop(final Canvas pCanvas, final String pCacheKey, final float pZoomLevel,
             final int pTileSizePx, final Rect pViewPort, final Rect pClipRect) {
+        return loop(pCanvas, pCacheKey, MapTile.getLayerId(pCacheKey), pZoomLevel, pTileSizePx,
+                pViewPort, pClipRect);
+    }
+
+    /**
+     * @param pLayerId the id of <code>pCacheKey</code>, see
+     * {@link com.mapbox.mapboxsdk.tileprovider.MapTileLayerBase#getLayerId()}
+     */
+    public final int loop(final Canvas pCanvas, final String pCacheKey, final int pLayerId,
+            final float pZoomLevel, final int pTileSizePx, final Rect pViewPort,
+            final Rect pClipRect) {
         // Calculate the amount of tiles needed for each side around the center one.
         Projection.pixelXYToTileXY(pViewPort.left, pViewPort.top, mUpperLeft);
         mUpperLeft.offset(-1, -1);
@@ -35,6 +74,7 @@ public abstract class TileLooper {
         final int roundedZoom = (int) Math.floor(pZoomLevel);
         final int mapTileUpperBound = 1 << roundedZoom;
         initializeLoop(pZoomLevel, pTileSizePx);
+        beginTiles(pLayerId);
 
         int tileX, tileY;
 
@@ -42,16 +82,59 @@ public abstract class TileLooper {
             for (int x = mUpperLeft.x; x <= mLowerRight.x; x++) {
                 tileY = GeometryMath.mod(y, mapTileUpperBound);
                 tileX = GeometryMath.mod(x, mapTileUpperBound);
-                final MapTile tile = new MapTile(pCacheKey, roundedZoom, tileX, tileY);
+                final MapTile tile = obtainTile(pCacheKey, roundedZoom, tileX, tileY);
                 handleTile(pCanvas, pCacheKey, pTileSizePx, tile, x, y, pClipRect);
             }
         }
+        // Drop the tiles that went out of view
+        mPreviousTiles.clear();
         finalizeLoop();
 
         /* return number of tiles looped */
         return  (mLowerRight.y - mUpperLeft.y) * (mLowerRight.x - mUpperLeft.x);
     }
 
+    private void beginTiles(final int pLayerId) {
+        final LongSparseArray<MapTile> previous = mTiles;
+        mTiles = mPreviousTiles;
+        mPreviousTiles = previous;
+        mTiles.clear();
+
+        if (!mLooped || mLayerId != pLayerId) {
+            // The layer changed, none of the previous tiles can be reused
+            mPreviousTiles.clear();
+            mLooped = true;
+            mLayerId = pLayerId;
+        }
+    }
+
+    /**
+     * @return the layer id of the current loop
+     */
+    protected final int getLayerId() {
+        return mLayerId;
+    }
+
+    /**
+     * Returns the tile of the current loop for the given indices: the same instance as in the
+     * previous loop if the tile was already in view, or a new one.
+     */
+    protected final MapTile obtainTile(final String pCacheKey, final int pZ, final int pX,
+            final int pY) {
+        final long id = MapTile.toId(mLayerId, pZ, pX, pY);
+        MapTile tile = mTiles.get(id);
+        if (tile != null) {
+            // Seen twice in this loop, around the antimeridian
+            return tile;
+        }
+        tile = mPreviousTiles.get(id);
+        if (tile == null) {
+            tile = new MapTile(pCacheKey, mLayerId, pZ, pX, pY);
+        }
+        mTiles.put(id, tile);
+        return tile;
+    }
+
     public abstract void initializeLoop(float pZoomLevel, int pTileSizePx);
 
     public abstract void handleTile(Canvas pCanvas, final String pCacheKey, int pTileSizePx,
@@ -59,14 +142,9 @@ public abstract class TileLooper {
 
     public void finalizeLoop() {
         //we delay just to make sure drawable bitmaps are not reused while being drawn.
-        (new Handler()).postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                for (CacheableBitmapDrawable drawable : mBeingUsedDrawables) {
-                    drawable.setBeingUsed(false);
-                }
-                mBeingUsedDrawables.clear();
-            }
-        }, 1);
+        if (!mReleasePending) {
+            mReleasePending = true;
+            mReleaseHandler.postDelayed(mReleaseTask, 1);
+        }
     }
 }
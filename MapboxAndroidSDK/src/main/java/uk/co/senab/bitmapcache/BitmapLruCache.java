@@ -29,6 +29,7 @@ import android.util.Log;
 import com.jakewharton.disklrucache.DiskLruCache;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -115,6 +116,19 @@ public class BitmapLruCache {
     // flushed
     static final int DISK_CACHE_FLUSH_DELAY_SECS = 5;
 
+    // Streams up to this size are decoded from memory, larger ones from the disk cache
+    static final int MAX_IN_MEMORY_STREAM_SIZE = 512 * 1024;
+
+    // Contents read from the compressed memory cache are decoded from a per-thread array, which
+    // is only needed until the decode returns
+    private static final ThreadLocal<CompressedMemoryCache.Scratch> sCompressedScratch =
+            new ThreadLocal<CompressedMemoryCache.Scratch>() {
+                @Override
+                protected CompressedMemoryCache.Scratch initialValue() {
+                    return new CompressedMemoryCache.Scratch(32 * 1024);
+                }
+            };
+
     /**
      * @throws IllegalStateException if the calling thread is the main/UI thread.
      */
@@ -137,7 +151,13 @@ public class BitmapLruCache {
         return Md5.encode(url);
     }
 
-    private File mTempDir;
+    /**
+     * The metadata of an entry is stored as a separate entry of the disk cache, so it can be
+     * updated without rewriting the image.
+     */
+    private static String transformUrlForDiskCacheMetadataKey(String url) {
+        return Md5.encode(url) + "_meta";
+    }
 
     private Resources mResources;
 
@@ -146,6 +166,11 @@ public class BitmapLruCache {
      */
     private BitmapMemoryLruCache mMemoryCache;
 
+    /**
+     * Compressed Memory Cache, between the memory and the disk caches
+     */
+    private volatile CompressedMemoryCache mCompressedCache;
+
     private RecyclePolicy mRecyclePolicy;
 
     /**
@@ -168,8 +193,11 @@ public class BitmapLruCache {
             // Make sure we have the application context
             context = context.getApplicationContext();
 
-            mTempDir = context.getCacheDir();
             mResources = context.getResources();
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+                SDK14.registerTrimMemoryCallback(context, this);
+            }
         }
     }
 
@@ -197,10 +225,16 @@ public class BitmapLruCache {
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
+            DiskLruCache.Snapshot snapshot = null;
             try {
-                return null != mDiskCache.get(transformUrlForDiskCacheKey(url));
+                snapshot = mDiskCache.get(transformUrlForDiskCacheKey(url));
+                return null != snapshot;
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                if (null != snapshot) {
+                    snapshot.close();
+                }
             }
         }
 
@@ -253,8 +287,9 @@ public class BitmapLruCache {
     /**
      * Returns the value for {@code url} in the disk cache only. You should not call this method
      * from main/UI thread. <p/> If enabled, the result of this method will be cached in the memory
-     * cache. <p /> Unless you have a specific requirement to only query the disk cache, you should
-     * call {@link #get(String)} instead.
+     * cache. <p/> If the compressed memory cache is enabled, it is checked first, and contents read
+     * from disk are kept there. <p /> Unless you have a specific requirement to only query the disk
+     * cache, you should call {@link #get(String)} instead.
      *
      * @param url        - String representing the URL of the image
      * @param decodeOpts - Options used for decoding the contents from the disk cache.
@@ -263,15 +298,27 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable getFromDiskCache(final String url,
             final BitmapFactory.Options decodeOpts) {
-        CacheableBitmapDrawable result = null;
+        CacheableBitmapDrawable result = getFromCompressedCache(url, decodeOpts);
+        if (null != result) {
+            return result;
+        }
 
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
             try {
                 final String key = transformUrlForDiskCacheKey(url);
+                InputStreamProvider provider = new SnapshotInputStreamProvider(key);
+                if (null != mCompressedCache) {
+                    // Read the contents once, and keep them for the next time
+                    final ExposedByteArrayOutputStream bytes = readFromDiskCache(key);
+                    if (null != bytes) {
+                        mCompressedCache.put(url, bytes.buffer(), bytes.size());
+                        provider = new ByteArrayInputStreamProvider(bytes.buffer(), bytes.size());
+                    }
+                }
                 // Try and decode bitmap
-                result = decodeBitmapToDrawable(new SnapshotInputStreamProvider(key), url, decodeOpts);
+                result = decodeBitmapToDrawable(provider, url, decodeOpts);
 
                 if (null != result) {
                     if (null != mMemoryCache) {
@@ -281,6 +328,9 @@ public class BitmapLruCache {
                     // If we get here, the file in the cache can't be
                     // decoded. Remove it and schedule a flush.
                     mDiskCache.remove(key);
+                    if (null != mCompressedCache) {
+                        mCompressedCache.remove(url);
+                    }
                     scheduleDiskCacheFlush();
                 }
             } catch (IOException e) {
@@ -291,6 +341,55 @@ public class BitmapLruCache {
         return result;
     }
 
+    /**
+     * Returns the value for {@code url} in the compressed memory cache only, without reading the
+     * disk cache. This method is safe to be called from the main thread, though it decodes. <p/>
+     * If enabled, the result of this method will be cached in the memory cache.
+     *
+     * @param url        - String representing the URL of the image
+     * @param decodeOpts - Options used for decoding the contents.
+     * @return Value for {@code url} from the compressed memory cache, or {@code null} if it is not
+     *         there or the compressed memory cache is not enabled.
+     */
+    public CacheableBitmapDrawable getFromCompressedCache(final String url,
+            final BitmapFactory.Options decodeOpts) {
+        final CompressedMemoryCache compressedCache = mCompressedCache;
+        if (null == compressedCache) {
+            return null;
+        }
+        final CompressedMemoryCache.Scratch scratch = sCompressedScratch.get();
+        if (!compressedCache.get(url, scratch)) {
+            return null;
+        }
+        final CacheableBitmapDrawable result = decodeBitmapToDrawable(
+                new ByteArrayInputStreamProvider(scratch.data, scratch.length), url, decodeOpts);
+        if (null != result) {
+            if (null != mMemoryCache) {
+                mMemoryCache.put(result);
+            }
+        } else {
+            compressedCache.remove(url);
+        }
+        return result;
+    }
+
+    /**
+     * @return the contents of a disk cache entry, or null if there is no such entry
+     */
+    private ExposedByteArrayOutputStream readFromDiskCache(final String key) throws IOException {
+        final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+        if (null == snapshot) {
+            return null;
+        }
+        try {
+            final ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+            IoUtils.copy(snapshot.getInputStream(0), bytes);
+            return bytes;
+        } finally {
+            snapshot.close();
+        }
+    }
+
     /**
      * Returns the value for {@code url} in the memory cache only. This method is safe to be called
      * from the main thread. <p /> You should check the result of this method before starting a
@@ -319,15 +418,177 @@ public class BitmapLruCache {
     }
 
 
-    public Bitmap getBitmapFromRemoved(final int width, final int height) {
+    /**
+     * Returns the value indexed under {@code id} with {@link #indexInMemoryCache(long,
+     * CacheableBitmapDrawable)}, from the memory cache only. No key string is needed, and values
+     * leave the index as they leave the memory cache.
+     *
+     * @param id - the id the value was indexed under
+     * @return the value, or {@code null} if it isn't indexed or isn't cached anymore
+     */
+    public CacheableBitmapDrawable getFromMemoryCache(final long id) {
+        CacheableBitmapDrawable result = null;
+
         if (null != mMemoryCache) {
             synchronized (mMemoryCache) {
-                return mMemoryCache.getBitmapFromRemoved(width, height);
+                result = mMemoryCache.getById(id);
+
+                // If we get a value, but it has a invalid bitmap, remove it
+                if (null != result && !result.isBitmapValid()) {
+                    mMemoryCache.remove(result.getUrl());
+                    result = null;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Indexes a value of the memory cache under an id, to be found with {@link
+     * #getFromMemoryCache(long)}. Does nothing if the value isn't in the memory cache.
+     */
+    public void indexInMemoryCache(final long id, final CacheableBitmapDrawable drawable) {
+        if (null != mMemoryCache && null != drawable) {
+            synchronized (mMemoryCache) {
+                mMemoryCache.index(id, drawable);
             }
         }
+    }
+
+    public Bitmap getBitmapFromRemoved(final int width, final int height) {
+        return getBitmapFromRemoved(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Takes a bitmap evicted from the memory cache out of the pool, for reuse. The bitmap is
+     * cleared. This method is safe to be called from the main thread.
+     *
+     * @return a bitmap of the given size and config, or {@code null} if the pool has none
+     */
+    public Bitmap getBitmapFromRemoved(final int width, final int height, final Bitmap.Config config) {
+        if (null != mMemoryCache) {
+            return mMemoryCache.getBitmapFromRemoved(width, height, config);
+        }
         return null;
     }
 
+    /**
+     * Gives a bitmap that nothing references anymore to the pool of evicted bitmaps, so a later
+     * decode can reuse it, e.g. a decoded layer once it is drawn into a composite tile. The bitmap
+     * must not be used after this. A bitmap the pool can't take is recycled.
+     */
+    public void releaseBitmap(final Bitmap bitmap) {
+        if (null == bitmap || bitmap.isRecycled()) {
+            return;
+        }
+        final BitmapPool pool = getBitmapPool();
+        if (null == pool || !bitmap.isMutable()
+                || !pool.put(createCacheableBitmapDrawable(bitmap, null, CacheableBitmapDrawable.SOURCE_UNKNOWN))) {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * @return the number of times a bitmap was found in the pool of evicted bitmaps
+     */
+    public int getBitmapPoolHitCount() {
+        final BitmapPool pool = getBitmapPool();
+        return null != pool ? pool.hitCount() : 0;
+    }
+
+    /**
+     * @return the number of times no bitmap of the requested size was found in the pool
+     */
+    public int getBitmapPoolMissCount() {
+        final BitmapPool pool = getBitmapPool();
+        return null != pool ? pool.missCount() : 0;
+    }
+
+    /**
+     * @return the number of bitmaps dropped from the pool to stay within its size
+     */
+    public int getBitmapPoolEvictionCount() {
+        final BitmapPool pool = getBitmapPool();
+        return null != pool ? pool.evictionCount() : 0;
+    }
+
+    /**
+     * @return the size, in bytes, of the bitmaps currently in the pool
+     */
+    public int getBitmapPoolSize() {
+        final BitmapPool pool = getBitmapPool();
+        return null != pool ? pool.size() : 0;
+    }
+
+    private BitmapPool getBitmapPool() {
+        return null != mMemoryCache ? mMemoryCache.getBitmapPool() : null;
+    }
+
+    /**
+     * @return the maximum size, in bytes, of the memory cache, or 0 if it is not enabled
+     */
+    public int getMemoryCacheMaxSize() {
+        return null != mMemoryCache ? mMemoryCache.maxSize() : 0;
+    }
+
+    /**
+     * @return whether the compressed memory cache is enabled.
+     */
+    public boolean isCompressedCacheEnabled() {
+        final CompressedMemoryCache compressedCache = mCompressedCache;
+        return null != compressedCache && compressedCache.maxSize() > 0;
+    }
+
+    /**
+     * Resizes the compressed memory cache, dropping its contents, or creates it. The other caches
+     * are kept as they are.
+     *
+     * @param maxSize the capacity in bytes, 0 to disable the compressed memory cache
+     */
+    public synchronized void setCompressedCacheMaxSize(int maxSize) {
+        if (null != mCompressedCache) {
+            mCompressedCache.setMaxSize(Math.max(0, maxSize));
+        } else if (maxSize > 0) {
+            mCompressedCache = new CompressedMemoryCache(maxSize);
+        }
+    }
+
+    /**
+     * @return the number of times an image was decoded from the compressed memory cache
+     */
+    public int getCompressedCacheHitCount() {
+        return null != mCompressedCache ? mCompressedCache.hitCount() : 0;
+    }
+
+    /**
+     * @return the number of times an image wasn't found in the compressed memory cache
+     */
+    public int getCompressedCacheMissCount() {
+        return null != mCompressedCache ? mCompressedCache.missCount() : 0;
+    }
+
+    /**
+     * @return the number of images dropped from the compressed memory cache to make room
+     */
+    public int getCompressedCacheEvictionCount() {
+        return null != mCompressedCache ? mCompressedCache.evictionCount() : 0;
+    }
+
+    /**
+     * @return the size, in bytes, of the contents of the compressed memory cache
+     */
+    public int getCompressedCacheSize() {
+        return null != mCompressedCache ? mCompressedCache.size() : 0;
+    }
+
+    /**
+     * @return the capacity, in bytes, of the compressed memory cache
+     */
+    public int getCompressedCacheMaxSize() {
+        return null != mCompressedCache ? mCompressedCache.maxSize() : 0;
+    }
+
     /**
      * @return true if the Disk Cache is enabled.
      */
@@ -452,14 +713,60 @@ public class BitmapLruCache {
 
         return putInDiskCache(url, d, compressFormat, compressQuality);
     }
+
+    /**
+     * Caches the encoded contents of an image for {@code url} in the disk cache, exactly as they
+     * are given. This should be preferred to the Bitmap versions when the original contents are
+     * available, as it saves re-compressing the bitmap and keeps the original format, e.g. JPEG.
+     * They are only decoded when read. <p/> You should not call this method from main/UI thread.
+     *
+     * @param url    - String representing the URL of the image
+     * @param data   - Encoded contents of the image
+     * @param length - Number of bytes of {@code data} to cache
+     * @return true if the contents were cached
+     */
+    public boolean putInDiskCache(final String url, final byte[] data, final int length) {
+        if (null != mCompressedCache) {
+            mCompressedCache.put(url, data, length);
+        }
+        if (null == mDiskCache) {
+            return false;
+        }
+        checkNotOnMainThread();
+
+        final String key = transformUrlForDiskCacheKey(url);
+        final ReentrantLock lock = getLockForDiskCacheEdit(key);
+        lock.lock();
+
+        OutputStream os = null;
+        boolean written = false;
+
+        try {
+            DiskLruCache.Editor editor = mDiskCache.edit(key);
+            if (null != editor) {
+                os = editor.newOutputStream(0);
+                os.write(data, 0, length);
+                os.flush();
+                editor.commit();
+                written = true;
+            }
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error while writing to disk cache", e);
+        } finally {
+            IoUtils.closeStream(os);
+            lock.unlock();
+            scheduleDiskCacheFlush();
+        }
+        return written;
+    }
     /**
      * Caches resulting bitmap from {@code inputStream} for {@code url} into all enabled caches.
      * This version of the method should be preferred as it allows the original image contents to be
      * cached, rather than a re-compressed version. <p /> The contents of the InputStream will be
-     * copied to a temporary file, then the file will be decoded into a Bitmap. Providing the decode
-     * worked: <ul> <li>If the memory cache is enabled, the decoded Bitmap will be cached to
-     * memory.</li> <li>If the disk cache is enabled, the contents of the original stream will be
-     * cached to disk.</li> </ul> <p/> You should not call this method from the main/UI thread.
+     * read once, then decoded into a Bitmap. Providing the decode worked: <ul> <li>If the memory
+     * cache is enabled, the decoded Bitmap will be cached to memory.</li> <li>If the disk cache is
+     * enabled, the contents of the original stream will be cached to disk.</li> </ul> <p/> You
+     * should not call this method from the main/UI thread.
      *
      * @param url         - String representing the URL of the image
      * @param inputStream - InputStream opened from {@code url}
@@ -480,8 +787,8 @@ public class BitmapLruCache {
      * <ul>
      * <li>If the memory cache is enabled, the decoded Bitmap will be cached to
      * memory.</li>
-     * <li>If the disk cache is enabled, a temporay version of the contents is
-     * copied to disk before decoding and then cached to disk.</li>
+     * <li>If the disk cache is enabled, the contents of the array are cached
+     * to disk.</li>
      * </ul>
      * <p/>
      * You should not call this method from the main/UI thread.
@@ -494,22 +801,21 @@ public class BitmapLruCache {
      */
     public CacheableBitmapDrawable put(final String url, final byte[] data,
             final BitmapFactory.Options decodeOpts) {
+        if (null == data) return null;
+        return put(url, data, data.length, decodeOpts);
+    }
+
+    private CacheableBitmapDrawable put(final String url, final byte[] data, final int length,
+            final BitmapFactory.Options decodeOpts) {
         checkNotOnMainThread();
 
-        if (null == mDiskCache) {
-            // shortcut to avoid temporary storage on disk
-            CacheableBitmapDrawable d = decodeBitmapToDrawable(new ByteArrayInputStreamProvider(data), url,
-                    decodeOpts);
-            if (null != d) {
-                if (null != mMemoryCache) {
-                    d.setCached(true);
-                    mMemoryCache.put(d.getUrl(), d);
-                }
-                return d;
-            }
+        CacheableBitmapDrawable d = decodeBitmapToDrawable(
+                new ByteArrayInputStreamProvider(data, length), url, decodeOpts);
+        if (null != d) {
+            putDecodedInMemoryCache(d);
+            putInDiskCache(url, data, length);
         }
-
-        return put(url, new ByteArrayInputStream(data), decodeOpts);
+        return d;
     }
 
     /**
@@ -518,9 +824,12 @@ public class BitmapLruCache {
      * allows the original image contents to be cached, rather than a
      * re-compressed version.
      * <p />
-     * The contents of the InputStream will be copied to a temporary file, then
-     * the file will be decoded into a Bitmap, using the optional
-     * <code>decodeOpts</code>. Providing the decode worked:
+     * If the disk cache is enabled, the contents of the InputStream are
+     * written to it as they are read, and also kept in memory unless they are
+     * larger than {@link #MAX_IN_MEMORY_STREAM_SIZE}. They are then decoded into
+     * a Bitmap, using the optional <code>decodeOpts</code>, from memory or from
+     * the disk cache. If the decode fails, the disk cache entry is removed.
+     * Providing the decode worked:
      * <ul>
      * <li>If the memory cache is enabled, the decoded Bitmap will be cached to
      * memory.</li>
@@ -535,63 +844,118 @@ public class BitmapLruCache {
      * @param decodeOpts  - Options used for decoding. This does not affect what is cached in the
      *                    disk cache (if enabled).
      * @return CacheableBitmapDrawable which can be used to display the bitmap.
-     */ //todo
+     */
     public CacheableBitmapDrawable put(final String url, final InputStream inputStream,
             final BitmapFactory.Options decodeOpts) {
         if (inputStream == null) return null;
         checkNotOnMainThread();
 
-        // First we need to save the stream contents to a temporary file, so it
-        // can be read multiple times
-        File tmpFile = null;
-        try {
-            tmpFile = File.createTempFile("bitmapcache_", null, mTempDir);
-
-            // Pipe InputStream to file
-            IoUtils.copy(inputStream, tmpFile);
-        } catch (IOException e) {
-            Log.e(Constants.LOG_TAG, "Error writing to saving stream to temp file: " + url, e);
-        }
-
-        CacheableBitmapDrawable d = null;
-
-        if (null != tmpFile) {
-            // Try and decode File
-            d = decodeBitmapToDrawable(new FileInputStreamProvider(tmpFile), url, decodeOpts);
+        if (null != mDiskCache) {
+            final String key = transformUrlForDiskCacheKey(url);
+            final ReentrantLock lock = getLockForDiskCacheEdit(key);
+            lock.lock();
 
-            if (d != null) {
-                if (null != mMemoryCache) {
-                    d.setCached(true);
-                    synchronized (mMemoryCache) {
-                        mMemoryCache.put(d.getUrl(), d);
+            DiskLruCache.Editor editor = null;
+            OutputStream os = null;
+            ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+            boolean read = false;
+            try {
+                editor = mDiskCache.edit(key);
+                if (null != editor) {
+                    read = true;
+                    // Read the stream once, into both the disk cache and memory
+                    os = editor.newOutputStream(0);
+                    byte[] buffer = new byte[1024 * 4];
+                    int n;
+                    while (-1 != (n = inputStream.read(buffer))) {
+                        os.write(buffer, 0, n);
+                        if (null != bytes) {
+                            if (bytes.size() + n > MAX_IN_MEMORY_STREAM_SIZE) {
+                                bytes = null;
+                            } else {
+                                bytes.write(buffer, 0, n);
+                            }
+                        }
                     }
+                    os.flush();
+                    IoUtils.closeStream(os);
+                    os = null;
+                    editor.commit();
+                    editor = null;
                 }
-
-                if (null != mDiskCache) {
-                    final String key = transformUrlForDiskCacheKey(url);
-                    final ReentrantLock lock = getLockForDiskCacheEdit(url);
-                    lock.lock();
-
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
+                return null;
+            } finally {
+                IoUtils.closeStream(os);
+                if (read) {
+                    IoUtils.closeStream(inputStream);
+                }
+                if (null != editor) {
                     try {
-                        DiskLruCache.Editor editor = mDiskCache.edit(key);
-                        IoUtils.copy(tmpFile, editor.newOutputStream(0));
-                        editor.commit();
+                        editor.abort();
                     } catch (IOException e) {
-                        Log.e(Constants.LOG_TAG, "Error writing to disk cache. URL: " + url, e);
-                    } finally {
-                        lock.unlock();
-                        scheduleDiskCacheFlush();
+                        Log.e(Constants.LOG_TAG, "Error aborting disk cache edit. URL: " + url, e);
                     }
                 }
+                lock.unlock();
+                scheduleDiskCacheFlush();
+            }
+
+            if (!read) {
+                // The entry is being edited elsewhere, only cache to memory
+                return putInMemoryCacheOnly(url, inputStream, decodeOpts);
+            }
+
+            CacheableBitmapDrawable d = decodeBitmapToDrawable(null != bytes
+                    ? new ByteArrayInputStreamProvider(bytes.buffer(), bytes.size())
+                    : new SnapshotInputStreamProvider(key), url, decodeOpts);
+            if (null != d) {
+                putDecodedInMemoryCache(d);
+                if (null != bytes && null != mCompressedCache) {
+                    mCompressedCache.put(url, bytes.buffer(), bytes.size());
+                }
+            } else {
+                // Don't keep contents that can't be decoded
+                try {
+                    mDiskCache.remove(key);
+                } catch (IOException e) {
+                    Log.e(Constants.LOG_TAG, "Error removing from disk cache. URL: " + url, e);
+                }
             }
+            return d;
+        }
 
-            // Finally, delete the temporary file
-            tmpFile.delete();
+        return putInMemoryCacheOnly(url, inputStream, decodeOpts);
+    }
+
+    private CacheableBitmapDrawable putInMemoryCacheOnly(final String url,
+            final InputStream inputStream, final BitmapFactory.Options decodeOpts) {
+        final ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream();
+        try {
+            IoUtils.copy(inputStream, bytes);
+        } catch (IOException e) {
+            Log.e(Constants.LOG_TAG, "Error reading stream: " + url, e);
+            return null;
         }
 
+        CacheableBitmapDrawable d = decodeBitmapToDrawable(
+                new ByteArrayInputStreamProvider(bytes.buffer(), bytes.size()), url, decodeOpts);
+        if (null != d) {
+            putDecodedInMemoryCache(d);
+        }
         return d;
     }
 
+    private void putDecodedInMemoryCache(final CacheableBitmapDrawable d) {
+        if (null != mMemoryCache) {
+            d.setCached(true);
+            synchronized (mMemoryCache) {
+                mMemoryCache.put(d.getUrl(), d);
+            }
+        }
+    }
+
     /**
      * Removes the entry for {@code url} from all enabled caches, if it exists. <p/> If you have the
      * disk cache enabled, you should not call this method from main/UI thread.
@@ -603,11 +967,16 @@ public class BitmapLruCache {
             }
         }
 
+        if (null != mCompressedCache) {
+            mCompressedCache.remove(url);
+        }
+
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
             try {
                 mDiskCache.remove(transformUrlForDiskCacheKey(url));
+                mDiskCache.remove(transformUrlForDiskCacheMetadataKey(url));
                 scheduleDiskCacheFlush();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -630,11 +999,15 @@ public class BitmapLruCache {
      * Removes the entry for {@code url} from disk cache, if it exists. <p/> You should not call this method from main/UI thread.
      */
     public void removeFromDiskCache(String url) {
+        if (null != mCompressedCache) {
+            mCompressedCache.remove(url);
+        }
         if (null != mDiskCache) {
             checkNotOnMainThread();
 
             try {
                 mDiskCache.remove(transformUrlForDiskCacheKey(url));
+                mDiskCache.remove(transformUrlForDiskCacheMetadataKey(url));
                 scheduleDiskCacheFlush();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -642,6 +1015,88 @@ public class BitmapLruCache {
         }
     }
 
+    /**
+     * Stores a string of metadata for {@code url} in the disk cache, e.g. the HTTP validators of
+     * the image, replacing any previous metadata. The image itself isn't touched. <p/> You should
+     * not call this method from main/UI thread.
+     *
+     * @param url      - String representing the URL of the image
+     * @param metadata - the metadata, or null to remove it
+     */
+    public void putMetadataInDiskCache(final String url, final String metadata) {
+        if (null != mDiskCache) {
+            checkNotOnMainThread();
+
+            final String key = transformUrlForDiskCacheMetadataKey(url);
+            final ReentrantLock lock = getLockForDiskCacheEdit(key);
+            lock.lock();
+
+            if (null != mCompressedCache) {
+                mCompressedCache.setMetadata(url, metadata);
+            }
+            try {
+                if (null == metadata) {
+                    mDiskCache.remove(key);
+                } else {
+                    DiskLruCache.Editor editor = mDiskCache.edit(key);
+                    if (null != editor) {
+                        editor.set(0, metadata);
+                        editor.commit();
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error writing metadata to disk cache. URL: " + url, e);
+            } finally {
+                lock.unlock();
+                scheduleDiskCacheFlush();
+            }
+        }
+    }
+
+    /**
+     * Returns the metadata of {@code url} kept in the compressed memory cache, without reading the
+     * disk. It is known once it has been read from or written to the disk cache while the
+     * contents of {@code url} were in the compressed memory cache.
+     *
+     * @param url - String representing the URL of the image
+     * @return the metadata, "" if there is none, or {@code null} if it isn't known.
+     */
+    public String getMetadataFromCompressedCache(final String url) {
+        final CompressedMemoryCache compressedCache = mCompressedCache;
+        return null != compressedCache ? compressedCache.getMetadata(url) : null;
+    }
+
+    /**
+     * Returns the metadata stored for {@code url} with {@link #putMetadataInDiskCache(String,
+     * String)}. You should not call this method from main/UI thread.
+     *
+     * @param url - String representing the URL of the image
+     * @return the metadata, or {@code null} if there is none or the disk cache is not enabled.
+     */
+    public String getMetadataFromDiskCache(final String url) {
+        if (null != mDiskCache) {
+            checkNotOnMainThread();
+
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = mDiskCache.get(transformUrlForDiskCacheMetadataKey(url));
+                final String metadata = null != snapshot ? snapshot.getString(0) : null;
+                if (null != mCompressedCache) {
+                    // Known from now on, for as long as the contents stay compressed in memory
+                    mCompressedCache.setMetadata(url, metadata);
+                }
+                return metadata;
+            } catch (IOException e) {
+                Log.e(Constants.LOG_TAG, "Error reading metadata from disk cache. URL: " + url, e);
+            } finally {
+                if (null != snapshot) {
+                    snapshot.close();
+                }
+            }
+        }
+        return null;
+    }
+
     public void resizeMemoryForTiles(int numberOfTiles) {
         mMemoryCache.resizeMemoryForTiles(numberOfTiles);
     }
@@ -659,6 +1114,19 @@ public class BitmapLruCache {
         }
     }
 
+    /**
+     * Releases memory according to the level given to {@link
+     * android.content.ComponentCallbacks2#onTrimMemory(int) onTrimMemory()}. The cache is
+     * registered for these callbacks automatically from ICS on.
+     */
+    public void trimMemory(int level) {
+        if (null != mMemoryCache) {
+            synchronized (mMemoryCache) {
+                mMemoryCache.trimMemory(level);
+            }
+        }
+    }
+
     public void purgeMemoryCache() {
         if (null != mMemoryCache) {
             synchronized (mMemoryCache) {
@@ -668,6 +1136,9 @@ public class BitmapLruCache {
     }
 
     public void purgeDiskCache() {
+        if (null != mCompressedCache) {
+            mCompressedCache.clear();
+        }
         if (null != mDiskCache) {
             checkNotOnMainThread();
             try {
@@ -693,6 +1164,10 @@ public class BitmapLruCache {
         mRecyclePolicy = memoryCache.getRecyclePolicy();
     }
 
+    void setCompressedCache(CompressedMemoryCache compressedCache) {
+        mCompressedCache = compressedCache;
+    }
+
     private ReentrantLock getLockForDiskCacheEdit(String url) {
         synchronized (mDiskCacheEditLocks) {
             ReentrantLock lock = mDiskCacheEditLocks.get(url);
@@ -762,8 +1237,8 @@ public class BitmapLruCache {
             is = ip.getInputStream();
             // Decode stream
             if (is == null && ip instanceof ByteArrayInputStreamProvider) {
-                byte[] data = ((ByteArrayInputStreamProvider) ip).array;
-                bm = BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+                ByteArrayInputStreamProvider bip = (ByteArrayInputStreamProvider) ip;
+                bm = BitmapFactory.decodeByteArray(bip.array, 0, bip.length, opts);
             } else {
                 bm = BitmapFactory.decodeStream(is, null, opts);
             }
@@ -782,8 +1257,8 @@ public class BitmapLruCache {
         // Decode the bounds so we know what size Bitmap to look for
         opts.inJustDecodeBounds = true;
         if (is == null && ip instanceof ByteArrayInputStreamProvider) {
-            byte[] data = ((ByteArrayInputStreamProvider) ip).array;
-            BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            ByteArrayInputStreamProvider bip = (ByteArrayInputStreamProvider) ip;
+            BitmapFactory.decodeByteArray(bip.array, 0, bip.length, opts);
         } else {
             BitmapFactory.decodeStream(is, null, opts);
         }
@@ -796,7 +1271,8 @@ public class BitmapLruCache {
 
         // Try and find Bitmap to use for inBitmap
         synchronized (mMemoryCache) {
-            Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight);
+            Bitmap reusableBm = mMemoryCache.getBitmapFromRemoved(opts.outWidth, opts.outHeight,
+                    null != opts.inPreferredConfig ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888);
             if (reusableBm != null) {
                 if (Constants.DEBUG) {
                     Log.i(Constants.LOG_TAG, "Using inBitmap");
@@ -859,6 +1335,8 @@ public class BitmapLruCache {
 
         private int mMemoryCacheMaxSize;
 
+        private int mCompressedCacheMaxSize;
+
         private RecyclePolicy mRecyclePolicy;
 
         /**
@@ -895,6 +1373,13 @@ public class BitmapLruCache {
                 cache.setMemoryCache(new BitmapMemoryLruCache(mMemoryCacheMaxSize, mRecyclePolicy));
             }
 
+            if (mCompressedCacheMaxSize > 0) {
+                if (Constants.DEBUG) {
+                    Log.d("BitmapLruCache.Builder", "Creating Compressed Memory Cache");
+                }
+                cache.setCompressedCache(new CompressedMemoryCache(mCompressedCacheMaxSize));
+            }
+
             if (isValidOptionsForDiskCache()) {
                 new AsyncTask<Void, Void, DiskLruCache>() {
 
@@ -971,6 +1456,18 @@ public class BitmapLruCache {
             return this;
         }
 
+        /**
+         * Set the number of bytes of the Compressed Memory Cache, which keeps the encoded contents
+         * of recently seen images outside of the Java heap, so they can be decoded again without
+         * reading the Disk Cache. Defaults to 0, which disables it.
+         *
+         * @return This Builder object to allow for chaining of calls to set methods.
+         */
+        public Builder setCompressedCacheMaxSize(int size) {
+            mCompressedCacheMaxSize = size;
+            return this;
+        }
+
         /**
          * Sets the Memory Cache maximum size to be the default value of {@value
          * #DEFAULT_MEMORY_CACHE_HEAP_PERCENTAGE}% of heap size.
@@ -1079,11 +1576,30 @@ public class BitmapLruCache {
         }
     }
 
+    /**
+     * Gives access to the contents without copying them.
+     */
+    static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
     public static class ByteArrayInputStreamProvider implements InputStreamProvider {
         final byte[] array;
+        final int length;
 
         public ByteArrayInputStreamProvider(byte[] array) {
+            this(array, array.length);
+        }
+
+        /**
+         * @param array  - a buffer holding the encoded image
+         * @param length - the number of bytes of the image at the start of the buffer
+         */
+        public ByteArrayInputStreamProvider(byte[] array, int length) {
             this.array = array;
+            this.length = length;
         }
 
         /**
@@ -15,32 +15,36 @@
  ******************************************************************************/
 package uk.co.senab.bitmapcache;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
-import android.graphics.Color;
+import android.support.v4.util.LongSparseArray;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Set;
 
 final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawable> {
 
     public static final String TAG = "BitmapMemoryLruCache";
-    private final Set<SoftReference<CacheableBitmapDrawable>> mRemovedEntries;
+
+    // The pool of evicted bitmaps may hold up to a third of the size of the cache
+    private static final int BITMAP_POOL_FRACTION = 3;
+
+    private final BitmapPool mBitmapPool;
     private final BitmapLruCache.RecyclePolicy mRecyclePolicy;
     private int largestValueSeenBytes;
 
+    // The cached values by an id given by the caller, so they can be found without a key string.
+    // Only holds values that are in the cache: they leave the index in entryRemoved.
+    private final LongSparseArray<CacheableBitmapDrawable> mIdIndex =
+            new LongSparseArray<CacheableBitmapDrawable>();
+
     BitmapMemoryLruCache(int maxSize, BitmapLruCache.RecyclePolicy policy) {
         super(maxSize);
 
         mRecyclePolicy = policy;
-        mRemovedEntries = policy.canInBitmap()
-                ? Collections.synchronizedSet(new HashSet<SoftReference<CacheableBitmapDrawable>>())
-                : null;
+        mBitmapPool = policy.canInBitmap() ? new BitmapPool(maxSize / BITMAP_POOL_FRACTION) : null;
         largestValueSeenBytes = 0;
     }
 
@@ -54,10 +58,53 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
         return null;
     }
 
+    /**
+     * @return the value indexed under the id, also marked as recently used, or null
+     */
+    synchronized CacheableBitmapDrawable getById(long id) {
+        final CacheableBitmapDrawable indexed = mIdIndex.get(id);
+        return null != indexed ? get(indexed.getUrl()) : null;
+    }
+
+    /**
+     * Indexes a value under an id, if it is in the cache.
+     */
+    synchronized void index(long id, CacheableBitmapDrawable value) {
+        if (null == value || get(value.getUrl()) != value) {
+            return;
+        }
+        final CacheableBitmapDrawable previous = mIdIndex.get(id);
+        if (null != previous && previous != value) {
+            previous.mIndexed = false;
+        }
+        if (value.mIndexed && value.mIndexId != id) {
+            mIdIndex.remove(value.mIndexId);
+        }
+        value.mIndexed = true;
+        value.mIndexId = id;
+        mIdIndex.put(id, value);
+    }
+
+    private synchronized void unindex(CacheableBitmapDrawable value) {
+        if (value.mIndexed) {
+            if (mIdIndex.get(value.mIndexId) == value) {
+                mIdIndex.remove(value.mIndexId);
+            }
+            value.mIndexed = false;
+        }
+    }
+
     BitmapLruCache.RecyclePolicy getRecyclePolicy() {
         return mRecyclePolicy;
     }
 
+    /**
+     * @return the pool of evicted bitmaps, or null if bitmaps can't be reused
+     */
+    BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     public void resizeMemoryForTiles(int numberOfTiles) {
         if (largestValueSeenBytes > 0 && numberOfTiles > 0) {
             float factor = numberOfTiles * 1.05f; //increase by 5%
@@ -65,6 +112,9 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
             if (newSize > maxSize()) {
                 Log.d(TAG, "resizing for " + numberOfTiles + " tiles - to " + newSize / (1024 * 1024) + "MB");
                 resize(newSize);
+                if (mBitmapPool != null) {
+                    mBitmapPool.resize(newSize / BITMAP_POOL_FRACTION);
+                }
             }
         }
     }
@@ -79,43 +129,24 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
             CacheableBitmapDrawable newValue) {
         // Notify the wrapper that it's no longer being cached
         oldValue.setCached(false);
+        if (oldValue != newValue) {
+            unindex(oldValue);
+        }
 
-        if (mRemovedEntries != null && canUseForInBitmap(oldValue)) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.add(new SoftReference<CacheableBitmapDrawable>(oldValue));
-            }
+        if (mBitmapPool != null && canUseForInBitmap(oldValue)) {
+            mBitmapPool.put(oldValue);
         }
     }
 
     public Bitmap getBitmapFromRemoved(final int width, final int height) {
-        if (mRemovedEntries == null) {
-            return null;
-        }
+        return getBitmapFromRemoved(width, height, Bitmap.Config.ARGB_8888);
+    }
 
-        Bitmap result = null;
-
-        synchronized (mRemovedEntries) {
-            final Iterator<SoftReference<CacheableBitmapDrawable>> it = mRemovedEntries.iterator();
-
-            while (it.hasNext()) {
-                CacheableBitmapDrawable value = it.next().get();
-
-                if (canUseForInBitmap(value)) {
-                    if (canUseForInBitmapForSize(value, width, height) && !value.isBeingDisplayed() && !value.isReferencedByCache()) {
-                        result = value.getBitmap();
-                        SDK12.setHasAlpha(result, true);
-                        result.eraseColor(Color.TRANSPARENT);
-                        value.setReused();
-                        it.remove();
-                        break;
-                    }
-                } else {
-                    it.remove();
-                }
-            }
+    public Bitmap getBitmapFromRemoved(final int width, final int height, final Bitmap.Config config) {
+        if (mBitmapPool == null) {
+            return null;
         }
-
-        return result;
+        return mBitmapPool.get(width, height, config);
     }
 
     private static boolean canUseForInBitmap(
@@ -125,13 +156,6 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
                 candidate.isBitmapMutable();
     }
 
-    private static boolean canUseForInBitmapForSize(
-            CacheableBitmapDrawable candidate, int width, int height) {
-        return
-                candidate.getIntrinsicWidth() == width &&
-                candidate.getIntrinsicHeight() == height;
-    }
-
     void trimMemory() {
         final Set<Entry<String, CacheableBitmapDrawable>> values = snapshot().entrySet();
 
@@ -141,9 +165,24 @@ final class BitmapMemoryLruCache extends LruCache<String, CacheableBitmapDrawabl
                 remove(entry.getKey());
             }
         }
-        if (mRemovedEntries != null) {
-            synchronized (mRemovedEntries) {
-                mRemovedEntries.clear();
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+        }
+    }
+
+    /**
+     * Releases memory according to a level given to {@link ComponentCallbacks2#onTrimMemory(int)}:
+     * the pool is trimmed first, and the cache itself only once the app is in the background.
+     */
+    void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimMemory();
+        } else if (mBitmapPool != null) {
+            // RUNNING_CRITICAL and BACKGROUND
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                mBitmapPool.clear();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                mBitmapPool.trimToSize(mBitmapPool.maxSize() / 2);
             }
         }
     }
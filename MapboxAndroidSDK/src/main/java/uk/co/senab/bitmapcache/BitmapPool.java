@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.support.v4.util.LongSparseArray;
+
+/**
+ * Pool of the bitmaps evicted from the memory cache, kept for reuse with inBitmap. Bitmaps are
+ * bucketed by width, height and config, so finding one of the right size doesn't scan the pool,
+ * and the pool holds at most {@code maxSize} bytes: the least recently released bitmaps are
+ * dropped first.
+ * <p/>
+ * A bitmap may still be on screen when its drawable leaves the memory cache, so it is only handed
+ * out once its drawable is neither displayed nor cached anymore.
+ */
+final class BitmapPool {
+
+    private static final class Entry {
+        final CacheableBitmapDrawable drawable;
+        final long key;
+        final int size;
+
+        // Bitmaps of the same bucket, most recently released first
+        Entry bucketNext;
+        Entry bucketPrev;
+
+        // All the bitmaps, least recently released first
+        Entry lruNext;
+        Entry lruPrev;
+
+        Entry(CacheableBitmapDrawable drawable, long key, int size) {
+            this.drawable = drawable;
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    // Most recently released entry of each bucket, keyed without boxing
+    private final LongSparseArray<Entry> mBuckets = new LongSparseArray<Entry>();
+    private Entry mLruHead;
+    private Entry mLruTail;
+
+    private int mMaxSize;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) (height & 0xFFFFFF) << 8)
+                | (config != null ? config.ordinal() + 1 : 0);
+    }
+
+    /**
+     * Adds the bitmap of a drawable that has left the memory cache.
+     *
+     * @return true if the bitmap was pooled
+     */
+    synchronized boolean put(CacheableBitmapDrawable drawable) {
+        final Bitmap bitmap = drawable.getBitmap();
+        final int size = drawable.getMemorySize();
+        if (null == bitmap || size > mMaxSize) {
+            return false;
+        }
+
+        final Entry entry = new Entry(drawable,
+                key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), size);
+        final Entry head = mBuckets.get(entry.key);
+        mBuckets.put(entry.key, entry);
+        if (null != head) {
+            entry.bucketNext = head;
+            head.bucketPrev = entry;
+        }
+
+        if (null == mLruTail) {
+            mLruHead = entry;
+        } else {
+            mLruTail.lruNext = entry;
+            entry.lruPrev = mLruTail;
+        }
+        mLruTail = entry;
+
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    /**
+     * Takes a bitmap of the given size and config out of the pool. The bitmap is cleared.
+     *
+     * @return the bitmap, or null if the pool has none that can be reused
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Entry entry = mBuckets.get(key(width, height, config));
+        while (null != entry) {
+            final Entry next = entry.bucketNext;
+            final CacheableBitmapDrawable drawable = entry.drawable;
+            if (!drawable.isBitmapValid() || !drawable.isBitmapMutable()) {
+                // Recycled since, it will never be usable
+                remove(entry);
+            } else if (!drawable.isBeingDisplayed() && !drawable.isReferencedByCache()) {
+                remove(entry);
+                mHitCount++;
+
+                final Bitmap result = drawable.getBitmap();
+                SDK12.setHasAlpha(result, true);
+                result.eraseColor(Color.TRANSPARENT);
+                drawable.setReused();
+                return result;
+            }
+            entry = next;
+        }
+        mMissCount++;
+        return null;
+    }
+
+    private void remove(Entry entry) {
+        // Unlink from the bucket
+        if (null != entry.bucketPrev) {
+            entry.bucketPrev.bucketNext = entry.bucketNext;
+        } else if (null != entry.bucketNext) {
+            mBuckets.put(entry.key, entry.bucketNext);
+        } else {
+            mBuckets.remove(entry.key);
+        }
+        if (null != entry.bucketNext) {
+            entry.bucketNext.bucketPrev = entry.bucketPrev;
+        }
+
+        // Unlink from the LRU list
+        if (null != entry.lruPrev) {
+            entry.lruPrev.lruNext = entry.lruNext;
+        } else {
+            mLruHead = entry.lruNext;
+        }
+        if (null != entry.lruNext) {
+            entry.lruNext.lruPrev = entry.lruPrev;
+        } else {
+            mLruTail = entry.lruPrev;
+        }
+
+        mSize -= entry.size;
+    }
+
+    /**
+     * Drops the least recently released bitmaps until the pool holds at most {@code maxSize}
+     * bytes. The bitmaps are left to the garbage collector, their drawables may still be
+     * displayed.
+     */
+    synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize && null != mLruHead) {
+            remove(mLruHead);
+            mEvictionCount++;
+        }
+    }
+
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    synchronized void resize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    synchronized int missCount() {
+        return mMissCount;
+    }
+
+    synchronized int putCount() {
+        return mPutCount;
+    }
+
+    synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,puts=%d,evictions=%d]",
+                mSize, mMaxSize, mHitCount, mMissCount, mPutCount, mEvictionCount);
+    }
+}
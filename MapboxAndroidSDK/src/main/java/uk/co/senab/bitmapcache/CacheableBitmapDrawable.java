@@ -61,6 +61,10 @@ public class CacheableBitmapDrawable extends BitmapDrawable {
 
     private boolean mReused;
 
+    // The id the memory cache indexes the wrapper under, guarded by the memory cache
+    boolean mIndexed;
+    long mIndexId;
+
     public CacheableBitmapDrawable(String url, Resources resources, Bitmap bitmap,
             BitmapLruCache.RecyclePolicy recyclePolicy, int source) {
         super(resources, bitmap);
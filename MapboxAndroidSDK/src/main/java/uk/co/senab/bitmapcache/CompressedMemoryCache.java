@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the encoded contents of recently seen images in a direct {@link ByteBuffer}, outside of
+ * the Java heap, so an image that has left the memory cache can be decoded again without reading
+ * the disk cache.
+ * <p/>
+ * The buffer is written as a ring: contents are appended after the last ones, and when the end of
+ * the buffer is reached writing starts over from its beginning, evicting the oldest contents in
+ * the way. Nothing is ever compacted or copied.
+ * <p/>
+ * Each entry can also keep the metadata stored with the image in the disk cache, so reading it
+ * back doesn't need the disk either.
+ */
+final class CompressedMemoryCache {
+
+    /**
+     * A reusable array the contents of an entry are copied into, grown as needed.
+     */
+    static final class Scratch {
+        byte[] data;
+        int length;
+
+        Scratch(int initialSize) {
+            data = new byte[initialSize];
+        }
+    }
+
+    private static final class Slot {
+        final int offset;
+        final int length;
+        // Null until the metadata of the entry is known, "" if it has none
+        String metadata;
+
+        Slot(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private ByteBuffer mArena;
+
+    // In the order the contents were written, so the oldest contents are always first
+    private final LinkedHashMap<String, Slot> mSlots = new LinkedHashMap<String, Slot>();
+    private int mWritePosition;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    CompressedMemoryCache(int maxSize) {
+        mArena = ByteBuffer.allocateDirect(maxSize);
+    }
+
+    /**
+     * Replaces the buffer with one of another size, dropping all the contents. The old buffer is
+     * freed once it is collected.
+     */
+    synchronized void setMaxSize(int maxSize) {
+        if (maxSize == mArena.capacity()) {
+            return;
+        }
+        clear();
+        mArena = ByteBuffer.allocateDirect(maxSize);
+    }
+
+    /**
+     * Copies {@code length} bytes of {@code data} into the cache, replacing any previous contents
+     * for {@code key}.
+     *
+     * @return true if the contents were cached, false if they are larger than the cache
+     */
+    synchronized boolean put(String key, byte[] data, int length) {
+        remove(key);
+        if (length > mArena.capacity()) {
+            return false;
+        }
+
+        if (mWritePosition + length > mArena.capacity()) {
+            // Drop everything up to the end of the buffer, then start over from its beginning
+            evictFrom(mWritePosition, mArena.capacity());
+            mWritePosition = 0;
+        }
+        evictFrom(mWritePosition, mWritePosition + length);
+
+        mArena.position(mWritePosition);
+        mArena.put(data, 0, length);
+        mSlots.put(key, new Slot(mWritePosition, length));
+        mWritePosition += length;
+        mSize += length;
+        mPutCount++;
+        return true;
+    }
+
+    /**
+     * Evicts the contents starting in {@code [start, end)}. Contents after the write position are
+     * older than the ones before it, so they are the first ones of {@link #mSlots}.
+     */
+    private void evictFrom(int start, int end) {
+        final Iterator<Slot> it = mSlots.values().iterator();
+        while (it.hasNext()) {
+            final Slot slot = it.next();
+            if (slot.offset < start || slot.offset >= end) {
+                break;
+            }
+            it.remove();
+            mSize -= slot.length;
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * @return a copy of the contents cached for {@code key}, or null if there are none
+     */
+    byte[] get(String key) {
+        final Scratch scratch = new Scratch(0);
+        return get(key, scratch) ? scratch.data : null;
+    }
+
+    /**
+     * Copies the contents cached for {@code key} into {@code scratch}, replacing its array if it
+     * is too small.
+     *
+     * @return true if there were contents to copy
+     */
+    synchronized boolean get(String key, Scratch scratch) {
+        final Slot slot = mSlots.get(key);
+        if (null == slot) {
+            mMissCount++;
+            return false;
+        }
+        mHitCount++;
+
+        if (scratch.data.length < slot.length) {
+            scratch.data = new byte[slot.length];
+        }
+        mArena.position(slot.offset);
+        mArena.get(scratch.data, 0, slot.length);
+        scratch.length = slot.length;
+        return true;
+    }
+
+    /**
+     * @return the metadata kept for {@code key}, "" if it has none, or null if there is no such
+     * entry or its metadata isn't known
+     */
+    synchronized String getMetadata(String key) {
+        final Slot slot = mSlots.get(key);
+        return null != slot ? slot.metadata : null;
+    }
+
+    /**
+     * Keeps the metadata of an entry, if the entry is cached.
+     *
+     * @param metadata the metadata, or null if the entry has none
+     */
+    synchronized void setMetadata(String key, String metadata) {
+        final Slot slot = mSlots.get(key);
+        if (null != slot) {
+            slot.metadata = null != metadata ? metadata : "";
+        }
+    }
+
+    synchronized boolean contains(String key) {
+        return mSlots.containsKey(key);
+    }
+
+    synchronized void remove(String key) {
+        final Slot slot = mSlots.remove(key);
+        if (null != slot) {
+            mSize -= slot.length;
+        }
+    }
+
+    synchronized void clear() {
+        mSlots.clear();
+        mWritePosition = 0;
+        mSize = 0;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    synchronized int maxSize() {
+        return mArena.capacity();
+    }
+
+    synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    synchronized int missCount() {
+        return mMissCount;
+    }
+
+    synchronized int putCount() {
+        return mPutCount;
+    }
+
+    synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("CompressedMemoryCache[size=%d,maxSize=%d,entries=%d,hits=%d,misses=%d,puts=%d,evictions=%d]",
+                mSize, mArena.capacity(), mSlots.size(), mHitCount, mMissCount, mPutCount, mEvictionCount);
+    }
+}
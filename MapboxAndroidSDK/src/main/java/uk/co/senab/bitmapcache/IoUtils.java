@@ -57,7 +57,7 @@ class IoUtils {
     /**
      * Pipe an InputStream to the given OutputStream <p /> Taken from Apache Commons IOUtils.
      */
-    private static long copy(InputStream input, OutputStream output) throws IOException {
+    static long copy(InputStream input, OutputStream output) throws IOException {
         try {
             byte[] buffer = new byte[1024 * 4];
             long count = 0;
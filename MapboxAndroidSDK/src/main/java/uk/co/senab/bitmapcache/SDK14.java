@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Chris Banes.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package uk.co.senab.bitmapcache;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+class SDK14 {
+
+    // A single callback trims all the caches. They are held weakly, so a cache that isn't used
+    // anymore is collected along with its pool instead of being kept by the application context.
+    private static final ArrayList<WeakReference<BitmapLruCache>> sCaches =
+            new ArrayList<WeakReference<BitmapLruCache>>();
+    private static boolean sRegistered = false;
+
+    static void registerTrimMemoryCallback(Context context, final BitmapLruCache cache) {
+        synchronized (sCaches) {
+            liveCaches();
+            sCaches.add(new WeakReference<BitmapLruCache>(cache));
+            if (sRegistered) {
+                return;
+            }
+            sRegistered = true;
+        }
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                for (BitmapLruCache cache : liveCaches()) {
+                    cache.trimMemory(level);
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                for (BitmapLruCache cache : liveCaches()) {
+                    cache.trimMemory();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the caches that haven't been collected, the others are forgotten
+     */
+    private static ArrayList<BitmapLruCache> liveCaches() {
+        synchronized (sCaches) {
+            final ArrayList<BitmapLruCache> caches = new ArrayList<BitmapLruCache>(sCaches.size());
+            final Iterator<WeakReference<BitmapLruCache>> it = sCaches.iterator();
+            while (it.hasNext()) {
+                final BitmapLruCache cache = it.next().get();
+                if (null == cache) {
+                    it.remove();
+                } else {
+                    caches.add(cache);
+                }
+            }
+            return caches;
+        }
+    }
+
+}
@@ -99,7 +99,7 @@ public class SaveMapOfflineTestFragment extends Fragment implements MapboxConsta
             OfflineMapDatabase db = offlineMapDatabases.get(0);
             Toast.makeText(getActivity(), String.format(MAPBOX_LOCALE, "Will load MapID = '%s'", db.getMapID()), Toast.LENGTH_SHORT).show();
 
-            OfflineMapTileProvider tp = new OfflineMapTileProvider(getActivity(), db);
+            OfflineMapTileProvider tp = new OfflineMapTileProvider(getActivity(), db, mapView);
             offlineMapOverlay = new TilesOverlay(tp);
             mapView.addOverlay(offlineMapOverlay);
         } else {